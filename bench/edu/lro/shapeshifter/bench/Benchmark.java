@@ -0,0 +1,151 @@
+package edu.lro.shapeshifter.bench;
+
+/**
+ * A benchmark of the {@link EngineBenchmarks} suite, and the harness measuring it.
+ *
+ * <p>
+ * A benchmark performs its operations in batches (see {@link #run(int)}). The harness calibrates
+ * the size of the batches during the warmup so that a batch takes at least {@link #MIN_BATCH_NANOS},
+ * then measures the number of operations performed in each iteration of a fixed length. The
+ * results of the operations are summed into a value the harness publishes through a volatile
+ * field, so the JIT cannot drop them as dead code.
+ * </p>
+ *
+ * @author legendi
+ */
+public abstract class Benchmark {
+
+	/** Minimal length of a batch of operations, so the timer's resolution doesn't matter. */
+	public static final long MIN_BATCH_NANOS = 10 * 1000 * 1000;
+
+	/** The sink of the results of the operations (see {@link #run(int)}). */
+	public static volatile long sink;
+
+	/** Name of the benchmark, e.g. <tt>generate.order3</tt>. */
+	public final String name;
+
+	/** What an operation processes, e.g. <tt>messages</tt>, and how many of them (for the throughput). */
+	public final String unit;
+	public final long unitsPerOperation;
+
+	//---------------------------------------------------------------------------------------------------
+
+	public Benchmark(final String name) {
+		this(name, "ops", 1);
+	}
+
+	public Benchmark(final String name, final String unit, final long unitsPerOperation) {
+		this.name = name;
+		this.unit = unit;
+		this.unitsPerOperation = unitsPerOperation;
+	}
+
+	/** Prepares the state of the benchmark; not measured. */
+	protected void setUp() throws Exception {
+		;
+	}
+
+	/** Releases the state of the benchmark; not measured. */
+	protected void tearDown() throws Exception {
+		;
+	}
+
+	/**
+	 * Returns a remark printed after the score (e.g. the size of the measured data structure), or
+	 * <code>null</code>; called after the measurement, before {@link #tearDown()}.
+	 */
+	protected String note() {
+		return null;
+	}
+
+	/**
+	 * Performs the specified number of operations.
+	 *
+	 * @return a value depending on the results of all operations (e.g. the sum of their hash codes)
+	 */
+	protected abstract long run(int operations) throws Exception;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** The result of the measurement of a benchmark. */
+	public static class Score {
+		public final Benchmark benchmark;
+
+		/** Mean and standard deviation of the nanoseconds per operation of the iterations. */
+		public final double mean;
+		public final double deviation;
+
+		/** See {@link Benchmark#note()}, may be <code>null</code>. */
+		public final String note;
+
+		Score(final Benchmark benchmark, final double mean, final double deviation, final String note) {
+			this.benchmark = benchmark;
+			this.mean = mean;
+			this.deviation = deviation;
+			this.note = note;
+		}
+
+		@Override
+		public String toString() {
+			final double throughput = 1e9 / mean * benchmark.unitsPerOperation;
+			return String.format("%-24s %14.1f ns/op  +- %5.1f%%  %14.1f %s/s", benchmark.name, mean,
+					100 * deviation / mean, throughput, benchmark.unit) + ((null == note) ? "" : "  (" + note + ")");
+		}
+	}
+
+	/**
+	 * Measures the benchmark: runs <tt>warmups</tt> iterations (calibrating the size of the batches),
+	 * then <tt>iterations</tt> measured iterations of <tt>millis</tt> msecs each.
+	 */
+	public Score measure(final int warmups, final int iterations, final long millis) throws Exception {
+		setUp();
+
+		try {
+			int batch = 1;
+
+			for (int i = 0; i < warmups; ++i) {
+				final long deadline = System.nanoTime() + millis * 1000000;
+
+				while (System.nanoTime() < deadline) {
+					final long start = System.nanoTime();
+					sink += run(batch);
+
+					if (System.nanoTime() - start < MIN_BATCH_NANOS && batch < (1 << 30)) {
+						batch *= 2;
+					}
+				}
+			}
+
+			final double[] scores = new double[iterations];
+
+			for (int i = 0; i < iterations; ++i) {
+				final long start = System.nanoTime();
+				final long deadline = start + millis * 1000000;
+				long operations = 0;
+				long now;
+
+				do {
+					sink += run(batch);
+					operations += batch;
+				} while ((now = System.nanoTime()) < deadline);
+
+				scores[i] = (double) (now - start) / operations;
+			}
+
+			double mean = 0;
+			for (final double score : scores) {
+				mean += score / iterations;
+			}
+
+			double variance = 0;
+			for (final double score : scores) {
+				variance += (score - mean) * (score - mean) / Math.max(1, iterations - 1);
+			}
+
+			return new Score(this, mean, Math.sqrt(variance), note());
+		} finally {
+			tearDown();
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package edu.lro.shapeshifter.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates deterministic synthetic corpora for the benchmarks.
+ *
+ * <p>
+ * The words are made of syllables, and are drawn from a vocabulary of {@link #VOCABULARY} words
+ * with a Zipfian distribution (the <tt>n</tt>th most frequent word has a weight of <tt>1/n</tt>),
+ * so the distribution of the tuples resembles a natural text. The sentences are <tt>3</tt> to
+ * <tt>20</tt> words long, and are closed by one of the <tt>.?!</tt> punctuations (TXT) or by the
+ * end of the line (IRC log).
+ * </p>
+ *
+ * <p>
+ * The output depends only on the arguments: {@link Random} is specified to produce the same
+ * sequence for the same seed on every JVM, and the text is written in US-ASCII, so the results of
+ * different runs (and machines) are comparable.
+ * </p>
+ *
+ * <p>
+ * Usage: <tt>CorpusGenerator &lt;file&gt; &lt;sentences&gt; [txt|irc] [seed]</tt>
+ * </p>
+ *
+ * @author legendi
+ */
+public class CorpusGenerator {
+
+	/** Number of the distinct words. */
+	public static final int VOCABULARY = 20000;
+
+	public static final long DEFAULT_SEED = 42;
+
+	private static final String[] SYLLABLES = {
+		"a", "ba", "ka", "de", "fo", "gu", "hi", "jo", "ke", "la", "mi", "no", "pu", "ra", "se", "ti",
+		"vo", "wa", "xe", "zu", "an", "er", "in", "on", "ul", "sh", "th", "ch", "qu", "st"
+	};
+
+	private static final String PUNCTUATIONS = ".?!";
+
+	private final Random random;
+	private final String[] words = new String[VOCABULARY];
+
+	/** The cumulative weights of the words, for the binary search of the sampling. */
+	private final double[] cumulative = new double[VOCABULARY];
+
+	//---------------------------------------------------------------------------------------------------
+
+	public CorpusGenerator(final long seed) {
+		random = new Random(seed);
+
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < VOCABULARY; ++i) {
+			sb.setLength(0);
+
+			// Every id has a distinct syllable sequence (the digits of the id in base SYLLABLES.length)
+			for (int id = i; ; id /= SYLLABLES.length) {
+				sb.append(SYLLABLES[id % SYLLABLES.length]);
+				if (id < SYLLABLES.length) break;
+			}
+
+			words[i] = sb.toString();
+		}
+
+		double sum = 0;
+		for (int i = 0; i < VOCABULARY; ++i) {
+			cumulative[i] = (sum += 1.0 / (i + 1));
+		}
+	}
+
+	/** Returns a random word. */
+	public String nextWord() {
+		final double key = random.nextDouble() * cumulative[VOCABULARY - 1];
+		final int index = Arrays.binarySearch(cumulative, key);
+		return words[(index >= 0) ? index : Math.min(VOCABULARY - 1, -index - 1)];
+	}
+
+	/** Returns a random sentence, without a closing punctuation. */
+	public String nextSentence() {
+		final int length = 3 + random.nextInt(18);
+		final StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < length; ++i) {
+			if (i > 0) sb.append(' ');
+			sb.append(nextWord());
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the specified number of sentences into the given file.
+	 *
+	 * @param lines true if each sentence is a line (IRC log); false if they are closed by
+	 * 			punctuations (TXT), and broken into lines of about 80 characters
+	 */
+	public void write(final File file, final int sentences, final boolean lines) throws IOException {
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "US-ASCII"));
+
+		try {
+			int column = 0;
+
+			for (int i = 0; i < sentences; ++i) {
+				final String sentence = nextSentence();
+
+				if (lines) {
+					out.write(sentence);
+					out.write('\n');
+				} else {
+					out.write(sentence);
+					out.write(PUNCTUATIONS.charAt(random.nextInt(PUNCTUATIONS.length())));
+					column += sentence.length() + 1;
+
+					if (column > 80) {
+						out.write('\n');
+						column = 0;
+					} else {
+						out.write(' ');
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Writes a corpus with the {@link #DEFAULT_SEED} into a temporary file, deleted on exit. */
+	public static File temporary(final int sentences, final boolean lines) throws IOException {
+		final File ret = File.createTempFile("corpus-" + sentences + "-", lines ? ".log" : ".txt");
+		ret.deleteOnExit();
+		new CorpusGenerator(DEFAULT_SEED).write(ret, sentences, lines);
+		return ret;
+	}
+
+	//===================================================================================================
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: CorpusGenerator <file> <sentences> [txt|irc] [seed]");
+			System.exit(2);
+		}
+
+		final File file = new File(args[0]);
+		final int sentences = Integer.parseInt(args[1]);
+		final boolean lines = (args.length > 2) && "irc".equalsIgnoreCase(args[2]);
+		final long seed = (args.length > 3) ? Long.parseLong(args[3]) : DEFAULT_SEED;
+
+		new CorpusGenerator(seed).write(file, sentences, lines);
+		System.out.println("Generated " + sentences + " sentences into " + file + " (" + file.length() + " bytes).");
+	}
+
+}
@@ -0,0 +1,324 @@
+package edu.lro.shapeshifter.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import edu.lro.shapeshifter.engine.Engine;
+import edu.lro.shapeshifter.engine.Loader;
+import edu.lro.shapeshifter.engine.Tuple;
+
+/**
+ * Benchmarks of the hot paths of the engine, on corpora of the {@link CorpusGenerator}.
+ *
+ * <p>
+ * The suite measures:
+ * <ul>
+ * <li><tt>load.txt.*</tt>, <tt>load.irc.*</tt>: {@link Loader#loadTXT} and {@link Loader#loadIRCLog}
+ * 	into an empty engine, on corpora of {@link #SIZES} sentences;</li>
+ * <li><tt>addString</tt>: {@link Engine#addString(String)} per message; once the queue of the
+ * 	background learner is full, this is the rate of the learning, including the publications;</li>
+ * <li><tt>generate.order*</tt>: {@link Engine#generateSentence()} at the Markov orders 1-5;</li>
+ * <li><tt>generate.trie.order*</tt>: the same with the trie storage (see
+ * 	{@link Engine#setTrieStorage(boolean)}); the footprints of the published models are printed
+ * 	after the scores, to compare the two layouts;</li>
+ * <li><tt>tuple.*</tt>: the hashing, equality and shifting of {@link Tuple}s.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * Every benchmark runs in the same VM, one after the other; for the most stable results run the
+ * groups separately (by their name prefix), with the same heap settings each time.
+ * </p>
+ *
+ * <p>
+ * Usage: <tt>EngineBenchmarks [-w warmups] [-i iterations] [-t msecs] [name prefix...]</tt>
+ * </p>
+ *
+ * @author legendi
+ */
+public class EngineBenchmarks {
+
+	/** Number of the sentences of the small, medium and large corpora. */
+	public static final int[] SIZES = { 10000, 100000, 500000 };
+	private static final String[] SIZE_NAMES = { "small", "medium", "large" };
+
+	/** The corpus the engine of the generation and learning benchmarks is initialized with. */
+	private static final int BASE_SIZE = 100000;
+
+	/** Number of distinct tuples the tuple benchmarks cycle through. */
+	private static final int TUPLES = 1 << 12;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Loads a generated corpus into an empty engine. */
+	private static class LoadBenchmark extends Benchmark {
+		private final int sentences;
+		private final boolean lines;
+		private File corpus;
+
+		LoadBenchmark(final String name, final int sentences, final boolean lines) {
+			super(name, "sentences", sentences);
+			this.sentences = sentences;
+			this.lines = lines;
+		}
+
+		@Override
+		protected void setUp() throws Exception {
+			corpus = CorpusGenerator.temporary(sentences, lines);
+		}
+
+		@Override
+		protected void tearDown() {
+			corpus.delete();
+		}
+
+		@Override
+		protected long run(final int operations) throws Exception {
+			long ret = 0;
+
+			for (int i = 0; i < operations; ++i) {
+				final Engine engine = new Engine();
+
+				if (lines) {
+					Loader.loadIRCLog(corpus.toURI().toURL(), engine);
+				} else {
+					Loader.loadTXT(corpus.toURI().toURL(), engine);
+				}
+
+				ret += engine.getTupleCount();
+			}
+
+			return ret;
+		}
+	}
+
+	/** Learns generated messages through the background learner of an initialized engine. */
+	private static class AddStringBenchmark extends Benchmark {
+		private final String[] messages = new String[1 << 14];
+		private Engine engine;
+		private int next = 0;
+
+		AddStringBenchmark() {
+			super("addString", "messages", 1);
+		}
+
+		@Override
+		protected void setUp() throws Exception {
+			engine = initialized(3);
+
+			final CorpusGenerator generator = new CorpusGenerator(CorpusGenerator.DEFAULT_SEED + 1);
+			for (int i = 0; i < messages.length; ++i) {
+				messages[i] = generator.nextSentence();
+			}
+		}
+
+		@Override
+		protected void tearDown() {
+			engine.shutdown();
+		}
+
+		@Override
+		protected long run(final int operations) {
+			for (int i = 0; i < operations; ++i) {
+				engine.addString(messages[next++ & (messages.length - 1)]);
+			}
+
+			return engine.getTupleCount();
+		}
+	}
+
+	/** Generates random sentences at the specified Markov order. */
+	private static class GenerateBenchmark extends Benchmark {
+		private final int order;
+		private final boolean trie;
+		private Engine engine;
+
+		GenerateBenchmark(final int order, final boolean trie) {
+			super("generate." + (trie ? "trie." : "") + "order" + order, "sentences", 1);
+			this.order = order;
+			this.trie = trie;
+		}
+
+		@Override
+		protected void setUp() throws Exception {
+			final boolean previous = Engine.isTrieStorage();
+			Engine.setTrieStorage(trie);
+
+			try {
+				engine = initialized(order);
+			} finally {
+				Engine.setTrieStorage(previous);
+			}
+		}
+
+		@Override
+		protected String note() {
+			return "model: " + (engine.getPublishedFootprint() >> 10) + " KB";
+		}
+
+		@Override
+		protected void tearDown() {
+			engine.shutdown();
+			engine = null;
+		}
+
+		@Override
+		protected long run(final int operations) {
+			long ret = 0;
+
+			for (int i = 0; i < operations; ++i) {
+				ret += engine.generateSentence().entropy;
+			}
+
+			return ret;
+		}
+	}
+
+	/** The operations of the tuples of order 3, on random word ids. */
+	private abstract static class TupleBenchmark extends Benchmark {
+		protected final Tuple[] tuples = new Tuple[TUPLES];
+		protected final Tuple[] copies = new Tuple[TUPLES];
+
+		TupleBenchmark(final String name) {
+			super("tuple." + name, "tuples", 1);
+
+			final Random random = new Random(CorpusGenerator.DEFAULT_SEED);
+			for (int i = 0; i < TUPLES; ++i) {
+				final int[] tokens = new int[3];
+				for (int j = 0; j < tokens.length; ++j) {
+					tokens[j] = random.nextInt(CorpusGenerator.VOCABULARY);
+				}
+
+				tuples[i] = new Tuple(tokens);
+				copies[i] = new Tuple(tokens.clone());
+			}
+		}
+	}
+
+	/** Returns an engine of the specified order, initialized with the base corpus. */
+	private static Engine initialized(final int order) throws Exception {
+		final Engine ret = new Engine();
+		ret.setOrder(order);
+		Loader.loadIRCLog(CorpusGenerator.temporary(BASE_SIZE, true).toURI().toURL(), ret);
+		return ret;
+	}
+
+	/** Returns the benchmarks of the suite, in the order of their execution. */
+	public static ArrayList<Benchmark> benchmarks() {
+		final ArrayList<Benchmark> ret = new ArrayList<Benchmark>();
+
+		for (int i = 0; i < SIZES.length; ++i) {
+			ret.add(new LoadBenchmark("load.txt." + SIZE_NAMES[i], SIZES[i], false));
+		}
+
+		for (int i = 0; i < SIZES.length; ++i) {
+			ret.add(new LoadBenchmark("load.irc." + SIZE_NAMES[i], SIZES[i], true));
+		}
+
+		ret.add(new AddStringBenchmark());
+
+		for (int order = 1; order <= 5; ++order) {
+			ret.add(new GenerateBenchmark(order, false));
+		}
+
+		for (int order = 1; order <= 5; ++order) {
+			ret.add(new GenerateBenchmark(order, true));
+		}
+
+		ret.add(new TupleBenchmark("hashCode") {
+			@Override
+			protected long run(final int operations) {
+				long ret = 0;
+				for (int i = 0; i < operations; ++i) {
+					ret += tuples[i & (TUPLES - 1)].hashCode();
+				}
+
+				return ret;
+			}
+		});
+
+		ret.add(new TupleBenchmark("equals") {
+			@Override
+			protected long run(final int operations) {
+				long ret = 0;
+				for (int i = 0; i < operations; ++i) {
+					// Every other comparison is of equal tuples
+					final Tuple other = (0 == (i & 1)) ? copies[i & (TUPLES - 1)] : tuples[(i + 1) & (TUPLES - 1)];
+					if (tuples[i & (TUPLES - 1)].equals(other)) ++ret;
+				}
+
+				return ret;
+			}
+		});
+
+		ret.add(new TupleBenchmark("shiftLeft") {
+			@Override
+			protected long run(final int operations) {
+				long ret = 0;
+				for (int i = 0; i < operations; ++i) {
+					ret += tuples[i & (TUPLES - 1)].shiftLeft(i).lastToken();
+				}
+
+				return ret;
+			}
+		});
+
+		ret.add(new TupleBenchmark("shiftRight") {
+			@Override
+			protected long run(final int operations) {
+				long ret = 0;
+				for (int i = 0; i < operations; ++i) {
+					ret += tuples[i & (TUPLES - 1)].shiftRight(i).firstToken();
+				}
+
+				return ret;
+			}
+		});
+
+		return ret;
+	}
+
+	//===================================================================================================
+
+	public static void main(final String[] args) throws Exception {
+		int warmups = 3;
+		int iterations = 5;
+		long millis = 1000;
+		final ArrayList<String> prefixes = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; ++i) {
+			if ("-w".equals(args[i])) {
+				warmups = Integer.parseInt(args[++i]);
+			} else if ("-i".equals(args[i])) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if ("-t".equals(args[i])) {
+				millis = Long.parseLong(args[++i]);
+			} else {
+				prefixes.add(args[i]);
+			}
+		}
+
+		System.out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") +
+				", " + Runtime.getRuntime().availableProcessors() + " cpus, " +
+				(Runtime.getRuntime().maxMemory() >> 20) + " MB heap; " + warmups + " warmups, " + iterations +
+				" iterations of " + millis + " msecs");
+
+		for (final Benchmark benchmark : benchmarks()) {
+			if (selected(benchmark, prefixes)) {
+				System.out.println(benchmark.measure(warmups, iterations, millis));
+			}
+		}
+	}
+
+	private static boolean selected(final Benchmark benchmark, final ArrayList<String> prefixes) {
+		if (prefixes.isEmpty()) return true;
+
+		for (final String prefix : prefixes) {
+			if (benchmark.name.startsWith(prefix)) return true;
+		}
+
+		return false;
+	}
+
+}
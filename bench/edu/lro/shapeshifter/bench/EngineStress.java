@@ -0,0 +1,171 @@
+package edu.lro.shapeshifter.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.lro.shapeshifter.engine.Engine;
+import edu.lro.shapeshifter.engine.Loader.InputType;
+
+/**
+ * Stress test of the concurrent use of the {@link Engine}: a number of reader threads generate
+ * sentences while writer threads feed it the lines of the corpus, and a reinitializer thread
+ * restarts it now and then.
+ *
+ * <p>
+ * Fails (with a non-zero exit code) on the first exception of any thread, or if the writes didn't
+ * make it into the published model.
+ * </p>
+ *
+ * <p>
+ * Usage: <tt>EngineStress &lt;irc log&gt; [seconds] [readers] [writers]</tt>
+ * </p>
+ *
+ * @author legendi
+ */
+public class EngineStress {
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: EngineStress <irc log> [seconds] [readers] [writers]");
+			System.exit(2);
+		}
+
+		final File corpus = new File(args[0]);
+		final long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 10;
+		final int readers = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+		final int writers = (args.length > 3) ? Integer.parseInt(args[3]) : 2;
+
+		final ArrayList<String> lines = readLines(corpus);
+		final PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(final int b) {
+				// The verbose output of the engine is dropped
+			}
+		}));
+
+		final Engine engine = new Engine();
+		engine.init(corpus.toURI().toURL(), InputType.IRC_LOG);
+		Engine.setPublishInterval(50);
+
+		final long deadline = System.currentTimeMillis() + seconds * 1000;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicLong generated = new AtomicLong();
+		final AtomicLong learned = new AtomicLong();
+		final AtomicLong reinits = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(readers + writers + 1);
+
+		for (int i = 0; i < readers; ++i) {
+			start("reader-" + i, done, failure, new Runnable() {
+				@Override
+				public void run() {
+					final Random random = new Random();
+
+					while (System.currentTimeMillis() < deadline && null == failure.get()) {
+						final String line = lines.get(random.nextInt(lines.size()));
+						final String[] words = line.split(" ");
+						engine.generateSentence(random.nextBoolean() ? null : words[random.nextInt(words.length)]);
+						generated.incrementAndGet();
+					}
+				}
+			});
+		}
+
+		for (int i = 0; i < writers; ++i) {
+			start("writer-" + i, done, failure, new Runnable() {
+				@Override
+				public void run() {
+					final Random random = new Random();
+
+					while (System.currentTimeMillis() < deadline && null == failure.get()) {
+						engine.addString(lines.get(random.nextInt(lines.size())) + " stress" + random.nextInt(1000));
+						learned.incrementAndGet();
+					}
+				}
+			});
+		}
+
+		start("reinitializer", done, failure, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (System.currentTimeMillis() < deadline && null == failure.get()) {
+						Thread.sleep(seconds * 1000 / 4);
+						engine.init(corpus.toURI().toURL(), InputType.IRC_LOG);
+						reinits.incrementAndGet();
+					}
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (final IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+
+		done.await();
+
+		// The words added by the writers must be known after the flush
+		engine.addString("stress-marker stress-marker stress-marker stress-marker stress-marker");
+		engine.flush();
+		final boolean published = engine.generateSentence("stress-marker").sentence.contains("stress-marker");
+		engine.shutdown();
+		System.setOut(out);
+
+		System.out.println("Generated " + generated + " sentences, queued " + learned + " messages, " +
+				reinits + " reinitializations; " + engine.getTupleCount() + " tuples at the end.");
+
+		if (failure.get() != null) {
+			System.out.println("FAILED:");
+			failure.get().printStackTrace(System.out);
+			System.exit(1);
+		}
+
+		if (!published) {
+			System.out.println("FAILED: the flushed messages were not published");
+			System.exit(1);
+		}
+
+		System.out.println("OK");
+	}
+
+	private static void start(final String name, final CountDownLatch done,
+			final AtomicReference<Throwable> failure, final Runnable task) {
+		new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (final Throwable e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					done.countDown();
+				}
+			}
+		}.start();
+	}
+
+	private static ArrayList<String> readLines(final File file) throws IOException {
+		final ArrayList<String> ret = new ArrayList<String>();
+		final BufferedReader in = new BufferedReader(new FileReader(file));
+
+		try {
+			for (String line; null != (line = in.readLine()); ) {
+				if (line.trim().length() > 0) ret.add(line.trim());
+			}
+		} finally {
+			in.close();
+		}
+
+		return ret;
+	}
+
+}
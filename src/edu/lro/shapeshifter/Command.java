@@ -1,22 +1,26 @@
 package edu.lro.shapeshifter;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.SortedMap;
 
 import org.eclipse.ecf.core.util.ECFException;
 import org.eclipse.ecf.presence.bot.IChatRoomMessageHandler;
 import org.eclipse.ecf.presence.chatroom.IChatRoomMessage;
 
+import edu.lro.shapeshifter.engine.ConsoleTracer;
 import edu.lro.shapeshifter.engine.Engine;
 import edu.lro.shapeshifter.engine.Loader;
 import edu.lro.shapeshifter.engine.Engine.Result;
 import edu.lro.shapeshifter.engine.Loader.InputType;
+import edu.lro.shapeshifter.metrics.Histogram;
+import edu.lro.shapeshifter.metrics.Metrics;
 
 /**
  * Abstract superclass of bot commands.
@@ -34,7 +38,10 @@ import edu.lro.shapeshifter.engine.Loader.InputType;
 public abstract class Command {
 	
 	public static final String DESC_SEPARATOR = " --> ";
-	public static final int SENTENCE_SAMPLE_SIZE = 5;
+	public static final int SENTENCE_SAMPLE_SIZE = 10;
+	
+	/** Time limit of generating the candidate sentences of a reply, in msecs. */
+	public static final long REPLY_TIMEOUT = 1000;
 	
 	@SuppressWarnings("serial")
 	public static class CommandSyntaxException extends Exception {
@@ -45,7 +52,6 @@ public abstract class Command {
 	
 	private static final HashMap<String, Command> commands = new HashMap<String, Command>();
 	public static Shapeshifter shapeshifter = null;
-	private static Engine engine = null;
 
 	public static Map<String, Command> getCommands() {
 		return Collections.unmodifiableMap(commands);
@@ -53,7 +59,11 @@ public abstract class Command {
 	
 	public static void setShapeshifter(final Shapeshifter shapeshifter) {
 		Command.shapeshifter = shapeshifter;
-		Command.engine = shapeshifter.engine;
+	}
+	
+	/** Returns the current engine of the bot (see {@link Shapeshifter#getEngine()}). */
+	protected static Engine engine() {
+		return shapeshifter.getEngine();
 	}
 	
 	//---------------------------------------------------------------------------------------------------
@@ -104,28 +114,12 @@ public abstract class Command {
 				? args[shapeshifter.random.nextInt(args.length)]
 				: null;
 			
-			ArrayList<Result> results = new ArrayList<Result>(SENTENCE_SAMPLE_SIZE);
-			String ret = "N/A";
-			int maxEntrophy = -1;
-			for (int i=0; i<SENTENCE_SAMPLE_SIZE; ++i) {
-				Result result = engine.generateSentence(startingWord);
-				if (result.entropy > maxEntrophy) {
-					maxEntrophy = result.entropy;
-					ret = result.sentence;
-				}
-				results.add(result);
-			}
-			
-			System.out.println();
-			System.out.println();
-			System.out.println("----------------------------------------------------------------------");
-			System.out.println("Candidates for input string [" + startingWord + "]");
-			System.out.println("----------------------------------------------------------------------");
-			for (Result result : results) System.out.println(result);
-			System.out.println("----------------------------------------------------------------------");
+			// The best of the candidates generated in parallel, or a pre-generated one of the cache
+			final Engine engine = engine();
+			final Result result = engine.reply(startingWord, SENTENCE_SAMPLE_SIZE, REPLY_TIMEOUT);
 			
 			engine.addString(MyUtils.join(args));
-			return ret;
+			return (null == result) ? "N/A" : result.sentence;
 		}
 		
 		@Override
@@ -136,7 +130,8 @@ public abstract class Command {
 	}
 	
 	//---------------------------------------------------------------------------------------------------
-	private static String reinit(final String[] args) throws CommandSyntaxException {
+	/** Starts the reinitialization of the bot with a new engine of the specified order. */
+	private static String reinit(final String[] args, final int order) throws CommandSyntaxException {
 		try {
 			final URL url = new URL( (args.length > 0) ? args[0] : "file:/C:/test.txt" );
 			Loader.InputType inputType;
@@ -150,19 +145,14 @@ public abstract class Command {
 				e.printStackTrace();
 			}
 			
-			try {
-				shapeshifter.getSender().sendMessage("Started parsing specified file as " + inputType + "...");
-			} catch (ECFException e) {
-				e.printStackTrace();
+			if (!shapeshifter.reinit(url, inputType, order)) {
+				throw new CommandSyntaxException("Hold on, I'm still busy with the previous reinitialization!");
 			}
 			
-			final long time = engine.init(url, inputType);
-			return "Engine reinitialization of " + url.getPath() + " performed [" + inputType + "], took " + time + " msecs. " +
-					"A sum of " + engine.getKnownTuples().size() + " tuples were created.";
+			return "Started parsing specified file as " + inputType + " [order " + order + "], " +
+					"I'll keep using my current knowledge until it's done...";
 		} catch (final MalformedURLException e) {
 			throw new CommandSyntaxException("Cannot find specified file: " + e.getMessage());
-		} catch (final IOException e) {
-			throw new CommandSyntaxException("IOException: " + e.getMessage());
 		}
 	}
 	
@@ -174,7 +164,7 @@ public abstract class Command {
 		@Override
 		public String getReply(final IChatRoomMessage message, final String[] args)
 				throws CommandSyntaxException {
-			return reinit(args);
+			return reinit(args, engine().getOrder());
 		}
 
 		@Override
@@ -182,7 +172,86 @@ public abstract class Command {
 			return super.getHelpDescription() + " [URL]" + DESC_SEPARATOR +
 					"Reinitilaizes the knowledge of the bot with the default knowledge base. " +
 					"If an URL is specified, it tries to connect the specified source and learns from its " +
-					"content. It is hardly encouraged to use simple txt files.";
+					"content. It is hardly encouraged to use simple txt files. The bot keeps answering " +
+					"from its current knowledge until the new one is ready.";
+		}
+	}
+	
+	//---------------------------------------------------------------------------------------------------
+	public static class SnapshotCommand extends Command {
+		private static final String USAGE = "Usage: ~snapshot save|load <name> | ~snapshot compact";
+		
+		public SnapshotCommand() {
+			super("snapshot");
+		}
+
+		@Override
+		public String getReply(final IChatRoomMessage message, final String[] args)
+				throws CommandSyntaxException {
+			
+			if (0 == args.length) {
+				throw new CommandSyntaxException(USAGE);
+			}
+			
+			final Engine engine = engine();
+			
+			try {
+				if ("compact".equalsIgnoreCase(args[0])) {
+					final File file = shapeshifter.getSnapshot();
+					if (null == file)
+						throw new CommandSyntaxException("The log has no snapshot to be compacted into.");
+					
+					final long time = engine.compactLog(file);
+					return "Log compacted into " + file.getPath() + " (" + engine.getTupleCount() +
+							" tuples), took " + time + " msecs.";
+				}
+				
+				if (args.length < 2) {
+					throw new CommandSyntaxException(USAGE);
+				}
+				
+				final File file = resolve(args[1]);
+				
+				if ("save".equalsIgnoreCase(args[0])) {
+					file.getParentFile().mkdirs();
+					
+					final long time = engine.saveSnapshot(file);
+					return "Snapshot of " + engine.getTupleCount() + " tuples saved to " + file.getPath() +
+							", took " + time + " msecs.";
+				}
+				
+				if ("load".equalsIgnoreCase(args[0])) {
+					final long time = engine.loadSnapshot(file);
+					return "Snapshot loaded from " + file.getPath() + ", took " + time + " msecs. " +
+							"A sum of " + engine.getTupleCount() + " tuples were restored " +
+							"[order " + engine.getOrder() + "].";
+				}
+			} catch (final IOException e) {
+				throw new CommandSyntaxException("IOException: " + e.getMessage());
+			}
+			
+			throw new CommandSyntaxException("Unknown snapshot operation: " + args[0]);
+		}
+		
+		/**
+		 * Returns the file of the specified snapshot in the snapshot directory of the bot. Only plain
+		 * file names are accepted, so the users of the channel cannot reach any other file.
+		 */
+		private static File resolve(final String name) throws CommandSyntaxException {
+			if (name.contains("..") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 ||
+					name.indexOf(':') >= 0 || name.indexOf(File.separatorChar) >= 0 || new File(name).isAbsolute())
+				throw new CommandSyntaxException("Invalid snapshot name: " + name + " (no paths are allowed)");
+			
+			return new File(shapeshifter.getSnapshotDirectory(), name);
+		}
+
+		@Override
+		public String getHelpDescription() {
+			return super.getHelpDescription() + " save|load <name> | compact" + DESC_SEPARATOR +
+					"Saves the knowledge of the bot into a binary snapshot file of the snapshot directory, " +
+					"or restores it from one. Loading a snapshot is much faster than reparsing the original " +
+					"text. Compacting saves the snapshot the bot is started from, and empties the log of the " +
+					"learned messages.";
 		}
 	}
 	
@@ -231,15 +300,31 @@ public abstract class Command {
 		public String getReply(final IChatRoomMessage message, final String[] args)
 				throws CommandSyntaxException {
 			
+			final Engine engine = engine();
+			
 			if ( 0 == args.length ) {
-				return "Current Markov-order is " + engine.getOrder() + ".";
+				return "Current Markov-order is " + engine.getOrder() + "." + residents(engine);
 			}
 			
 			try {
+				if ("resident".equalsIgnoreCase(args[0])) {
+					if (args.length < 2) {
+						return "Orders learned in a single pass: " + Engine.getResidentOrders() + "." + residents(engine);
+					}
+					
+					Engine.setResidentOrders(Integer.parseInt(args[1]));
+					return "From the next reinitialization all orders up to " + args[1] + " will be learned " +
+						"in a single pass.";
+				}
+				
 				final int order = Integer.parseInt(args[0]);
-				engine.setOrder(order);
 				
-				return "Markov-order was set to " + order + ". " + reinit( Arrays.copyOfRange(args, 1, args.length));
+				if (1 == args.length && engine.isResident(order)) {
+					engine.setOrder(order);
+					return "Markov-order was set to " + order + " (it was already learned, no reload needed).";
+				}
+				
+				return reinit(Arrays.copyOfRange(args, 1, args.length), order);
 			} catch (final NumberFormatException e) {
 				e.printStackTrace();
 				throw new CommandSyntaxException("Argument must be an integer. " + e.getMessage());
@@ -253,7 +338,31 @@ public abstract class Command {
 		public String getHelpDescription() {
 			return super.getHelpDescription() + " [order]" + DESC_SEPARATOR +
 				"Sets the order of the used Markov-chains. Order must be an integer value between [1,5]. " +
-				"Automatically reinits the knowledge base. If no order was specified, prints the current order setting.";
+				"Automatically reinits the knowledge base (in the background), unless the order is resident. " +
+				"If no order was specified, prints the current order setting. ~order resident [max] sets " +
+				"the orders learned in a single pass (0 turns it off).";
+		}
+		
+		/** Describes the memory used by the resident orders of the engine. */
+		private static String residents(final Engine engine) {
+			final long[] footprints = engine.getResidentFootprints();
+			
+			if (0 == footprints.length) {
+				return "";
+			}
+			
+			final StringBuilder sb = new StringBuilder(" Resident orders:");
+			for (int i = 0; i < footprints.length; ++i) {
+				sb.append(' ').append(i + 1).append(" (~").append(toMegabytes(footprints[i])).append(" MB)")
+					.append(i + 1 < footprints.length ? "," : ";");
+			}
+			
+			return sb.append(" shared dictionary ~").append(toMegabytes(engine.getSharedFootprint())).append(" MB.")
+				.toString();
+		}
+		
+		private static String toMegabytes(final long bytes) {
+			return String.format("%.1f", bytes / 1048576.0);
 		}
 	}
 	
@@ -336,6 +445,29 @@ public abstract class Command {
 		}
 	}
 	
+	//---------------------------------------------------------------------------------------------------
+	public static class TraceCommand extends Command {
+		public TraceCommand() {
+			super("trace");
+		}
+
+		@Override
+		public String getReply(final IChatRoomMessage message, final String[] args)
+				throws CommandSyntaxException {
+			
+			final Engine engine = engine();
+			engine.setTracer( (null == engine.getTracer()) ? new ConsoleTracer() : null );
+			return "Verbose output of the engine is now turned " +
+				( (null != engine.getTracer()) ? "on" : "off" ) + ".";
+		}
+		
+		@Override
+		public String getHelpDescription() {
+			return super.getHelpDescription() + DESC_SEPARATOR +
+				"Turns the verbose console output of the engine on/off.";
+		}
+	}
+	
 	//---------------------------------------------------------------------------------------------------
 	public static class SECommand extends Command {
 		public SECommand() {
@@ -367,4 +499,109 @@ public abstract class Command {
 		}
 	}
 	
+	//---------------------------------------------------------------------------------------------------
+	public static class QueueCommand extends Command {
+		public QueueCommand() {
+			super("queue");
+		}
+
+		@Override
+		public String getReply(final IChatRoomMessage message, final String[] args)
+				throws CommandSyntaxException {
+			
+			final CommandExecutor executor = shapeshifter.executor;
+			
+			if ( 0 == args.length ) {
+				return executor.toString();
+			}
+			
+			try {
+				final int workers = Integer.parseInt(args[0]);
+				executor.setParallelism(workers);
+				return "Now executing at most " + workers + " commands at once.";
+			} catch (final NumberFormatException e) {
+				e.printStackTrace();
+				throw new CommandSyntaxException("Argument must be an integer. " + e.getMessage());
+			} catch (final IllegalArgumentException e) {
+				e.printStackTrace();
+				throw new CommandSyntaxException("Illegal argument. " + e.getMessage());
+			}
+		}
+		
+		@Override
+		public String getHelpDescription() {
+			return super.getHelpDescription() + " [workers]" + DESC_SEPARATOR +
+				"Prints the state of the command queue (depth, waiting times). If a number is specified, " +
+				"sets the number of commands executed at once.";
+		}
+	}
+	
+	//---------------------------------------------------------------------------------------------------
+	public static class StatsCommand extends Command {
+		public StatsCommand() {
+			super("stats");
+		}
+
+		@Override
+		public String getReply(final IChatRoomMessage message, final String[] args)
+				throws CommandSyntaxException {
+			
+			final Metrics metrics = shapeshifter.metrics;
+			
+			if ( 0 < args.length ) {
+				final StringBuilder sb = new StringBuilder();
+				
+				for (final Map.Entry<String, Long> entry : metrics.getValues().entrySet()) {
+					if (entry.getKey().startsWith(args[0])) {
+						sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append(", ");
+					}
+				}
+				
+				for (final Map.Entry<String, Histogram> entry : metrics.getHistograms().entrySet()) {
+					if (entry.getKey().startsWith(args[0])) {
+						sb.append(entry.getKey()).append(": ").append(entry.getValue()).append(", ");
+					}
+				}
+				
+				if (0 == sb.length()) {
+					throw new CommandSyntaxException("No such metrics: " + args[0]);
+				}
+				
+				return sb.substring(0, sb.length() - 2) + ".";
+			}
+			
+			final SortedMap<String, Long> values = metrics.getValues();
+			final StringBuilder commands = new StringBuilder();
+			
+			for (final Map.Entry<String, Long> entry : values.entrySet()) {
+				if (entry.getKey().startsWith("commands.")) {
+					commands.append(commands.length() > 0 ? ", " : "")
+						.append(entry.getKey().substring("commands.".length())).append(": ").append(entry.getValue());
+				}
+			}
+			
+			// The rate of the messages timed by the batches, the replayed and loaded ones aren't
+			final Histogram learning = metrics.getHistogram("engine.learn.batch");
+			final long learned = values.get("engine.learn.messages");
+			final long batched = values.get("engine.learn.batched");
+			
+			return "Commands: [" + commands + "], took " + metrics.getHistogram("commands.time") +
+				". Queue wait: " + metrics.getHistogram("queue.wait") +
+				". Generation: " + metrics.getHistogram("engine.generate.time") +
+				", words per reply: " + metrics.getHistogram("engine.generate.words").getMean() +
+				". Learned " + learned + " messages (" +
+				( (0 == learning.getSum()) ? 0 : batched * 1000000 / learning.getSum() ) + "/sec)" +
+				". Model: " + values.get("model.tuples") + " tuples, " + values.get("model.words") + " words, " +
+				values.get("model.edges") + " edges, ~" + (values.get("model.heap") >> 20) + " MB of heap.";
+		}
+		
+		@Override
+		public String getHelpDescription() {
+			return super.getHelpDescription() + " [prefix]" + DESC_SEPARATOR +
+				"Prints the runtime metrics of the bot (commands, queue waits, generation times, learning " +
+				"throughput, model size). If a prefix is specified (e.g. engine.init), prints all metrics " +
+				"with that name.";
+		}
+	}
+	
 }
@@ -0,0 +1,247 @@
+package edu.lro.shapeshifter;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.lro.shapeshifter.metrics.Histogram;
+
+/**
+ * Executes the commands of the chat rooms on a bounded pool of worker threads.
+ *
+ * <p>
+ * Each room has its own FIFO queue of at most {@link #getQueueCapacity()} waiting commands: the
+ * commands of a room are started in the order of their arrival, at most
+ * {@link #getParallelism()} of them at once, and a command is rejected only when the queue of its
+ * room is full. The rooms share the workers of the pool.
+ * </p>
+ *
+ * <p>
+ * The executor keeps track of the number of the executed and rejected commands, and of the time the
+ * commands spent waiting in the queues (see {@link #getWaitTimes()}).
+ * </p>
+ *
+ * @author legendi
+ */
+public class CommandExecutor {
+
+	public static final int DEFAULT_PARALLELISM = 2;
+	public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+	private final ThreadPoolExecutor pool;
+	private final int queueCapacity;
+	private volatile int parallelism;
+
+	private final ConcurrentHashMap<Object, RoomQueue> rooms = new ConcurrentHashMap<Object, RoomQueue>();
+
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** The waiting times of the started commands, in msecs. */
+	private final Histogram waitTimes = new Histogram("ms");
+
+	//---------------------------------------------------------------------------------------------------
+
+	public CommandExecutor() {
+		this(DEFAULT_PARALLELISM, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public CommandExecutor(final int parallelism, final int queueCapacity) {
+		if (parallelism < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Arguments must be positive.");
+		}
+
+		this.parallelism = parallelism;
+		this.queueCapacity = queueCapacity;
+
+		// The pool queue holds only the commands already let through by their room queues
+		pool = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread ret = new Thread(runnable, "Shapeshifter-worker-" + count.incrementAndGet());
+						ret.setDaemon(true);
+						return ret;
+					}
+				});
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Queues the specified command of the specified room.
+	 *
+	 * @return true if the command was accepted; false if the queue of the room is full.
+	 */
+	public boolean submit(final Object room, final Runnable command) {
+		RoomQueue queue = rooms.get(room);
+
+		if (null == queue) {
+			final RoomQueue created = new RoomQueue();
+			queue = rooms.putIfAbsent(room, created);
+			if (null == queue) queue = created;
+		}
+
+		if (!queue.offer(new Job(command))) {
+			rejected.incrementAndGet();
+			return false;
+		}
+
+		return true;
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/** Sets the maximal number of commands executed at once (in each room). */
+	public void setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Argument must be positive.");
+		}
+
+		synchronized (pool) {
+			if (parallelism > pool.getMaximumPoolSize()) {
+				pool.setMaximumPoolSize(parallelism);
+				pool.setCorePoolSize(parallelism);
+			} else {
+				pool.setCorePoolSize(parallelism);
+				pool.setMaximumPoolSize(parallelism);
+			}
+
+			this.parallelism = parallelism;
+		}
+
+		for (final RoomQueue queue : rooms.values()) {
+			queue.dispatch();
+		}
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/** Returns the number of waiting commands in all rooms. */
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	/** Returns the number of waiting commands of the specified room. */
+	public int getQueueDepth(final Object room) {
+		final RoomQueue queue = rooms.get(room);
+		return (null == queue) ? 0 : queue.size();
+	}
+
+	/** Returns the number of the commands being executed. */
+	public int getRunning() {
+		return running.get();
+	}
+
+	public long getExecuted() {
+		return executed.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/** Returns the average time the started commands spent in the queue, in msecs. */
+	public long getAverageWait() {
+		return waitTimes.getMean();
+	}
+
+	/** Returns the longest time a started command spent in the queue, in msecs. */
+	public long getMaxWait() {
+		return waitTimes.getMax();
+	}
+
+	/** Returns the distribution of the times the started commands spent in the queue, in msecs. */
+	public Histogram getWaitTimes() {
+		return waitTimes;
+	}
+
+	@Override
+	public String toString() {
+		return "Queue depth: " + getQueueDepth() + ", running: " + getRunning() + " (max " +
+			getParallelism() + " per room), executed: " + getExecuted() + ", rejected: " + getRejected() +
+			", average wait: " + getAverageWait() + " msecs, max wait: " + getMaxWait() + " msecs.";
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** A queued command, remembering the time of its arrival. */
+	private static class Job {
+		final Runnable command;
+		final long queued = System.currentTimeMillis();
+
+		Job(final Runnable command) {
+			this.command = command;
+		}
+	}
+
+	/** The FIFO queue of a room, and the number of its commands being executed. */
+	private class RoomQueue {
+		private final LinkedList<Job> jobs = new LinkedList<Job>();
+		private int active = 0;
+
+		synchronized int size() {
+			return jobs.size();
+		}
+
+		synchronized boolean offer(final Job job) {
+			if (jobs.size() >= queueCapacity) return false;
+
+			jobs.add(job);
+			waiting.incrementAndGet();
+			dispatch();
+			return true;
+		}
+
+		/** Hands the oldest commands over to the pool while the parallelism allows it. */
+		synchronized void dispatch() {
+			while (active < parallelism && !jobs.isEmpty()) {
+				final Job job = jobs.removeFirst();
+				waiting.decrementAndGet();
+				++active;
+
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						execute(job);
+					}
+				});
+			}
+		}
+
+		private void execute(final Job job) {
+			waitTimes.record(System.currentTimeMillis() - job.queued);
+			running.incrementAndGet();
+
+			try {
+				job.command.run();
+			} finally {
+				running.decrementAndGet();
+				executed.incrementAndGet();
+
+				synchronized (this) {
+					--active;
+					dispatch();
+				}
+			}
+		}
+	}
+
+}
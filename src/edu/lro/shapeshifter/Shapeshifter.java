@@ -1,9 +1,18 @@
 package edu.lro.shapeshifter;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.eclipse.ecf.core.IContainer;
 import org.eclipse.ecf.core.identity.ID;
@@ -16,39 +25,341 @@ import org.eclipse.ecf.presence.chatroom.IChatRoomMessageSender;
 
 import edu.lro.shapeshifter.Command.CommandSyntaxException;
 import edu.lro.shapeshifter.engine.Engine;
+import edu.lro.shapeshifter.engine.LearningLog;
+import edu.lro.shapeshifter.engine.Tracer;
+import edu.lro.shapeshifter.engine.Engine.Result;
+import edu.lro.shapeshifter.engine.Loader.InputType;
+import edu.lro.shapeshifter.metrics.Gauge;
+import edu.lro.shapeshifter.metrics.Histogram;
+import edu.lro.shapeshifter.metrics.Metrics;
+import edu.lro.shapeshifter.metrics.MetricsMBean;
 
 /**
  * The message handler (the bot, in practice).
  * 
+ * <p>
+ * The knowledge of the bot is replaced by building a new {@link Engine} on a background thread (see
+ * {@link #reinit(URL, InputType, int)}), the commands are served by the current one until then.
+ * </p>
+ * 
+ * <p>
+ * The messages learned at runtime are appended to a {@link LearningLog} (the file of the
+ * <tt>shapeshifter.wal</tt> system property, <tt>learned.wal</tt> by default; an empty value turns
+ * it off), and learned again by each new engine, so they survive a restart. The log is compacted
+ * into the snapshot of the <tt>shapeshifter.snapshot</tt> system property (<tt>learned.snapshot</tt>
+ * by default), which the bot is started from if it exists.
+ * </p>
+ * 
+ * <p>
+ * The runtime metrics of the bot (see {@link #metrics}) are shown by the <tt>~stats</tt> command,
+ * and are published through JMX as <tt>edu.lro.shapeshifter:type=Metrics</tt>.
+ * </p>
+ * 
  * @author legendi
  */
 public class Shapeshifter implements IChatRoomMessageHandler {
 
 	private IChatRoomMessageSender sender;
 	
+	/** Minimal time between two progress reports of a reinitialization, in msecs. */
+	public static final long PROGRESS_INTERVAL = 10000;
+	
 	public final Random random = new Random();
-	public final Engine engine = new Engine();
+	public final CommandExecutor executor = new CommandExecutor();
+	
+	/** The metrics of the bot: the ones of the engines, and of the commands. */
+	public final Metrics metrics = new Metrics();
+	
+	private final Histogram commandTimes = metrics.histogram("commands.time", "ms");
+	
+	/** The engine serving the commands; replaced at once by a reinitialization. */
+	private final AtomicReference<Engine> engine = new AtomicReference<Engine>(new Engine(metrics));
+	
+	/** The log of the messages learned at runtime, shared by the engines; <code>null</code> if it's turned off. */
+	private final LearningLog log;
+	
+	/** The snapshot the bot is started from, and the log is compacted into; <code>null</code> if it's turned off. */
+	private final File snapshot;
+	
+	/**
+	 * The directory of the snapshots saved and loaded by the <tt>~snapshot</tt> command (the
+	 * <tt>shapeshifter.snapshots</tt> system property, <tt>snapshots</tt> by default).
+	 */
+	private final File snapshotDirectory = new File(System.getProperty("shapeshifter.snapshots", "snapshots"));
+	
+	/** If a reinitialization is in progress. */
+	private final AtomicBoolean reinitializing = new AtomicBoolean(false);
 	
 	public Shapeshifter()
 			throws MalformedURLException, IOException {
 		
 		Command.setShapeshifter(this);
+		getEngine().registerGauges();
+		registerMetrics();
+		
+		snapshot = loadSnapshot();
+		log = openLog();
+		if (log != null) {
+			getEngine().setLog(log);
+		}
 		
 		new Command.ReCommand();
 		new Command.ReplyCommand();
 		new Command.ReinitCommand();
+		new Command.SnapshotCommand();
 		new Command.HelpCommand();
 		new Command.OrderCommand();
 		new Command.DieCommand();
 		new Command.ListCommand();
 		new Command.HHCommand();
 		new Command.SECommand();
+		new Command.TraceCommand();
+		new Command.QueueCommand();
+		new Command.StatsCommand();
+	}
+	
+	/**
+	 * Restores the knowledge of the bot from its snapshot, if it has one; the log is replayed on top
+	 * of it from the mark it was saved at.
+	 */
+	private File loadSnapshot() {
+		final String path = System.getProperty("shapeshifter.snapshot", "learned.snapshot");
+		if (path.length() == 0) return null;
+		
+		final File ret = new File(path);
+		
+		if (ret.exists()) {
+			try {
+				getEngine().loadSnapshot(ret);
+			} catch (final IOException e) {
+				// Starting from the whole log rather than not starting at all
+				e.printStackTrace();
+			}
+		}
+		
+		return ret;
+	}
+	
+	private LearningLog openLog() {
+		final String path = System.getProperty("shapeshifter.wal", "learned.wal");
+		if (path.length() == 0) return null;
+		
+		try {
+			return new LearningLog(new File(path), metrics);
+		} catch (final IOException e) {
+			// Learning without a log rather than not starting at all
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	private void registerMetrics() {
+		metrics.register("queue.wait", executor.getWaitTimes());
+		
+		metrics.gauge("queue.depth", new Gauge() {
+			@Override
+			public long getValue() {
+				return executor.getQueueDepth();
+			}
+		});
+		
+		metrics.gauge("queue.running", new Gauge() {
+			@Override
+			public long getValue() {
+				return executor.getRunning();
+			}
+		});
+		
+		metrics.gauge("queue.rejected", new Gauge() {
+			@Override
+			public long getValue() {
+				return executor.getRejected();
+			}
+		});
+		
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(metrics),
+					new ObjectName("edu.lro.shapeshifter:type=Metrics"));
+		} catch (final JMException e) {
+			// e.g. another bot in the same VM registered it already
+			System.err.println("Cannot register the metrics MBean: " + e.getMessage());
+		}
 	}
 	
 	public IChatRoomMessageSender getSender() {
 		return sender;
 	}
 	
+	/**
+	 * Returns the current engine. A command should take it once, and use that instance: a
+	 * reinitialization may replace it in the meantime.
+	 */
+	public Engine getEngine() {
+		return engine.get();
+	}
+	
+	/**
+	 * Returns the snapshot the bot is started from, and the log is compacted into (see
+	 * {@link Engine#compactLog(File)}); <code>null</code> if it's turned off.
+	 */
+	public File getSnapshot() {
+		return snapshot;
+	}
+	
+	public File getSnapshotDirectory() {
+		return snapshotDirectory;
+	}
+	
+	public boolean isReinitializing() {
+		return reinitializing.get();
+	}
+	
+	/**
+	 * Builds a new engine of the specified order from the given input on a background thread, and
+	 * swaps it in place of the current one when it's ready. The current engine keeps serving the
+	 * commands meanwhile, and is kept if the loading fails. The progress and the result are reported
+	 * to the channel.
+	 * 
+	 * @return false if another reinitialization is already in progress
+	 * @throws IllegalArgumentException if the order is invalid (see {@link Engine#setOrder(int)})
+	 */
+	public boolean reinit(final URL url, final InputType inputType, final int order) {
+		if (!reinitializing.compareAndSet(false, true)) {
+			return false;
+		}
+		
+		final Engine next = new Engine(metrics);
+		
+		try {
+			next.setOrder(order);
+		} catch (final IllegalArgumentException e) {
+			reinitializing.set(false);
+			throw e;
+		}
+		
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					next.setTracer(new ProgressTracer());
+					final long time = next.init(url, inputType);
+					
+					if (log != null) {
+						next.setLog(log);
+					}
+					
+					next.setTracer(getEngine().getTracer());
+					
+					// The previous engine gives the next one its later messages, and the next one learns
+					// the ones of the log received meanwhile before any command sees it
+					final Engine previous = getEngine();
+					final long mark = previous.handOver(next);
+					
+					try {
+						next.catchUpLog(mark);
+					} catch (final IOException e) {
+						// Handed over already; the messages remain in the log for the next replay
+						e.printStackTrace();
+					}
+					
+					engine.set(next);
+					
+					next.registerGauges();
+					previous.shutdown();
+					
+					say("Engine reinitialization of " + url.getPath() + " performed [" + inputType + "], took " +
+							time + " msecs. A sum of " + next.getTupleCount() + " tuples were created.");
+				} catch (final IOException e) {
+					failed(url, e);
+				} catch (final RuntimeException e) {
+					failed(url, e);
+				} catch (final OutOfMemoryError e) {
+					failed(url, e);
+				} finally {
+					reinitializing.set(false);
+				}
+			}
+		}, "Shapeshifter-reinit");
+		
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}//S+reinit(URL,InputType,int)
+	
+	private void failed(final URL url, final Throwable cause) {
+		cause.printStackTrace();
+		say("Reinitialization of " + url.getPath() + " failed (" + cause + "), keeping the current " +
+				"knowledge of " + getEngine().getTupleCount() + " tuples.");
+	}
+	
+	/** Sends the specified message to the channel. */
+	private void say(final String message) {
+		try {
+			sender.sendMessage(message);
+		} catch (final ECFException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/** Reports the progress of a reinitialization to the channel, at most once per {@link #PROGRESS_INTERVAL}. */
+	private class ProgressTracer implements Tracer {
+		private long lastReport = System.currentTimeMillis();
+		
+		@Override
+		public void parsed(final int sentences) {
+			if (System.currentTimeMillis() - lastReport >= PROGRESS_INTERVAL) {
+				lastReport = System.currentTimeMillis();
+				say("Still parsing, " + sentences + " sentences so far...");
+			}
+		}
+		
+		@Override
+		public void info(final String message) {
+			;
+		}
+		
+		@Override
+		public void learned(final String message, final int tuples) {
+			;
+		}
+		
+		@Override
+		public void replyStarted(final String startingWord, final boolean known) {
+			;
+		}
+		
+		@Override
+		public void tupleSelected(final String tuple) {
+			;
+		}
+		
+		@Override
+		public void buildStarted(final boolean forward) {
+			;
+		}
+		
+		@Override
+		public void stepped(final boolean forward, final String candidates, final String chosen,
+				final String shifted, final boolean closing) {
+			;
+		}
+		
+		@Override
+		public void buildFinished(final boolean forward) {
+			;
+		}
+		
+		@Override
+		public void generated(final Result result) {
+			;
+		}
+		
+		@Override
+		public void candidates(final String startingWord, final List<Result> results) {
+			;
+		}
+	}
+	
 	//---------------------------------------------------------------------------------------------------
 	
 	private class InputCommand {
@@ -81,16 +392,17 @@ public class Shapeshifter implements IChatRoomMessageHandler {
 		final Command command = Command.getCommands().get(inputCommand.head);
 		
 		if (null == command) {
+			metrics.counter("commands.unresolved").incrementAndGet();
 			throw new UnresolvedCommandException();
 		}
 		
+		metrics.counter("commands." + command.head).incrementAndGet();
+		
 		return command.getReply(message, inputCommand.args);
 	}
 	
 	//---------------------------------------------------------------------------------------------------
 	
-	private Thread worker = null;
-	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -106,22 +418,13 @@ public class Shapeshifter implements IChatRoomMessageHandler {
 			return;
 		}
 		
-		// The bot processes only one command at a time
+		// The commands are queued per room, and dropped only if the queue is full
 		
-		if (worker != null) {
-			try {
-				sender.sendMessage("Whooa easy maaaaan I'm still working on the previous requests!!");
-			} catch (final ECFException e) {
-				e.printStackTrace();
-			}
-			
-			return;
-		}
-		
-		worker = new Thread() {
+		final boolean accepted = executor.submit(message.getChatRoomID(), new Runnable() {
 			@Override
 				public void run() {
 					final InputCommand command = parseCommandArguments(msg);
+					final long start = System.currentTimeMillis();
 					
 					try {
 						try {
@@ -136,12 +439,15 @@ public class Shapeshifter implements IChatRoomMessageHandler {
 					} catch (final ECFException e) {
 						e.printStackTrace();
 					} finally {
-						worker = null;
+						commandTimes.record(System.currentTimeMillis() - start);
 					}
 			}
-		};
+		});
 		
-		worker.start();
+		if (!accepted) {
+			say("Whooa easy maaaaan I'm still working on the previous " +
+					executor.getQueueDepth(message.getChatRoomID()) + " requests!!");
+		}
 	}
 
 	/*
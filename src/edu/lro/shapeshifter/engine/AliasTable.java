@@ -0,0 +1,118 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Random;
+
+/**
+ * Walker's alias method, to sample the weighted transitions of the compiled models in constant time.
+ *
+ * <p>
+ * Each row of a relation (in compressed-sparse-row layout, see {@link CompactModel}) is divided into
+ * <tt>degree</tt> cells of equal probability. Cell <tt>i</tt> holds the <tt>i</tt>th target with
+ * probability <code>thresholds[i] / ONE</code>, and its <tt>alias</tt> otherwise. Sampling takes a
+ * random cell and a random coin, without any allocation or search.
+ * </p>
+ *
+ * <p>
+ * The tables are built with Vose's algorithm using exact integer arithmetic; only the final
+ * thresholds are rounded to the fixed-point precision of {@link #ONE}.
+ * </p>
+ *
+ * <p>
+ * The classes methods must be called in a static way; instantiation is prohibited.
+ * </p>
+ *
+ * @author legendi
+ */
+final class AliasTable {
+
+	/** The fixed-point representation of probability <tt>1</tt>. */
+	static final int ONE = 1 << 30;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Fills the alias tables of all rows of a relation.
+	 *
+	 * @param offsets the row offsets of the relation
+	 * @param weights the weights of the targets
+	 * @param thresholds output: the probability of keeping the target of a cell, in units of
+	 * 			{@link #ONE}
+	 * @param aliases output: the alternate target of a cell, as an index within the row
+	 */
+	static void build(final int[] offsets, final int[] weights, final int[] thresholds, final int[] aliases) {
+		int maxDegree = 0;
+		for (int row = 0; row + 1 < offsets.length; ++row) {
+			maxDegree = Math.max(maxDegree, offsets[row + 1] - offsets[row]);
+		}
+
+		final long[] scaled = new long[maxDegree];
+		final int[] small = new int[maxDegree];
+		final int[] large = new int[maxDegree];
+
+		for (int row = 0; row + 1 < offsets.length; ++row) {
+			final int offset = offsets[row];
+			final int degree = offsets[row + 1] - offset;
+
+			long total = 0;
+			for (int i = 0; i < degree; ++i) {
+				total += weights[offset + i];
+			}
+
+			// Each cell can hold a weight of 'total' after scaling by the degree
+			int smalls = 0, larges = 0;
+			for (int i = 0; i < degree; ++i) {
+				scaled[i] = (long) weights[offset + i] * degree;
+
+				if (scaled[i] < total) {
+					small[smalls++] = i;
+				} else {
+					large[larges++] = i;
+				}
+			}
+
+			while (smalls > 0 && larges > 0) {
+				final int s = small[--smalls];
+				final int l = large[--larges];
+
+				thresholds[offset + s] = (int) (scaled[s] * ONE / total);
+				aliases[offset + s] = l;
+
+				// The large one fills up the rest of the cell of the small one
+				scaled[l] -= total - scaled[s];
+
+				if (scaled[l] < total) {
+					small[smalls++] = l;
+				} else {
+					large[larges++] = l;
+				}
+			}
+
+			// The remaining ones are full (up to rounding errors)
+			while (larges > 0) {
+				final int l = large[--larges];
+				thresholds[offset + l] = ONE;
+				aliases[offset + l] = l;
+			}
+
+			while (smalls > 0) {
+				final int s = small[--smalls];
+				thresholds[offset + s] = ONE;
+				aliases[offset + s] = s;
+			}
+		}
+	}
+
+	/**
+	 * Returns a random index within the specified row, according to its alias table.
+	 */
+	static int sample(final int offset, final int degree, final int[] thresholds, final int[] aliases,
+			final Random random) {
+		if (1 == degree) return 0;
+
+		final int cell = random.nextInt(degree);
+		return (random.nextInt(ONE) < thresholds[offset + cell]) ? cell : aliases[offset + cell];
+	}
+
+	/** Hiding the constructor, to prohibit instantiation. */
+	private AliasTable() {};
+}
@@ -0,0 +1,137 @@
+package edu.lro.shapeshifter.engine;
+
+/**
+ * A Bloom filter of words: a compact set answering if a word is <i>possibly</i> in it, or
+ * <i>certainly not</i>.
+ *
+ * <p>
+ * The size of the bit array and the number of the hash functions are chosen for the expected
+ * number of the words and the requested false positive rate. The positions of a word are derived
+ * from a single 64 bit hash of its characters by double hashing (<tt>h1 + i * h2</tt>).
+ * </p>
+ *
+ * <p>
+ * The filter has a single writer (adding the words under the write lock of the {@link Engine}) and
+ * any number of readers: a reader may miss the bits of a word being added concurrently, which is
+ * fine as the word isn't published yet at that time.
+ * </p>
+ *
+ * @author legendi
+ */
+final class BloomFilter {
+
+	private final long[] bits;
+
+	/** Number of the bits, a multiple of 64. */
+	private final long size;
+	private final int hashes;
+
+	/** The expected number of the words, and the number of the ones added so far. */
+	private final int capacity;
+	private volatile int count = 0;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Creates a filter that has the specified false positive rate (<tt>0 &lt; fpp &lt; 1</tt>) when
+	 * it holds <tt>capacity</tt> words.
+	 */
+	BloomFilter(final int capacity, final double fpp) {
+		if (capacity < 1 || fpp <= 0 || 1 <= fpp) {
+			throw new IllegalArgumentException("Invalid capacity or false positive rate: " + capacity + ", " + fpp);
+		}
+
+		final double ln2 = Math.log(2);
+		final long optimal = (long) Math.ceil(-capacity * Math.log(fpp) / (ln2 * ln2));
+
+		this.capacity = capacity;
+		bits = new long[(int) Math.max(1, (optimal + 63) >>> 6)];
+		size = 64L * bits.length;
+		hashes = Math.max(1, (int) Math.round((double) size / capacity * ln2));
+	}
+
+	/** Creates a filter of the words of the specified model, with room for as many new ones. */
+	static BloomFilter of(final Model model, final double fpp) {
+		final BloomFilter ret = new BloomFilter(Math.max(1024, 2 * model.wordCount()), fpp);
+
+		for (int word = 0; word < model.wordCount(); ++word) {
+			ret.add(model.word(word));
+		}
+
+		return ret;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Adds the specified word to the filter (not thread-safe, there must be a single writer). */
+	void add(final String word) {
+		final long hash = hash(word);
+		final long h1 = hash >>> 32, h2 = (hash & 0xFFFFFFFFL) | 1;
+		boolean changed = false;
+
+		for (int i = 0; i < hashes; ++i) {
+			final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			final long mask = 1L << bit;
+
+			if (0 == (bits[(int) (bit >>> 6)] & mask)) {
+				bits[(int) (bit >>> 6)] |= mask;
+				changed = true;
+			}
+		}
+
+		if (changed) {
+			++count;
+		}
+	}
+
+	/** Returns false if the specified word was certainly not added to the filter. */
+	boolean mightContain(final String word) {
+		final long hash = hash(word);
+		final long h1 = hash >>> 32, h2 = (hash & 0xFFFFFFFFL) | 1;
+
+		for (int i = 0; i < hashes; ++i) {
+			final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			if (0 == (bits[(int) (bit >>> 6)] & (1L << bit))) return false;
+		}
+
+		return true;
+	}
+
+	/** FNV-1a over the characters, with a final avalanche so both halves are usable. */
+	private static long hash(final String word) {
+		long ret = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < word.length(); ++i) {
+			ret ^= word.charAt(i);
+			ret *= 0x100000001b3L;
+		}
+
+		ret ^= ret >>> 33;
+		ret *= 0xff51afd7ed558ccdL;
+		ret ^= ret >>> 33;
+		return ret;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns the number of the (distinct) words added so far. */
+	int count() {
+		return count;
+	}
+
+	/** Returns true if more words were added than the filter was sized for. */
+	boolean isFull() {
+		return count > capacity;
+	}
+
+	/** Returns the expected false positive rate at the current number of words. */
+	double getExpectedFpp() {
+		return Math.pow(1 - Math.exp(-(double) hashes * count / size), hashes);
+	}
+
+	/** Returns the estimated heap footprint of the filter in bytes. */
+	long footprint() {
+		return 48 + 8L * bits.length;
+	}
+
+}
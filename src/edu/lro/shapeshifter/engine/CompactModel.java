@@ -0,0 +1,284 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Random;
+
+/**
+ * The frozen, read-optimized form of a {@link StagingModel}.
+ *
+ * <p>
+ * All relations are compiled into flat <tt>int</tt> arrays in compressed-sparse-row layout: the
+ * targets of row <tt>i</tt> are <code>targets[offsets[i] .. offsets[i + 1])</code>. The rows keep the
+ * insertion order of the staging model. The starter/finisher descriptors are plain bitsets, and the
+ * word to state relation is bit-packed (see {@link PostingLists}).
+ * </p>
+ *
+ * <p>
+ * The transitions carry their weights, and an {@link AliasTable} per row, so the random walk of the
+ * generation picks the next state in constant time.
+ * </p>
+ *
+ * <p>
+ * The model is immutable: it has its own copy of the {@link Dictionary} of the staging model it was
+ * compiled from, so it can be read by any number of threads while the staging model keeps learning.
+ * </p>
+ * 
+ * <p>
+ * The arrays are accessible in the package to let {@link Snapshot} dump and restore them in bulk.
+ * </p>
+ *
+ * @author legendi
+ */
+final class CompactModel implements Model {
+
+	final int order;
+	final int size;
+
+	final Dictionary dictionary;
+
+	/** Number of words known at the time of the freeze. */
+	final int wordCount;
+
+	/** The word ids of the states, <tt>order</tt> consecutive ids per state. */
+	final int[] tokens;
+
+	final int[] followOffsets;
+	final int[] followTargets;
+	final int[] followWeights;
+	final int[] followThresholds;
+	final int[] followAliases;
+
+	final int[] precedeOffsets;
+	final int[] precedeTargets;
+	final int[] precedeWeights;
+	final int[] precedeThresholds;
+	final int[] precedeAliases;
+
+	/** The states containing each word. */
+	final PostingLists containers;
+
+	final long[] starters;
+	final long[] finishers;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Compiles the current content of the specified staging model. */
+	CompactModel(final StagingModel staging) {
+		this(staging, staging.dictionary().copy());
+	}
+
+	/**
+	 * Compiles the current content of the specified staging model, using the given copy of its
+	 * dictionary (shared by the models compiled from the same {@link OrderSet}).
+	 */
+	CompactModel(final StagingModel staging, final Dictionary dictionary) {
+		order = staging.order();
+		size = staging.size();
+		this.dictionary = dictionary;
+		wordCount = dictionary.size();
+
+		tokens = new int[size * order];
+		starters = new long[(size + 63) >>> 6];
+		finishers = new long[(size + 63) >>> 6];
+
+		followOffsets = new int[size + 1];
+		precedeOffsets = new int[size + 1];
+
+		for (int state = 0; state < size; ++state) {
+			for (int pos = 0; pos < order; ++pos) {
+				tokens[state * order + pos] = staging.token(state, pos);
+			}
+
+			if (staging.isStarter(state)) set(starters, state);
+			if (staging.isFinisher(state)) set(finishers, state);
+
+			followOffsets[state + 1] = followOffsets[state] + staging.followingCount(state);
+			precedeOffsets[state + 1] = precedeOffsets[state] + staging.precedingCount(state);
+		}
+
+		followTargets = new int[followOffsets[size]];
+		followWeights = new int[followOffsets[size]];
+		precedeTargets = new int[precedeOffsets[size]];
+		precedeWeights = new int[precedeOffsets[size]];
+
+		for (int state = 0; state < size; ++state) {
+			for (int i = 0, off = followOffsets[state]; off < followOffsets[state + 1]; ++i, ++off) {
+				followTargets[off] = staging.following(state, i);
+				followWeights[off] = staging.followingWeight(state, i);
+			}
+
+			for (int i = 0, off = precedeOffsets[state]; off < precedeOffsets[state + 1]; ++i, ++off) {
+				precedeTargets[off] = staging.preceding(state, i);
+				precedeWeights[off] = staging.precedingWeight(state, i);
+			}
+		}
+
+		followThresholds = new int[followTargets.length];
+		followAliases = new int[followTargets.length];
+		AliasTable.build(followOffsets, followWeights, followThresholds, followAliases);
+
+		precedeThresholds = new int[precedeTargets.length];
+		precedeAliases = new int[precedeTargets.length];
+		AliasTable.build(precedeOffsets, precedeWeights, precedeThresholds, precedeAliases);
+
+		final int[] containerOffsets = new int[wordCount + 1];
+		for (int word = 0; word < wordCount; ++word) {
+			containerOffsets[word + 1] = containerOffsets[word] + staging.containerCount(word);
+		}
+
+		final int[] containerTargets = new int[containerOffsets[wordCount]];
+		for (int word = 0; word < wordCount; ++word) {
+			for (int i = 0, off = containerOffsets[word]; off < containerOffsets[word + 1]; ++i, ++off) {
+				containerTargets[off] = staging.container(word, i);
+			}
+		}
+
+		containers = new PostingLists(containerOffsets, containerTargets);
+	}
+
+	/** Creates a model from already compiled arrays. */
+	CompactModel(final int order, final Dictionary dictionary, final int[] tokens,
+			final int[] followOffsets, final int[] followTargets, final int[] followWeights,
+			final int[] followThresholds, final int[] followAliases,
+			final int[] precedeOffsets, final int[] precedeTargets, final int[] precedeWeights,
+			final int[] precedeThresholds, final int[] precedeAliases,
+			final int[] containerOffsets, final int[] containerTargets,
+			final long[] starters, final long[] finishers) {
+		this.order = order;
+		this.size = tokens.length / order;
+		this.dictionary = dictionary;
+		this.wordCount = containerOffsets.length - 1;
+		this.tokens = tokens;
+		this.followOffsets = followOffsets;
+		this.followTargets = followTargets;
+		this.followWeights = followWeights;
+		this.followThresholds = followThresholds;
+		this.followAliases = followAliases;
+		this.precedeOffsets = precedeOffsets;
+		this.precedeTargets = precedeTargets;
+		this.precedeWeights = precedeWeights;
+		this.precedeThresholds = precedeThresholds;
+		this.precedeAliases = precedeAliases;
+		this.containers = new PostingLists(containerOffsets, containerTargets);
+		this.starters = starters;
+		this.finishers = finishers;
+	}
+
+	private static void set(final long[] bits, final int index) {
+		bits[index >>> 6] |= 1L << index;
+	}
+
+	private static boolean get(final long[] bits, final int index) {
+		return 0 != (bits[index >>> 6] & (1L << index));
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	//--- Model -----------------------------------------------------------------------------------------
+
+	@Override
+	public int order() {
+		return order;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int wordCount() {
+		return wordCount;
+	}
+
+	@Override
+	public int edgeCount() {
+		return followTargets.length;
+	}
+
+	@Override
+	public long footprint() {
+		return 256 + dictionary.footprint() + 4L * (tokens.length + followOffsets.length + precedeOffsets.length +
+				5L * followTargets.length + 5L * precedeTargets.length) + containers.footprint() +
+				8L * (starters.length + finishers.length);
+	}
+
+	@Override
+	public int token(final int state, final int pos) {
+		return tokens[state * order + pos];
+	}
+
+	@Override
+	public int lookup(final String word) {
+		final int id = dictionary.lookup(word);
+		return (id < wordCount) ? id : -1;
+	}
+
+	@Override
+	public String word(final int id) {
+		return dictionary.word(id);
+	}
+
+	@Override
+	public boolean isStarter(final int state) {
+		return get(starters, state);
+	}
+
+	@Override
+	public boolean isFinisher(final int state) {
+		return get(finishers, state);
+	}
+
+	@Override
+	public int followingCount(final int state) {
+		return followOffsets[state + 1] - followOffsets[state];
+	}
+
+	@Override
+	public int following(final int state, final int index) {
+		return followTargets[followOffsets[state] + index];
+	}
+
+	@Override
+	public int followingWeight(final int state, final int index) {
+		return followWeights[followOffsets[state] + index];
+	}
+
+	@Override
+	public int nextFollowing(final int state, final Random random) {
+		final int offset = followOffsets[state];
+		return followTargets[offset + AliasTable.sample(offset, followOffsets[state + 1] - offset,
+				followThresholds, followAliases, random)];
+	}
+
+	@Override
+	public int precedingCount(final int state) {
+		return precedeOffsets[state + 1] - precedeOffsets[state];
+	}
+
+	@Override
+	public int preceding(final int state, final int index) {
+		return precedeTargets[precedeOffsets[state] + index];
+	}
+
+	@Override
+	public int precedingWeight(final int state, final int index) {
+		return precedeWeights[precedeOffsets[state] + index];
+	}
+
+	@Override
+	public int nextPreceding(final int state, final Random random) {
+		final int offset = precedeOffsets[state];
+		return precedeTargets[offset + AliasTable.sample(offset, precedeOffsets[state + 1] - offset,
+				precedeThresholds, precedeAliases, random)];
+	}
+
+	@Override
+	public int containerCount(final int word) {
+		return (word < wordCount) ? containers.size(word) : 0;
+	}
+
+	@Override
+	public int container(final int word, final int index) {
+		return containers.get(word, index);
+	}
+
+}
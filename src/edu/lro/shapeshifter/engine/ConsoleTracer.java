@@ -0,0 +1,101 @@
+package edu.lro.shapeshifter.engine;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import edu.lro.shapeshifter.engine.Engine.Result;
+
+/**
+ * The verbose output of the {@link Engine}: prints every event to a stream (the standard output by
+ * default).
+ *
+ * <p>
+ * The output of the generation shows how the sentence is built, see the <i>readme</i> for an
+ * example. It's useful for debugging, but costs a lot more than the generation itself.
+ * </p>
+ *
+ * @author legendi
+ */
+public class ConsoleTracer implements Tracer {
+
+	private final PrintStream out;
+
+	public ConsoleTracer() {
+		this(System.out);
+	}
+
+	public ConsoleTracer(final PrintStream out) {
+		this.out = out;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	@Override
+	public void parsed(final int sentences) {
+		out.println("Parsed " + sentences + " lines so far.");
+	}
+
+	@Override
+	public void info(final String message) {
+		out.println(message);
+	}
+
+	@Override
+	public void learned(final String message, final int tuples) {
+		out.println(">> Learned " + tuples + " tuples from: " + message);
+	}
+
+	@Override
+	public void replyStarted(final String startingWord, final boolean known) {
+		out.println(">> Trying to reply to word: " + startingWord +
+				( !known ? " [UNKNOWN]" : ""));
+	}
+
+	@Override
+	public void tupleSelected(final String tuple) {
+		out.println(">> Selected tuple: " + tuple);
+		out.println();
+	}
+
+	@Override
+	public void buildStarted(final boolean forward) {
+		out.println("--------------------------------------------------------- Building " +
+				(forward ? "postfix" : "prefix"));
+	}
+
+	@Override
+	public void stepped(final boolean forward, final String candidates, final String chosen,
+			final String shifted, final boolean closing) {
+		out.println(">> Available " + (forward ? "next" : "prev") + " tokens: " + candidates);
+		out.println(">> Chosen one is: " + chosen);
+		out.println(">> Shifted tuple is: " + shifted +
+				(closing ? (forward ? " (finisher)" : " (starter)") : ""));
+		out.println();
+	}
+
+	@Override
+	public void buildFinished(final boolean forward) {
+		out.println(">> Finished!");
+		out.println();
+	}
+
+	@Override
+	public void generated(final Result result) {
+		out.println(result);
+		out.println("==========================================================================");
+		out.println();
+		out.println();
+	}
+
+	@Override
+	public void candidates(final String startingWord, final List<Result> results) {
+		out.println();
+		out.println();
+		out.println("----------------------------------------------------------------------");
+		out.println("Candidates for input string [" + startingWord + "]");
+		out.println("----------------------------------------------------------------------");
+		for (final Result result : results) out.println(result);
+		out.println("----------------------------------------------------------------------");
+	}
+
+}
@@ -0,0 +1,380 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * The frozen form of a {@link StagingModel} which changed only a little since it was compiled into a
+ * {@link CompactModel}: the compiled model (the base), and a compiled copy of the changes on top of it.
+ *
+ * <p>
+ * Only the rows of the states changed since the base (see {@link StagingModel#changedStates()}),
+ * the containers of the changed words and the new words are copied, in the same layout as the base
+ * (compressed-sparse-row arrays with alias tables); every other query is answered by the base. So
+ * the cost of a publication is proportional to the changes since the base, not to the size of the
+ * model. The {@link Engine} compiles a new base once the changes grow too large (see
+ * {@link #cost(CompactModel, StagingModel)}).
+ * </p>
+ *
+ * <p>
+ * The changed states and words are found through small open-addressing tables. The containers of a
+ * word which was only appended to are the ones of the base, followed by the new ones of the delta;
+ * the ones of a word which lost some are copied entirely, as their order changed.
+ * </p>
+ *
+ * <p>
+ * The model is immutable, like its base: the new words are copied into a dictionary of their own.
+ * </p>
+ *
+ * @author legendi
+ */
+final class DeltaModel implements Model {
+
+	/** Marks an empty slot in the hash tables (states and words are never negative). */
+	private static final int EMPTY = -1;
+
+	private final CompactModel base;
+
+	private final int order;
+	private final int size;
+	private final int wordCount;
+	private final int edgeCount;
+
+	/** The words added since the base, the id of the first one is the word count of the base. */
+	private final Dictionary words;
+
+	/** The changed states and their rows in the arrays below. */
+	private final int[] stateKeys;
+	private final int[] stateRows;
+
+	/** The word ids of the changed states, <tt>order</tt> consecutive ids per row. */
+	private final int[] tokens;
+	private final long[] starters;
+	private final long[] finishers;
+
+	private final int[] followOffsets;
+	private final int[] followTargets;
+	private final int[] followWeights;
+	private final int[] followThresholds;
+	private final int[] followAliases;
+
+	private final int[] precedeOffsets;
+	private final int[] precedeTargets;
+	private final int[] precedeWeights;
+	private final int[] precedeThresholds;
+	private final int[] precedeAliases;
+
+	/** The changed words and their lists in the arrays below. */
+	private final int[] wordKeys;
+	private final int[] wordLists;
+
+	/** The number of the leading containers of each list read from the base. */
+	private final int[] containerBases;
+	private final int[] containerOffsets;
+	private final int[] containerTargets;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Compiles the changes of the specified staging model since the given base, which must be the
+	 * model it was last compiled into (or created from).
+	 */
+	DeltaModel(final CompactModel base, final StagingModel staging) {
+		this.base = base;
+		order = staging.order();
+		size = staging.size();
+		wordCount = staging.wordCount();
+		edgeCount = staging.edgeCount();
+
+		words = new Dictionary();
+		for (int word = base.wordCount(); word < wordCount; ++word) {
+			words.add(staging.word(word));
+		}
+
+		final BitSet changed = staging.changedStates();
+		final int rows = changed.cardinality();
+
+		stateKeys = newTable(rows);
+		stateRows = new int[stateKeys.length];
+		tokens = new int[rows * order];
+		starters = new long[(rows + 63) >>> 6];
+		finishers = new long[(rows + 63) >>> 6];
+		followOffsets = new int[rows + 1];
+		precedeOffsets = new int[rows + 1];
+
+		for (int state = changed.nextSetBit(0), row = 0; state >= 0; state = changed.nextSetBit(state + 1), ++row) {
+			put(stateKeys, stateRows, state, row);
+
+			for (int pos = 0; pos < order; ++pos) {
+				tokens[row * order + pos] = staging.token(state, pos);
+			}
+
+			if (staging.isStarter(state)) set(starters, row);
+			if (staging.isFinisher(state)) set(finishers, row);
+
+			followOffsets[row + 1] = followOffsets[row] + staging.followingCount(state);
+			precedeOffsets[row + 1] = precedeOffsets[row] + staging.precedingCount(state);
+		}
+
+		followTargets = new int[followOffsets[rows]];
+		followWeights = new int[followOffsets[rows]];
+		precedeTargets = new int[precedeOffsets[rows]];
+		precedeWeights = new int[precedeOffsets[rows]];
+
+		for (int state = changed.nextSetBit(0), row = 0; state >= 0; state = changed.nextSetBit(state + 1), ++row) {
+			for (int i = 0, off = followOffsets[row]; off < followOffsets[row + 1]; ++i, ++off) {
+				followTargets[off] = staging.following(state, i);
+				followWeights[off] = staging.followingWeight(state, i);
+			}
+
+			for (int i = 0, off = precedeOffsets[row]; off < precedeOffsets[row + 1]; ++i, ++off) {
+				precedeTargets[off] = staging.preceding(state, i);
+				precedeWeights[off] = staging.precedingWeight(state, i);
+			}
+		}
+
+		followThresholds = new int[followTargets.length];
+		followAliases = new int[followTargets.length];
+		AliasTable.build(followOffsets, followWeights, followThresholds, followAliases);
+
+		precedeThresholds = new int[precedeTargets.length];
+		precedeAliases = new int[precedeTargets.length];
+		AliasTable.build(precedeOffsets, precedeWeights, precedeThresholds, precedeAliases);
+
+		final BitSet changedWords = changedWords(staging);
+		final int lists = changedWords.cardinality();
+
+		wordKeys = newTable(lists);
+		wordLists = new int[wordKeys.length];
+		containerBases = new int[lists];
+		containerOffsets = new int[lists + 1];
+
+		for (int word = changedWords.nextSetBit(0), list = 0; word >= 0; word = changedWords.nextSetBit(word + 1), ++list) {
+			put(wordKeys, wordLists, word, list);
+
+			containerBases[list] = staging.shrunkWords().get(word) ? 0 : base.containerCount(word);
+			containerOffsets[list + 1] = containerOffsets[list] + staging.containerCount(word) - containerBases[list];
+		}
+
+		containerTargets = new int[containerOffsets[lists]];
+
+		for (int word = changedWords.nextSetBit(0), list = 0; word >= 0; word = changedWords.nextSetBit(word + 1), ++list) {
+			for (int i = containerBases[list], off = containerOffsets[list]; off < containerOffsets[list + 1]; ++i, ++off) {
+				containerTargets[off] = staging.container(word, i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the size of the delta of the specified staging model over the given base, in states,
+	 * transitions, words and containers: the work of the {@link #DeltaModel(CompactModel, StagingModel)
+	 * compilation}, and about the number of the <tt>int</tt>s it allocates.
+	 */
+	static long cost(final CompactModel base, final StagingModel staging) {
+		long ret = staging.wordCount() - base.wordCount();
+
+		final BitSet changed = staging.changedStates();
+		for (int state = changed.nextSetBit(0); state >= 0; state = changed.nextSetBit(state + 1)) {
+			ret += 1 + staging.followingCount(state) + staging.precedingCount(state);
+		}
+
+		final BitSet changedWords = changedWords(staging);
+		for (int word = changedWords.nextSetBit(0); word >= 0; word = changedWords.nextSetBit(word + 1)) {
+			ret += 1 + staging.containerCount(word) - (staging.shrunkWords().get(word) ? 0 : base.containerCount(word));
+		}
+
+		return ret;
+	}
+
+	private static BitSet changedWords(final StagingModel staging) {
+		final BitSet ret = (BitSet) staging.grownWords().clone();
+		ret.or(staging.shrunkWords());
+		return ret;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns an empty hash table for the specified number of keys, at most half full. */
+	private static int[] newTable(final int count) {
+		final int[] ret = new int[Integer.highestOneBit(Math.max(1, count)) << 2];
+		Arrays.fill(ret, EMPTY);
+		return ret;
+	}
+
+	private static int slot(final int key, final int mask) {
+		final int hash = key * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private static void put(final int[] keys, final int[] values, final int key, final int value) {
+		final int mask = keys.length - 1;
+		int slot = slot(key, mask);
+
+		while (EMPTY != keys[slot]) slot = (slot + 1) & mask;
+
+		keys[slot] = key;
+		values[slot] = value;
+	}
+
+	/** Returns the value of the specified key, or <code>-1</code> if it's not stored. */
+	private static int get(final int[] keys, final int[] values, final int key) {
+		final int mask = keys.length - 1;
+
+		for (int slot = slot(key, mask); EMPTY != keys[slot]; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) return values[slot];
+		}
+
+		return -1;
+	}
+
+	private static void set(final long[] bits, final int index) {
+		bits[index >>> 6] |= 1L << index;
+	}
+
+	private static boolean get(final long[] bits, final int index) {
+		return 0 != (bits[index >>> 6] & (1L << index));
+	}
+
+	/** Returns the row of the specified state, or <code>-1</code> if it's read from the base. */
+	private int row(final int state) {
+		return get(stateKeys, stateRows, state);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	//--- Model -----------------------------------------------------------------------------------------
+
+	@Override
+	public int order() {
+		return order;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int wordCount() {
+		return wordCount;
+	}
+
+	@Override
+	public int edgeCount() {
+		return edgeCount;
+	}
+
+	@Override
+	public long footprint() {
+		return 256 + base.footprint() + words.footprint() + 4L * (stateKeys.length + stateRows.length +
+				tokens.length + followOffsets.length + precedeOffsets.length + 5L * followTargets.length +
+				5L * precedeTargets.length + wordKeys.length + wordLists.length + containerBases.length +
+				containerOffsets.length + containerTargets.length) + 8L * (starters.length + finishers.length);
+	}
+
+	@Override
+	public int token(final int state, final int pos) {
+		final int row = row(state);
+		return (row < 0) ? base.token(state, pos) : tokens[row * order + pos];
+	}
+
+	@Override
+	public int lookup(final String word) {
+		final int id = base.lookup(word);
+		if (id >= 0) return id;
+
+		final int added = words.lookup(word);
+		return (added < 0) ? -1 : base.wordCount() + added;
+	}
+
+	@Override
+	public String word(final int id) {
+		return (id < base.wordCount()) ? base.word(id) : words.word(id - base.wordCount());
+	}
+
+	@Override
+	public boolean isStarter(final int state) {
+		final int row = row(state);
+		return (row < 0) ? base.isStarter(state) : get(starters, row);
+	}
+
+	@Override
+	public boolean isFinisher(final int state) {
+		final int row = row(state);
+		return (row < 0) ? base.isFinisher(state) : get(finishers, row);
+	}
+
+	@Override
+	public int followingCount(final int state) {
+		final int row = row(state);
+		return (row < 0) ? base.followingCount(state) : followOffsets[row + 1] - followOffsets[row];
+	}
+
+	@Override
+	public int following(final int state, final int index) {
+		final int row = row(state);
+		return (row < 0) ? base.following(state, index) : followTargets[followOffsets[row] + index];
+	}
+
+	@Override
+	public int followingWeight(final int state, final int index) {
+		final int row = row(state);
+		return (row < 0) ? base.followingWeight(state, index) : followWeights[followOffsets[row] + index];
+	}
+
+	@Override
+	public int nextFollowing(final int state, final Random random) {
+		final int row = row(state);
+		if (row < 0) return base.nextFollowing(state, random);
+
+		final int offset = followOffsets[row];
+		return followTargets[offset + AliasTable.sample(offset, followOffsets[row + 1] - offset,
+				followThresholds, followAliases, random)];
+	}
+
+	@Override
+	public int precedingCount(final int state) {
+		final int row = row(state);
+		return (row < 0) ? base.precedingCount(state) : precedeOffsets[row + 1] - precedeOffsets[row];
+	}
+
+	@Override
+	public int preceding(final int state, final int index) {
+		final int row = row(state);
+		return (row < 0) ? base.preceding(state, index) : precedeTargets[precedeOffsets[row] + index];
+	}
+
+	@Override
+	public int precedingWeight(final int state, final int index) {
+		final int row = row(state);
+		return (row < 0) ? base.precedingWeight(state, index) : precedeWeights[precedeOffsets[row] + index];
+	}
+
+	@Override
+	public int nextPreceding(final int state, final Random random) {
+		final int row = row(state);
+		if (row < 0) return base.nextPreceding(state, random);
+
+		final int offset = precedeOffsets[row];
+		return precedeTargets[offset + AliasTable.sample(offset, precedeOffsets[row + 1] - offset,
+				precedeThresholds, precedeAliases, random)];
+	}
+
+	@Override
+	public int containerCount(final int word) {
+		final int list = get(wordKeys, wordLists, word);
+		if (list < 0) return base.containerCount(word);
+
+		return containerBases[list] + containerOffsets[list + 1] - containerOffsets[list];
+	}
+
+	@Override
+	public int container(final int word, final int index) {
+		final int list = get(wordKeys, wordLists, word);
+		if (list < 0) return base.container(word, index);
+
+		final int bases = containerBases[list];
+		return (index < bases) ? base.container(word, index) : containerTargets[containerOffsets[list] + index - bases];
+	}
+
+}
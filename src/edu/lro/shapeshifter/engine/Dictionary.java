@@ -0,0 +1,185 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Arrays;
+
+/**
+ * The vocabulary of the {@link Engine}: assigns a unique <tt>int</tt> id to each known word.
+ *
+ * <p>
+ * Ids are handed out sequentially in the order of the first occurrence of the words, starting from
+ * <tt>0</tt>. Every other structure of the engine refers to words only by their ids, so each word
+ * string is stored exactly once.
+ * </p>
+ *
+ * <p>
+ * The lookup table is a simple open-addressing hash table of ids (linear probing), keyed by the
+ * {@link String#hashCode()} of the words. Words can be looked up and added as ranges of a
+ * <tt>char[]</tt> as well (see {@link #add(char[], int, int)}): the hash of the range is computed
+ * the same way, so the tokenizer doesn't have to create a <tt>String</tt> for the known words.
+ * </p>
+ *
+ * @author legendi
+ */
+public class Dictionary {
+
+	/** Marks an empty slot in the hash table. */
+	private static final int EMPTY = -1;
+
+	/** The known words, indexed by their ids. */
+	private String[] words = new String[1024];
+
+	/** Number of the known words. */
+	private int size = 0;
+
+	/** Open-addressing hash table of word ids. */
+	private int[] table = newTable(2048);
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns the number of known words. */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the estimated heap footprint of the dictionary in bytes, assuming the words are short
+	 * (<tt>48</tt> bytes per word).
+	 */
+	long footprint() {
+		return 32 + 4L * words.length + 4L * table.length + 48L * size;
+	}
+
+	/** Returns the word for the specified id. */
+	public String word(final int id) {
+		if (id < 0 || id >= size)
+			throw new ArrayIndexOutOfBoundsException(id);
+
+		return words[id];
+	}
+
+	/**
+	 * Returns the id of the specified word.
+	 *
+	 * @return the id of the word, or <code>-1</code> if the word is unknown
+	 */
+	public int lookup(final String word) {
+		final int mask = table.length - 1;
+
+		for (int slot = mix(word.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+			final int id = table[slot];
+
+			if (EMPTY == id) return -1;
+			if (words[id].equals(word)) return id;
+		}
+	}
+
+	/**
+	 * Returns the id of the specified word, registering it first if it's a new one.
+	 */
+	public int add(final String word) {
+		final int mask = table.length - 1;
+		int slot = mix(word.hashCode()) & mask;
+
+		for (; EMPTY != table[slot]; slot = (slot + 1) & mask) {
+			if (words[table[slot]].equals(word)) return table[slot];
+		}
+
+		if (size == words.length) {
+			final String[] tmp = new String[size * 2];
+			System.arraycopy(words, 0, tmp, 0, size);
+			words = tmp;
+		}
+
+		final int id = size++;
+		words[id] = word;
+		table[slot] = id;
+
+		// Keeping the load factor under 0.5
+		if (2 * size > table.length) {
+			rehash(table.length * 2);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Returns the id of the word in the <code>text[start .. end)</code> range, registering it first if
+	 * it's a new one (the <tt>String</tt> of the word is created only in this case).
+	 */
+	public int add(final char[] text, final int start, final int end) {
+		final int mask = table.length - 1;
+		int slot = mix(hashCode(text, start, end)) & mask;
+
+		for (; EMPTY != table[slot]; slot = (slot + 1) & mask) {
+			if (matches(words[table[slot]], text, start, end)) return table[slot];
+		}
+
+		return add(new String(text, start, end - start));
+	}
+
+	/** Returns an independent copy of the dictionary (the word strings themselves are shared). */
+	Dictionary copy() {
+		final Dictionary ret = new Dictionary();
+		ret.words = words.clone();
+		ret.size = size;
+		ret.table = table.clone();
+		return ret;
+	}
+
+	public void clear() {
+		words = new String[1024];
+		size = 0;
+		table = newTable(2048);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private void rehash(final int capacity) {
+		table = newTable(capacity);
+		final int mask = capacity - 1;
+
+		for (int id = 0; id < size; ++id) {
+			int slot = mix(words[id].hashCode()) & mask;
+			while (EMPTY != table[slot]) slot = (slot + 1) & mask;
+			table[slot] = id;
+		}
+	}
+
+	/** Same as the {@link String#hashCode()} of the range. */
+	static int hashCode(final char[] text, final int start, final int end) {
+		int h = 0;
+
+		for (int i = start; i < end; ++i) {
+			h = 31 * h + text[i];
+		}
+
+		return h;
+	}
+
+	private static boolean matches(final String word, final char[] text, final int start, final int end) {
+		if (word.length() != end - start) return false;
+
+		for (int i = start; i < end; ++i) {
+			if (word.charAt(i - start) != text[i]) return false;
+		}
+
+		return true;
+	}
+
+	private static int[] newTable(final int capacity) {
+		final int[] ret = new int[capacity];
+		Arrays.fill(ret, EMPTY);
+		return ret;
+	}
+
+	/** Spreads the bits of weak hash codes over the table (the finalizer step of MurmurHash3). */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
@@ -0,0 +1,241 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A multiset of <tt>(source, target)</tt> int pairs, grouped by source: the primitive replacement of
+ * the <tt>Map&lt;Tuple, LinkedHashSet&lt;String&gt;&gt;</tt> relations of the engine.
+ *
+ * <p>
+ * The distinct targets of each source are kept in insertion order in their own <tt>int[]</tt>,
+ * along with the number of occurrences of the pair. Duplicates are found through an open-addressing
+ * hash table keyed by the packed pair, which also stores the position of the pair in the list of
+ * its source. Removed pairs are replaced by the last one of their source, so the removal takes
+ * constant time too.
+ * </p>
+ *
+ * @author legendi
+ */
+final class EdgeTable {
+
+	/** Marks an empty slot in the hash table (sources are never negative). */
+	private static final long EMPTY = -1L;
+
+	private int[][] targets = new int[1024][];
+	private int[][] counts = new int[1024][];
+	private int[] degrees = new int[1024];
+
+	/** Sum of the counts of the pairs of each source. */
+	private int[] totals = new int[1024];
+
+	/** Number of the stored pairs. */
+	private int size = 0;
+
+	/** Estimated footprint of the lists of the sources, kept up to date by {@link #append(int, int, int)}. */
+	private long lists = 0;
+
+	private long[] keys = newTable(2048);
+
+	/** The position of the pair of each slot in the list of its source. */
+	private int[] indices = new int[2048];
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns the number of the stored pairs. */
+	int size() {
+		return size;
+	}
+
+	/** Returns the estimated heap footprint of the table in bytes. */
+	long footprint() {
+		return 128 + 4L * targets.length + 4L * counts.length + 4L * degrees.length + 4L * totals.length +
+			8L * keys.length + 4L * indices.length + lists;
+	}
+
+	/** Returns the number of targets of the specified source. */
+	int degree(final int source) {
+		return (source < degrees.length) ? degrees[source] : 0;
+	}
+
+	/** Returns the <tt>index</tt>th target of the specified source. */
+	int target(final int source, final int index) {
+		return targets[source][index];
+	}
+
+	/** Returns the number of occurrences of the <tt>index</tt>th target of the specified source. */
+	int count(final int source, final int index) {
+		return counts[source][index];
+	}
+
+	/**
+	 * Returns a random target of the specified source, chosen with a probability proportional to
+	 * its count. Takes linear time in the degree of the source (the frozen models use alias tables).
+	 */
+	int sample(final int source, final Random random) {
+		final int[] list = counts[source];
+		int r = random.nextInt(totals[source]);
+		int index = 0;
+
+		while (r >= list[index]) {
+			r -= list[index++];
+		}
+
+		return targets[source][index];
+	}
+
+	/**
+	 * Adds an occurrence of the specified pair.
+	 *
+	 * @return true if the pair was not stored before; false otherwise.
+	 */
+	boolean add(final int source, final int target) {
+		return add(source, target, 1);
+	}
+
+	/**
+	 * Adds <tt>count</tt> occurrences of the specified pair.
+	 *
+	 * @return true if the pair was not stored before; false otherwise.
+	 */
+	boolean add(final int source, final int target, final int count) {
+		final long key = ((long) source << 32) | target;
+		final int mask = keys.length - 1;
+		int slot = slot(key, mask);
+
+		for (; EMPTY != keys[slot]; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				counts[source][indices[slot]] += count;
+				totals[source] += count;
+				return false;
+			}
+		}
+
+		keys[slot] = key;
+		indices[slot] = append(source, target, count);
+
+		// Keeping the load factor under 0.5
+		if (2 * ++size > keys.length) {
+			rehash(keys.length * 2);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes an occurrence of the specified pair. The pair itself is removed with its last
+	 * occurrence, and the last target of the source takes its place in the list.
+	 *
+	 * @return true if the pair was removed; false if it still has occurrences, or was not stored.
+	 */
+	boolean remove(final int source, final int target) {
+		final int slot = find(((long) source << 32) | target);
+		if (slot < 0) return false;
+
+		final int index = indices[slot];
+		--totals[source];
+
+		if (--counts[source][index] > 0) return false;
+
+		final int last = --degrees[source];
+		if (index != last) {
+			targets[source][index] = targets[source][last];
+			counts[source][index] = counts[source][last];
+			indices[find(((long) source << 32) | targets[source][index])] = index;
+		}
+
+		delete(slot);
+		--size;
+		return true;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns the slot of the specified key, or <code>-1</code> if it's not stored. */
+	private int find(final long key) {
+		final int mask = keys.length - 1;
+
+		for (int slot = slot(key, mask); EMPTY != keys[slot]; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) return slot;
+		}
+
+		return -1;
+	}
+
+	/** Empties the specified slot, shifting back the following keys of its probe sequence. */
+	private void delete(int slot) {
+		final int mask = keys.length - 1;
+
+		for (int next = (slot + 1) & mask; EMPTY != keys[next]; next = (next + 1) & mask) {
+			// A key can fill the gap unless its home slot is (cyclically) after the gap
+			if (((next - slot(keys[next], mask)) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = keys[next];
+				indices[slot] = indices[next];
+				slot = next;
+			}
+		}
+
+		keys[slot] = EMPTY;
+	}
+
+	/** Appends the target to the list of the source, and returns its position. */
+	private int append(final int source, final int target, final int count) {
+		if (source >= degrees.length) {
+			final int capacity = Math.max(degrees.length * 2, source + 1);
+			degrees = Arrays.copyOf(degrees, capacity);
+			totals = Arrays.copyOf(totals, capacity);
+			targets = Arrays.copyOf(targets, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+
+		final int degree = degrees[source];
+
+		if (null == targets[source]) {
+			targets[source] = new int[2];
+			counts[source] = new int[2];
+			lists += 2 * (16 + 4L * 2);
+		} else if (degree == targets[source].length) {
+			targets[source] = Arrays.copyOf(targets[source], degree * 2);
+			counts[source] = Arrays.copyOf(counts[source], degree * 2);
+			lists += 2 * 4L * degree;
+		}
+
+		targets[source][degree] = target;
+		counts[source][degree] = count;
+		degrees[source] = degree + 1;
+		totals[source] += count;
+
+		return degree;
+	}
+
+	private static int slot(long key, final int mask) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+
+	private static long[] newTable(final int capacity) {
+		final long[] ret = new long[capacity];
+		Arrays.fill(ret, EMPTY);
+		return ret;
+	}
+
+	private void rehash(final int capacity) {
+		final long[] oldKeys = keys;
+		final int[] oldIndices = indices;
+		keys = newTable(capacity);
+		indices = new int[capacity];
+		final int mask = capacity - 1;
+
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (EMPTY == oldKeys[i]) continue;
+
+			int slot = slot(oldKeys[i], mask);
+			while (EMPTY != keys[slot]) slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			indices[slot] = oldIndices[i];
+		}
+	}
+
+}
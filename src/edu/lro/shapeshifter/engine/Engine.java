@@ -2,19 +2,32 @@ package edu.lro.shapeshifter.engine;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.lro.shapeshifter.engine.Loader.InputType;
+import edu.lro.shapeshifter.metrics.Gauge;
+import edu.lro.shapeshifter.metrics.Histogram;
+import edu.lro.shapeshifter.metrics.Metrics;
 
 /**
  * Represents the knowledge base of the bot.
@@ -22,6 +35,7 @@ import edu.lro.shapeshifter.engine.Loader.InputType;
  * <p>
  * The class maintains the following data during its lifecycle:
  * <ul>
+ * <li>The dictionary of the known words;</li>
  * <li>The set of all tuples;</li>
  * <li>The successor relations (tuple x next words);</li>
  * <li>The preceding relations (tuple x previous words);</li>
@@ -29,6 +43,43 @@ import edu.lro.shapeshifter.engine.Loader.InputType;
  * </ul>
  * <p>
  * 
+ * <p>
+ * Words are represented by their ids in the {@link Dictionary}, tuples by their states in the
+ * {@link TupleIndex}. Strings are only used at the borders: when a message is learned, and when
+ * the generated sentence is returned in a {@link Result}.
+ * </p>
+ * 
+ * <p>
+ * The knowledge is learned into a mutable {@link StagingModel}, which is compiled into a
+ * read-optimized {@link CompactModel} by {@link #freeze()} once the loading is over. The later
+ * publications of the runtime learning only compile the changes on top of that model (see
+ * {@link DeltaModel}), until they grow large enough to be worth a full compilation.
+ * </p>
+ * 
+ * <p>
+ * The engine can be used from several threads. The generation works on the <i>published</i> model,
+ * an immutable snapshot of the knowledge read through a single volatile reference, so the readers
+ * never block and never see a half-learned message. The writers are serialized on a lock guarding
+ * the staging model; the messages of {@link #addString(String)} are learned in batches by a
+ * background thread, and published at most once per {@link #getPublishInterval()} msecs.
+ * </p>
+ * 
+ * <p>
+ * Optionally the engine learns all orders up to {@link #getResidentOrders()} in the same pass (see
+ * {@link OrderSet}), so {@link #setOrder(int)} can switch between them without reloading the input.
+ * </p>
+ * 
+ * <p>
+ * The replies of {@link #reply(String, int, long)} are served from a {@link ReplyCache} of
+ * pre-generated candidates, which is invalidated by the publications.
+ * </p>
+ * 
+ * <p>
+ * The engine records its runtime metrics (generation times, learning throughput, the timings of the
+ * initialization, the size of the model) into its {@link #getMetrics() registry}, under the
+ * <tt>engine.</tt> and <tt>model.</tt> names.
+ * </p>
+ * 
  * @author legendi
  */
 public class Engine {
@@ -45,41 +96,255 @@ public class Engine {
 	/** Produces bigger sentences for higher values. */
 	private static int strackEntropyCompensation = 7;
 	
-	private final Random random = new Random();
+	/** Number of threads used to load texts (see {@link ParallelLoader}). */
+	private static int loaderThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The highest Markov-order learned besides the active one by the engines initialized from now on;
+	 * <tt>0</tt> if only the active order is learned.
+	 */
+	private static int residentOrders = 0;
+	
+	/**
+	 * If the engines publish their knowledge in the trie form (see {@link TrieModel}) instead of the
+	 * {@link CompactModel}.
+	 */
+	private static boolean trieStorage = false;
+	
+	/** Number of the words the reply cache of the engines created from now on holds; <tt>0</tt> turns it off. */
+	private static int replyCacheCapacity = 1000;
+	
+	/**
+	 * The false positive rate of the vocabulary filter of the engines (see {@link BloomFilter});
+	 * <tt>0</tt> turns the filter off.
+	 */
+	private static volatile double vocabularyFpp = 0.01;
+	
+	/** Minimal time between two publications of the learned messages, in msecs. */
+	private static volatile long publishInterval = 1000;
+	
+	/**
+	 * The heap footprint the learned knowledge of the engines may grow to, in bytes; <tt>0</tt> means
+	 * no limit (see {@link #prune(long)}).
+	 */
+	private static volatile long memoryBudget = 0;
+	
+	/** The fraction of the memory budget a pruned model is shrunk to. */
+	private static final double PRUNE_TARGET = 0.75;
+	
+	/**
+	 * Number of the last messages of {@link #addString(String)} the engines remember (see
+	 * {@link LearningWindow}); <tt>0</tt> turns the window off.
+	 */
+	private static volatile int windowMessages = 0;
+	
+	/** The time the messages stay in the learning window, in msecs; <tt>0</tt> means no limit. */
+	private static volatile long windowAge = 0;
+	
+	/** Number of the random states drawn before searching for one that is not released. */
+	private static final int RANDOM_TRIES = 16;
+	
+	/** Maximal number of messages waiting for the background learner. */
+	public static final int MAX_PENDING = 10000;
+	
+	/**
+	 * The changes a publication compiles on top of the last compiled model (see {@link DeltaModel})
+	 * may grow to <tt>DELTA_FACTOR</tt> times the square root of the size of that model (in states
+	 * and transitions), but at least to <tt>MIN_DELTA</tt>; then the whole model is compiled again.
+	 * As every delta copies all the changes since the base, the square root balances the cost of the
+	 * deltas and the cost of the full compilations they save.
+	 */
+	private static final int DELTA_FACTOR = 16;
+	private static final int MIN_DELTA = 4096;
+	
+	/** Number of threads generating the candidates of {@link #generateSentences(String, int, long)}. */
+	private static final int GENERATOR_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/** The pool of the generator threads, shared by all engines; created on demand. */
+	private static ExecutorService generators = null;
+	
+	/** Per-thread random sources of the generation, a shared one would be a point of contention. */
+	private static final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
 
-	private final HashMap<Tuple, LinkedHashSet<String>> followings = new HashMap<Tuple, LinkedHashSet<String>>();
-	private final HashMap<Tuple, LinkedHashSet<String>> preceedings = new HashMap<Tuple, LinkedHashSet<String>>();
-	private final HashMap<String, LinkedHashSet<Tuple>> containers = new HashMap<String, LinkedHashSet<Tuple>>();
-	private final LinkedHashSet<Tuple> knownTuples = new LinkedHashSet<Tuple>();
-	private final HashMap<Tuple, Tuple.Descriptor> descriptors = new HashMap<Tuple, Tuple.Descriptor>();
+	/** Serializes the writers; the readers never take it. */
+	private final Object writeLock = new Object();
+	
+	/**
+	 * The model the engine learns into, guarded by {@link #writeLock}. It's <code>null</code> after a
+	 * snapshot was loaded, until the first modification (see {@link #staging()}).
+	 */
+	private StagingModel staging = new StagingModel(markovOrder);
+	
+	/**
+	 * The models of the resident orders, or <code>null</code> if only the active order is learned
+	 * (guarded by {@link #writeLock}). If it exists, the staging model is the one of its active order.
+	 */
+	private OrderSet orders = null;
+	
+	/**
+	 * The last messages learned into the staging model, <code>null</code> if the window is turned off
+	 * or it was reset (guarded by {@link #writeLock}, volatile only for the gauges).
+	 */
+	private volatile LearningWindow window = null;
+	
+	/** If the staging model has been changed since it was published (guarded by {@link #writeLock}). */
+	private boolean dirty = false;
+	
+	/**
+	 * If the published model is a mapped snapshot (guarded by {@link #writeLock}). The engine doesn't
+	 * learn then, see {@link #mapSnapshot(File)}.
+	 */
+	private boolean mapped = false;
+	
+	/**
+	 * The immutable model serving the generation: the compiled form of the staging model, or a
+	 * restored/mapped snapshot. Each reader takes it once and works on that instance only.
+	 */
+	private volatile Model published = new CompactModel(staging);
+	
+	/**
+	 * The last full compilation of the staging model, the base of the published {@link DeltaModel}s
+	 * (guarded by {@link #writeLock}). It's <code>null</code> if the publications cannot be
+	 * incremental: a mapped model is published, the model was compiled into a trie, or the engine has
+	 * several resident orders.
+	 */
+	private CompactModel base = null;
+	
+	/**
+	 * The messages waiting for the {@link Learner}. They are taken out only under the
+	 * {@link #writeLock}, so a message is either waiting here or learned into the staging model.
+	 */
+	private final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<String>(MAX_PENDING);
+	
+	/** Wakes up the {@link Learner} when messages are queued (it never takes them while waiting). */
+	private final Semaphore queuedSignal = new Semaphore(0);
 	
-	private class Sentence {
-		final LinkedList<String> parts = new LinkedList<String>();
+	/** The batch of messages taken from {@link #pending} (guarded by {@link #writeLock}). */
+	private final ArrayList<String> batch = new ArrayList<String>();
+	
+	/**
+	 * The durable log of the messages given to {@link #addString(String)}, <code>null</code> if it's
+	 * turned off (see {@link #setLog(LearningLog)}).
+	 */
+	private volatile LearningLog log = null;
+	
+	/**
+	 * The messages of the log before this {@link LearningLog#mark() mark} are learned into the engine:
+	 * the ones of its snapshot, or the ones replayed (guarded by {@link #writeLock}).
+	 */
+	private long replayed = 0;
+	
+	/** The mark of the log at {@link #handOver(Engine)} (guarded by the monitor of the log). */
+	private long handedOver = 0;
+	
+	/** The background thread of the {@link Learner}, started by the first message. */
+	private volatile Thread learner = null;
+	
+	/** Set by {@link #shutdown()}: the learner is not started again (guarded by {@link #pending}). */
+	private boolean closed = false;
+	
+	/**
+	 * The engine learning the messages of this one, see {@link #handOver(Engine)} (guarded by
+	 * {@link #pending}, and by the monitor of the log as well if there is one).
+	 */
+	private Engine successor = null;
+	
+	/** Receives the events of the engine; <code>null</code> if tracing is turned off. */
+	private volatile Tracer tracer = null;
+	
+	/** The cache of {@link #reply(String, int, long)}, <code>null</code> if it's turned off. */
+	private final ReplyCache replies;
+	
+	/**
+	 * The words of the messages learned since the last publication, and if the knowledge was
+	 * changed in bulk (guarded by {@link #writeLock}); the cached replies of these are dropped by the
+	 * next publication. The readers may look into the set, to tell the words passing the vocabulary
+	 * filter before their publication from its false positives (see {@link #lookup(Model, String)}).
+	 */
+	private final Set<String> learnedWords = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private boolean bulkLearned = false;
+	
+	/** The words of the message being learned (guarded by {@link #writeLock}). */
+	private final ArrayList<String> messageWords = new ArrayList<String>();
+	
+	/**
+	 * The filter of the words of the published model (and the ones learned since), answering the
+	 * questions about the unknown words without a lookup; <code>null</code> if it's turned off.
+	 */
+	private volatile BloomFilter vocabulary = null;
+	
+	private final Metrics metrics;
+	
+	private final Histogram generateTimes;
+	private final Histogram replyLengths;
+	private final AtomicLong queued;
+	private final AtomicLong learned;
+	private final AtomicLong ignored;
+	private final AtomicLong learnedTuples;
+	
+	/** The time of learning the batches of {@link #learnPending()}, and the number of their messages. */
+	private final Histogram batchTimes;
+	private final AtomicLong batchedMessages;
+	private final Histogram publishTimes;
+	private final Histogram loadTimes;
+	private final Histogram freezeTimes;
+	private final Histogram restoreTimes;
+	private final Histogram initTimes;
+	private final AtomicLong filteredWords;
+	private final AtomicLong falsePositives;
+	private final AtomicLong prunedTuples;
+	private final AtomicLong prunedEdges;
+	private final Histogram pruneTimes;
+	private final AtomicLong expiredMessages;
+	
+	/**
+	 * The estimated heap footprint of the staging model at its last publication (computed under the
+	 * write lock, so the readers of the metrics never wait for it).
+	 */
+	private volatile long stagingFootprint = 0;
+	
+	private static class Sentence {
+		final Model model;
 		
-		public Sentence(final Tuple tuple) {
-			for (final String act : tuple) {
-				parts.add(act);
+		/** Words prepended to the starting tuple, in reverse order. */
+		final IntList prefix = new IntList();
+		final IntList postfix = new IntList();
+		
+		public Sentence(final Model model, final int state) {
+			this.model = model;
+			
+			for (int i = 0; i < model.order(); ++i) {
+				postfix.add(model.token(state, i));
 			}
 		}
 
-		public void append(final String part) {
-			parts.add(part);
+		public void append(final int word) {
+			postfix.add(word);
 		}
 
-		public void prepend(final String part) {
-			parts.add(0, part);
+		public void prepend(final int word) {
+			prefix.add(word);
 		}
 
 		@Override
 		public String toString() {
 			final StringBuilder sb = new StringBuilder();
 
-			for (int i = 0; i < parts.size(); ++i) {
+			for (int i = prefix.size() - 1; i >= 0; --i) {
+				sb.append(model.word(prefix.get(i))).append(' ');
+			}
+
+			for (int i = 0; i < postfix.size(); ++i) {
 				if (i > 0) {
 					sb.append(' ');
 				}
 
-				sb.append(parts.get(i));
+				sb.append(model.word(postfix.get(i)));
 			}
 
 			return sb.toString();
@@ -111,7 +376,121 @@ public class Engine {
 	//---------------------------------------------------------------------------------------------------
 	
 	public Engine() {
-		;
+		this(new Metrics());
+		registerGauges();
+	}
+	
+	/**
+	 * Creates an engine recording into the specified registry, e.g. the one of the engine it's going
+	 * to replace, so the counters and histograms continue. The gauges of its model are registered only
+	 * by {@link #registerGauges()}.
+	 */
+	public Engine(final Metrics metrics) {
+		this.metrics = metrics;
+		
+		generateTimes = metrics.histogram("engine.generate.time", "us");
+		replyLengths = metrics.histogram("engine.generate.words", "");
+		queued = metrics.counter("engine.learn.queued");
+		learned = metrics.counter("engine.learn.messages");
+		ignored = metrics.counter("engine.learn.ignored");
+		learnedTuples = metrics.counter("engine.learn.tuples");
+		batchTimes = metrics.histogram("engine.learn.batch", "us");
+		batchedMessages = metrics.counter("engine.learn.batched");
+		publishTimes = metrics.histogram("engine.publish.time", "ms");
+		loadTimes = metrics.histogram("engine.init.load", "ms");
+		freezeTimes = metrics.histogram("engine.init.freeze", "ms");
+		restoreTimes = metrics.histogram("engine.init.restore", "ms");
+		initTimes = metrics.histogram("engine.init.total", "ms");
+		filteredWords = metrics.counter("engine.vocabulary.filtered");
+		falsePositives = metrics.counter("engine.vocabulary.falsePositives");
+		prunedTuples = metrics.counter("engine.prune.tuples");
+		prunedEdges = metrics.counter("engine.prune.edges");
+		pruneTimes = metrics.histogram("engine.prune.time", "ms");
+		expiredMessages = metrics.counter("engine.window.expired");
+		
+		replies = (replyCacheCapacity > 0) ? new ReplyCache(this, replyCacheCapacity, metrics) : null;
+	}
+	
+	/**
+	 * Registers the gauges of the size of the model of this engine (<tt>model.*</tt>), replacing the
+	 * ones of another engine sharing the registry.
+	 */
+	public void registerGauges() {
+		metrics.gauge("engine.learn.pending", new Gauge() {
+			@Override
+			public long getValue() {
+				return pending.size();
+			}
+		});
+		
+		metrics.gauge("engine.window.messages", new Gauge() {
+			@Override
+			public long getValue() {
+				final LearningWindow window = Engine.this.window;
+				return (null == window) ? 0 : window.size();
+			}
+		});
+		
+		if (replies != null) {
+			metrics.gauge("engine.replies.words", new Gauge() {
+				@Override
+				public long getValue() {
+					return replies.size();
+				}
+			});
+			
+			metrics.gauge("engine.replies.hitRate", new Gauge() {
+				@Override
+				public long getValue() {
+					return replies.getHitRate();
+				}
+			});
+		}
+		
+		metrics.gauge("engine.vocabulary.fpp", new Gauge() {
+			/** The expected false positive rate of the filter, in parts per million. */
+			@Override
+			public long getValue() {
+				final BloomFilter filter = vocabulary;
+				return (null == filter) ? 0 : Math.round(1e6 * filter.getExpectedFpp());
+			}
+		});
+		
+		metrics.gauge("engine.vocabulary.heap", new Gauge() {
+			@Override
+			public long getValue() {
+				final BloomFilter filter = vocabulary;
+				return (null == filter) ? 0 : filter.footprint();
+			}
+		});
+		
+		metrics.gauge("model.tuples", new Gauge() {
+			@Override
+			public long getValue() {
+				return published.size();
+			}
+		});
+		
+		metrics.gauge("model.words", new Gauge() {
+			@Override
+			public long getValue() {
+				return published.wordCount();
+			}
+		});
+		
+		metrics.gauge("model.edges", new Gauge() {
+			@Override
+			public long getValue() {
+				return published.edgeCount();
+			}
+		});
+		
+		metrics.gauge("model.heap", new Gauge() {
+			@Override
+			public long getValue() {
+				return getFootprint();
+			}
+		});
 	}
 
 	public Engine(final URL url) {
@@ -119,6 +498,8 @@ public class Engine {
 	}
 	
 	public Engine(final URL url, final Loader.InputType inputType) {
+		this();
+		
 		try {
 			init(url, inputType);
 		} catch (final IOException e) {
@@ -130,34 +511,179 @@ public class Engine {
 	//---------------------------------------------------------------------------------------------------
 	//--- Interface -------------------------------------------------------------------------------------
 	
-	public Map<Tuple, LinkedHashSet<String>> getFollowings() {
-		return Collections.unmodifiableMap(followings);
+	/** Returns the number of the known (published) tuples. */
+	public int getTupleCount() {
+		return published.size();
 	}
 
-	public Map<Tuple, LinkedHashSet<String>> getPreceedings() {
-		return Collections.unmodifiableMap(preceedings);
+	/** Returns the tuple of the specified state (<code>0 &lt;= state &lt; getTupleCount()</code>). */
+	public Tuple getTuple(final int state) {
+		final Model model = published;
+		final int[] tokens = new int[model.order()];
+		for (int i = 0; i < tokens.length; ++i) {
+			tokens[i] = model.token(state, i);
+		}
+		
+		return new Tuple(tokens);
 	}
-
-	public Map<String, LinkedHashSet<Tuple>> getContainers() {
-		return Collections.unmodifiableMap(containers);
+	
+	/** Returns the number of the known (published) words. */
+	public int getWordCount() {
+		return published.wordCount();
 	}
-
-	public Set<Tuple> getKnownTuples() {
-		return Collections.unmodifiableSet(knownTuples);
+	
+	/**
+	 * Returns the published word of the specified id (<code>0 &lt;= id &lt; getWordCount()</code>),
+	 * e.g. of a token of a {@link #getTuple(int) tuple}. The ids stay the same while the knowledge is
+	 * only extended; the pruning, a reinitialization or a restored snapshot reassigns them.
+	 */
+	public String getWord(final int id) {
+		return published.word(id);
+	}
+	
+	/** Returns the registry of the runtime metrics of the engine. */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Returns the estimated heap footprint of the knowledge in bytes: the published model, and the
+	 * staging model as of its last publication.
+	 */
+	public long getFootprint() {
+		return published.footprint() + stagingFootprint;
+	}
+	
+	/** Returns the estimated heap footprint of the published model (the one serving the generation) in bytes. */
+	public long getPublishedFootprint() {
+		return published.footprint();
 	}
 	
 	public int getOrder() {
 		return markovOrder;
 	}
 
+	/**
+	 * Sets the order of the Markov chain. If the order is resident (see {@link #isResident(int)}),
+	 * the engine switches to its model at once; otherwise the knowledge is cleared.
+	 */
 	public void setOrder(final int markovOrder) {
 		// Increase the upper limit on your own risk!
 		if (markovOrder < 1 || 5 < markovOrder) {
 			throw new IllegalArgumentException("Argument must be in the interval [1,5].");
 		}
 		
-		this.markovOrder = markovOrder;
-		clear();
+		synchronized (writeLock) {
+			if (orders != null && markovOrder <= orders.maxOrder()) {
+				freeze();
+				this.markovOrder = markovOrder;
+				staging = orders.staging(markovOrder);
+				base = null;
+				publish(orders.compiled(markovOrder), true);
+				stagingFootprint = orders.footprint() - published.footprint();
+			} else {
+				this.markovOrder = markovOrder;
+				clear();
+			}
+		}
+	}
+	
+	/** Returns true if the knowledge of the specified order is at hand, without reloading the input. */
+	public boolean isResident(final int order) {
+		synchronized (writeLock) {
+			return (order == markovOrder) || (orders != null && 1 <= order && order <= orders.maxOrder());
+		}
+	}
+	
+	/**
+	 * Returns the estimated heap footprints of the resident orders in bytes (index <tt>order - 1</tt>),
+	 * without the shared dictionary; an empty array if only the active order is learned.
+	 */
+	public long[] getResidentFootprints() {
+		synchronized (writeLock) {
+			final long[] ret = new long[(null == orders) ? 0 : orders.maxOrder()];
+			for (int i = 0; i < ret.length; ++i) {
+				ret[i] = orders.footprint(i + 1);
+			}
+			
+			return ret;
+		}
+	}
+	
+	/** Returns the estimated heap footprint of the dictionary shared by the resident orders in bytes. */
+	public long getSharedFootprint() {
+		synchronized (writeLock) {
+			return (null == orders) ? 0 : orders.dictionaryFootprint();
+		}
+	}
+	
+	public static double getVocabularyFpp() {
+		return vocabularyFpp;
+	}
+	
+	/**
+	 * Sets the false positive rate of the vocabulary filters, which let the engines answer the
+	 * questions about unknown words without looking them up (see {@link BloomFilter}); the lower it
+	 * is, the more memory the filter takes. <tt>0</tt> turns the filters off. Takes effect at the
+	 * next publication of the knowledge that rebuilds the filter.
+	 */
+	public static void setVocabularyFpp(final double vocabularyFpp) {
+		if (vocabularyFpp < 0 || 1 <= vocabularyFpp) {
+			throw new IllegalArgumentException("Argument must be in the interval [0,1).");
+		}
+		
+		Engine.vocabularyFpp = vocabularyFpp;
+	}
+	
+	public static int getReplyCacheCapacity() {
+		return replyCacheCapacity;
+	}
+	
+	/**
+	 * Sets the number of the words the reply cache of the engines created from now on holds (see
+	 * {@link ReplyCache}); <tt>0</tt> turns the cache off.
+	 */
+	public static void setReplyCacheCapacity(final int replyCacheCapacity) {
+		if (replyCacheCapacity < 0) {
+			throw new IllegalArgumentException("Argument cannot be negative.");
+		}
+		
+		Engine.replyCacheCapacity = replyCacheCapacity;
+	}
+	
+	public static int getResidentOrders() {
+		return residentOrders;
+	}
+	
+	/**
+	 * Sets the highest Markov-order learned in the same pass as the active one, by the engines
+	 * initialized (or cleared) from now on: all orders from <tt>1</tt> up to the given one (or the
+	 * active one, if it's higher) are learned. <tt>0</tt> turns it off.
+	 * 
+	 * <p>
+	 * Each resident order costs about as much memory as an engine of that order, and the input is
+	 * loaded on a single thread.
+	 * </p>
+	 */
+	public static void setResidentOrders(final int residentOrders) {
+		if (residentOrders < 0 || 5 < residentOrders) {
+			throw new IllegalArgumentException("Argument must be in the interval [0,5].");
+		}
+		
+		Engine.residentOrders = residentOrders;
+	}
+	
+	public static boolean isTrieStorage() {
+		return trieStorage;
+	}
+	
+	/**
+	 * Sets if the engines compile their knowledge into a {@link TrieModel} from their next
+	 * publication on, which takes less memory but generates a bit slower than the default
+	 * {@link CompactModel}. The resident orders and the snapshots always use the latter.
+	 */
+	public static void setTrieStorage(final boolean trieStorage) {
+		Engine.trieStorage = trieStorage;
 	}
 	
 	public static boolean hegedusHeuristic() {
@@ -166,6 +692,7 @@ public class Engine {
 
 	public static void setHegedusHeuristic(final boolean hegedusHeuristic) {
 		Engine.hegedusHeuristic = hegedusHeuristic;
+		ReplyCache.invalidateAllCaches();
 	}
 	
 	public static int getStrackEntrophyCompensation() {
@@ -174,144 +701,1038 @@ public class Engine {
 
 	public static void setStrackEntrophyCompensation(final int strackEntrophyCompensation) {
 		Engine.strackEntropyCompensation = strackEntrophyCompensation;
+		ReplyCache.invalidateAllCaches();
 	}
 
-	public void clear() {
-		followings.clear();
-		preceedings.clear();
-		containers.clear();
-		knownTuples.clear();
-
-		System.gc(); System.gc(); System.gc(); System.gc();
-		System.gc(); System.gc(); System.gc(); System.gc();
+	public static int getLoaderThreads() {
+		return loaderThreads;
 	}
 
-	public long init(final URL url, final Loader.InputType inputType) throws IOException {
-		long time = -System.currentTimeMillis();
-		clear();	// performing clear could consume CPU time for greater inputs
-		
-		switch (inputType) {
-			case IRC_LOG:{
-				Loader.loadIRCLog(url, this);
-				break;
-			}
-			
-			case TXT: {
-				Loader.loadTXT(url, this);
-				break;
-			}
-			
-			default:{
-				System.err.println("Unresolved input type, parsing as simple TXT file: " + inputType);
-				Loader.loadTXT(url, this);
-			}
+	/** Sets the number of threads used to load texts; <tt>1</tt> means sequential loading. */
+	public static void setLoaderThreads(final int loaderThreads) {
+		if (loaderThreads < 1) {
+			throw new IllegalArgumentException("Argument must be positive.");
 		}
 		
-		time += System.currentTimeMillis();
-		System.out.println("Reinitialization performed, took " + time + " msecs.");
-		return time;
+		Engine.loaderThreads = loaderThreads;
+	}
+
+	public Tracer getTracer() {
+		return tracer;
 	}
 
 	/**
-	 * Returns a list of Strings (words) in the specified message.
-	 * 
-	 * <p>
-	 * The <tt>Engine</tt> considers everything a word that is bordered by whitespace characters.
-	 * </p>
+	 * Sets the receiver of the events of the engine (e.g. a {@link ConsoleTracer} for the verbose
+	 * output); <code>null</code> turns tracing off.
 	 */
-	private ArrayList<Tuple> parseTokens(String message) {
-		assert (message != null) 
-		: "Message cannot be null!";
-
-		final ArrayList<Tuple> ret = new ArrayList<Tuple>();
-		message = message.trim().replaceAll("\\s+", " ");
+	public void setTracer(final Tracer tracer) {
+		this.tracer = tracer;
+	}
 
-		final ArrayList<String> components = new ArrayList<String>();
-		components.addAll(Arrays.asList(message.split(" ")));
+	public static long getPublishInterval() {
+		return publishInterval;
+	}
 
-		for (int i = 0; i < components.size() - markovOrder + 1; ++i) {
-			final List<String> subList = components.subList(i, i + markovOrder);
-			ret.add(new Tuple(subList.toArray(new String[subList.size()])));
+	/**
+	 * Sets the minimal time between two publications of the messages learned through
+	 * {@link #addString(String)}, in msecs; <tt>0</tt> publishes every batch.
+	 */
+	public static void setPublishInterval(final long publishInterval) {
+		if (publishInterval < 0) {
+			throw new IllegalArgumentException("Argument cannot be negative.");
 		}
+		
+		Engine.publishInterval = publishInterval;
+	}
 
-		return ret;
+	public static long getMemoryBudget() {
+		return memoryBudget;
 	}
 
-	private void addToFollowing(final Tuple tuple, final String value) {
-		if (!followings.containsKey(tuple)) {
-			followings.put(tuple, new LinkedHashSet<String>());
+	/**
+	 * Sets the heap footprint the learned knowledge of the engines may grow to, in bytes; <tt>0</tt>
+	 * means no limit. A model over its budget is pruned at its next publication: its rarest states
+	 * and transitions are dropped until it fits into {@link #PRUNE_TARGET} of the budget. The budget
+	 * is not enforced for the engines keeping several orders resident (see
+	 * {@link #setResidentOrders(int)}).
+	 */
+	public static void setMemoryBudget(final long memoryBudget) {
+		if (memoryBudget < 0) {
+			throw new IllegalArgumentException("Argument cannot be negative.");
 		}
-
-		followings.get(tuple).add(value);
+		
+		Engine.memoryBudget = memoryBudget;
 	}
-	
-	private void addToPrecedings(final Tuple tuple, final String value) {
-		if (!preceedings.containsKey(tuple)) {
-			preceedings.put(tuple, new LinkedHashSet<String>());
-		}
 
-		preceedings.get(tuple).add(value);
+	public static int getWindowMessages() {
+		return windowMessages;
 	}
 
-	private void addToContainer(final String component, final Tuple container) {
-		if (!containers.containsKey(component)) {
-			containers.put(component, new LinkedHashSet<Tuple>());
-		}
-
-		containers.get(component).add(container);
+	public static long getWindowAge() {
+		return windowAge;
 	}
 
 	/**
-	 * Adds the specified string to the bot's knowledge.
+	 * Makes the engines learn only from the last <tt>messages</tt> messages given to
+	 * {@link #addString(String)}, each of them forgotten after <tt>age</tt> msecs at the latest
+	 * (<tt>0</tt> means no time limit); <tt>0</tt> messages turns the window off. The knowledge loaded
+	 * by {@link #init(URL, InputType)} or restored from a snapshot is kept.
 	 * 
 	 * <p>
-	 * This function iterates through the words of the message and creates the corresponding tuples.
-	 * Besides it sets the necessary properties also (if the created tuple is a finisher/starter one).
+	 * The messages in the window when it's changed, or when something is learned in bulk or while
+	 * the window is turned off, are kept for good. The window is not supported for the engines keeping several orders
+	 * resident (see {@link #setResidentOrders(int)}).
 	 * </p>
-	 * 
-	 * @param message
-	 * @return true if the bot learned something new from the input;
-	 * 			false otherwise.
 	 */
-	public boolean addString(final String message) {
-		final ArrayList<Tuple> tokens = parseTokens(message);
-
-		for (int i = 0; i < tokens.size(); ++i) {
-			final Tuple tuple = tokens.get(i);
-			if (!knownTuples.contains(tuple)) {
-				knownTuples.add(tuple);
-				descriptors.put(tuple, new Tuple.Descriptor());
-			}
-
-			for (final String act : tuple) {
-				addToContainer(act, tuple);
-			}
+	public static void setLearningWindow(final int messages, final long age) {
+		if (messages < 0 || age < 0) {
+			throw new IllegalArgumentException("Arguments cannot be negative.");
+		}
+		
+		Engine.windowMessages = messages;
+		Engine.windowAge = age;
+	}
 
-			if (i + 1 < tokens.size()) {
-				// If there's more tokens to continue
-				final String followingWord = tokens.get(i + 1).lastToken();
-				addToFollowing(tuple, followingWord);
+	public void clear() {
+		synchronized (writeLock) {
+			if (residentOrders > 0) {
+				orders = new OrderSet(Math.max(residentOrders, markovOrder));
+				staging = orders.staging(markovOrder);
+				base = null;
+				publish(orders.compiled(markovOrder), true);
+				stagingFootprint = orders.footprint() - published.footprint();
 			} else {
-				// Otherwise we simply mark the tuple as a finisher
-				descriptors.get( tuple ).setFinisher(true);
+				orders = null;
+				staging = new StagingModel(markovOrder);
+				publishCompiled(true);
+				stagingFootprint = staging.footprint();
 			}
 			
-			if (i>0) {
-				final String precedingWord = tokens.get(i-1).firstToken();
-				addToPrecedings(tuple, precedingWord);
-			} else {
-				descriptors.get( tuple ).setStarter(true);
-			}
+			dirty = false;
+			mapped = false;
+			replayed = 0;
 		}
 
-		// returns if we learned anything
-		return (tokens.size() > 0);
+		System.gc(); System.gc(); System.gc(); System.gc();
+		System.gc(); System.gc(); System.gc(); System.gc();
 	}
-	
+
+	public long init(final URL url, final Loader.InputType inputType) throws IOException {
+		synchronized (writeLock) {
+			return reinit(url, inputType);
+		}
+	}
+	
+	private long reinit(final URL url, final Loader.InputType inputType) throws IOException {
+		long time = -System.currentTimeMillis();
+		clear();	// performing clear could consume CPU time for greater inputs
+		
+		switch (inputType) {
+			case IRC_LOG:
+			case TXT: {
+				load(url, inputType);
+				break;
+			}
+			
+			case SNAPSHOT: {
+				final long start = System.currentTimeMillis();
+				final Snapshot.Loaded snapshot = Snapshot.load(toFile(url));
+				restore(snapshot.model, snapshot.logMark);
+				restoreTimes.record(System.currentTimeMillis() - start);
+				break;
+			}
+			
+			case MAPPED: {
+				final long start = System.currentTimeMillis();
+				final MappedModel model = new MappedModel(toFile(url));
+				restore(model, model.getLogMark());
+				restoreTimes.record(System.currentTimeMillis() - start);
+				break;
+			}
+			
+			default:{
+				System.err.println("Unresolved input type, parsing as simple TXT file: " + inputType);
+				load(url, InputType.TXT);
+			}
+		}
+		
+		if (log != null) {
+			replayLog();
+		}
+		
+		time += System.currentTimeMillis();
+		initTimes.record(time);
+		info("Reinitialization performed, took " + time + " msecs.");
+		return time;
+	}
+	
+	/** Loads the specified text and freezes the result. */
+	private void load(final URL url, final Loader.InputType inputType) throws IOException {
+		final long start = System.currentTimeMillis();
+		
+		if (loaderThreads > 1 && null == orders) {
+			final ParallelLoader.LoadReport report = ParallelLoader.load(url, inputType, this, loaderThreads);
+			info(report);
+		} else {
+			Loader.read(url, inputType, Loader.learner(this), tracer);
+		}
+		
+		loadTimes.record(System.currentTimeMillis() - start);
+		
+		long time = -System.currentTimeMillis();
+		freeze();
+		time += System.currentTimeMillis();
+		freezeTimes.record(time);
+		info("Freezing the model took " + time + " msecs.");
+	}
+	
+	/** Passes the specified message to the tracer (the argument is converted only if it's necessary). */
+	private void info(final Object message) {
+		final Tracer tracer = this.tracer;
+		
+		if (tracer != null) {
+			tracer.info(message.toString());
+		}
+	}
+	
+	/**
+	 * Compiles the learned knowledge into its read-optimized form, and publishes it to serve the
+	 * generation (see {@link CompactModel}). Does nothing if nothing was learned since the last time.
+	 * 
+	 * <p>
+	 * If only a few messages were learned since the last full compilation, only their changes are
+	 * compiled on top of it (see {@link DeltaModel}). The knowledge changed in bulk, the tries and the
+	 * resident orders are always compiled entirely.
+	 * </p>
+	 * 
+	 * <p>
+	 * The memory budget is checked before the compilation, against the last published model and the
+	 * staging model, so a model over the budget is compiled only once, after the pruning.
+	 * </p>
+	 * 
+	 * <p>
+	 * Called automatically at the end of {@link #init(URL, InputType)}.
+	 * </p>
+	 */
+	public void freeze() {
+		synchronized (writeLock) {
+			if (dirty && orders != null) {
+				orders.freeze();
+				publish(orders.compiled(markovOrder), false);
+				stagingFootprint = orders.footprint() - published.footprint();
+				dirty = false;
+			} else if (dirty) {
+				final long footprint = published.footprint() + staging.footprint();
+				
+				if (memoryBudget > 0 && footprint > memoryBudget) {
+					prune(footprint);
+				} else if (base != null && !bulkLearned && !trieStorage &&
+						DeltaModel.cost(base, staging) <= Math.max(MIN_DELTA, DELTA_FACTOR * Math.sqrt(base.size() + base.edgeCount()))) {
+					publish(new DeltaModel(base, staging), false);
+				} else {
+					publishCompiled(false);
+				}
+				
+				stagingFootprint = staging.footprint();
+				dirty = false;
+			}
+		}
+	}
+	
+	/**
+	 * Drops the rarest states and transitions of the learned knowledge until its footprint is about
+	 * {@link #PRUNE_TARGET} of the memory budget, and publishes the rest (the write lock must be
+	 * held). The footprint is assumed to be proportional to the number of the states and transitions;
+	 * see {@link StagingModel#pruned(double)} for their ranking.
+	 * 
+	 * @param footprint the current footprint of the knowledge
+	 */
+	private void prune(final long footprint) {
+		final long start = System.currentTimeMillis();
+		final int size = staging.size(), edges = staging.edgeCount();
+		
+		staging = staging.pruned(PRUNE_TARGET * memoryBudget / footprint);
+		publishCompiled(true);
+		stagingFootprint = staging.footprint();
+		
+		prunedTuples.addAndGet(size - staging.size());
+		prunedEdges.addAndGet(edges - staging.edgeCount());
+		pruneTimes.record(System.currentTimeMillis() - start);
+		
+		info("Pruned the model: " + size + " -> " + staging.size() + " states, " + edges + " -> " +
+			staging.edgeCount() + " transitions, " + footprint / 1024 + " -> " + getFootprint() / 1024 + " KB.");
+	}
+	
+	/**
+	 * Makes the specified model serve the generation (the write lock must be held). The vocabulary
+	 * filter is rebuilt before the swap if the knowledge was <tt>replaced</tt> or changed in bulk (or
+	 * the filter is full); after the swap the cached replies of the words learned since the last
+	 * publication are dropped, or all of them.
+	 */
+	private void publish(final Model model, final boolean replaced) {
+		final boolean all = replaced || bulkLearned;
+		final BloomFilter filter = vocabulary;
+		
+		if (0 == vocabularyFpp) {
+			vocabulary = null;
+		} else if (all || null == filter || filter.isFull()) {
+			vocabulary = BloomFilter.of(model, vocabularyFpp);
+		}
+		
+		published = model;
+		
+		if (replies != null) {
+			if (all) {
+				replies.invalidateAll();
+			} else {
+				replies.invalidate(learnedWords);
+			}
+		}
+		
+		learnedWords.clear();
+		bulkLearned = false;
+	}
+	
+	/** Compiles the specified staging model into the read-optimized form selected by {@link #isTrieStorage()}. */
+	private static Model compile(final StagingModel staging) {
+		return trieStorage ? new TrieModel(staging) : new CompactModel(staging);
+	}
+	
+	/**
+	 * Compiles the whole staging model, and publishes it (the write lock must be held). A compact
+	 * model becomes the base of the following publications.
+	 */
+	private void publishCompiled(final boolean replaced) {
+		final Model model = compile(staging);
+		
+		base = (model instanceof CompactModel) ? (CompactModel) model : null;
+		staging.clearChanges();
+		publish(model, replaced);
+	}
+	
+	/**
+	 * Learns and publishes all messages given to {@link #addString(String)} so far, without waiting
+	 * for the background learner.
+	 */
+	public void flush() {
+		synchronized (writeLock) {
+			learnPending();
+			freeze();
+		}
+	}
+	
+	/**
+	 * Stops the background learner (if it's running) for good, and flushes the pending messages. The
+	 * messages given to the engine afterwards are not learned in the background any more: they are
+	 * given to its successor if it's {@link #handOver(Engine) replaced}, otherwise they wait for the
+	 * next {@link #flush()}.
+	 */
+	public void shutdown() {
+		final Thread thread;
+		
+		synchronized (pending) {
+			closed = true;
+			thread = learner;
+		}
+		
+		if (thread != null) {
+			thread.interrupt();
+			
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		flush();
+	}
+	
+	/**
+	 * Makes the specified engine learn the messages given to this one from now on, e.g. the ones of
+	 * the commands still holding this engine after the bot replaced it.
+	 * 
+	 * @return the {@link LearningLog#mark() mark} of the {@link #setLog(LearningLog) log} at the
+	 * 			hand-over (<code>0</code> without a log): the messages before it are the ones of this
+	 * 			engine, to be caught up with by the successor (see {@link #catchUpLog(long)})
+	 */
+	public long handOver(final Engine successor) {
+		final LearningLog log = this.log;
+		
+		synchronized (pending) {
+			if (null == log) {
+				this.successor = successor;
+				return 0;
+			}
+			
+			synchronized (log) {
+				this.successor = successor;
+				handedOver = log.mark();
+				return handedOver;
+			}
+		}
+	}
+	
+	/**
+	 * Dumps the knowledge of the engine into the specified file (see {@link Snapshot} for the
+	 * format). Freezes the engine first if it's necessary.
+	 * 
+	 * <p>
+	 * The pending messages are learned into the snapshot, and the snapshot records the
+	 * {@link LearningLog#mark() mark} of the {@link #setLog(LearningLog) log} they reach, so only the
+	 * later messages of the log are replayed on top of it. The log itself is left whole, see
+	 * {@link #compactLog(File)}.
+	 * </p>
+	 * 
+	 * <p>
+	 * A mapped model is copied as it is, without loading it into the heap (its mark is kept, as the
+	 * later messages were not learned into the model).
+	 * </p>
+	 * 
+	 * @return the time it took in msecs
+	 */
+	public long saveSnapshot(final File file) throws IOException {
+		long time = -System.currentTimeMillis();
+		
+		synchronized (writeLock) {
+			save(file);
+		}
+		
+		time += System.currentTimeMillis();
+		info("Snapshot saved to " + file + ", took " + time + " msecs.");
+		return time;
+	}
+	
+	/**
+	 * Compacts the {@link #setLog(LearningLog) log}: saves a snapshot into the specified file just
+	 * as {@link #saveSnapshot(File)} does, and moves the messages learned into it from the log to its
+	 * archive (see {@link LearningLog#truncate(long)}). The startup replays the rest of the log only,
+	 * so the file must be the snapshot the bot is started from.
+	 * 
+	 * @return the time it took in msecs
+	 */
+	public long compactLog(final File file) throws IOException {
+		long time = -System.currentTimeMillis();
+		
+		synchronized (writeLock) {
+			final long mark = save(file);
+			
+			if (log != null) {
+				log.truncate(mark);
+			}
+		}
+		
+		time += System.currentTimeMillis();
+		info("Log compacted into " + file + ", took " + time + " msecs.");
+		return time;
+	}
+	
+	/**
+	 * Writes the snapshot of {@link #saveSnapshot(File)} (the write lock must be held).
+	 * 
+	 * @return the mark of the log stored into the snapshot
+	 */
+	private long save(final File file) throws IOException {
+		if (mapped) {
+			final MappedModel model = (MappedModel) published;
+			Snapshot.copy(model.getFile(), file);
+			return model.getLogMark();
+		}
+		
+		final LearningLog log = this.log;
+		long mark = replayed;
+		
+		if (log != null) {
+			synchronized (log) {
+				// A replaced engine has learned the messages up to the hand-over only
+				mark = (null == successor) ? log.mark() : handedOver;
+				pending.drainTo(batch);
+			}
+			
+			learnBatch();
+		}
+		
+		freeze();
+		
+		// The dump needs the whole compiled model, which is the next base as well
+		if (published instanceof DeltaModel) {
+			publishCompiled(false);
+		}
+		
+		// Only for the dump, a trie remains published
+		Snapshot.save((published instanceof CompactModel) ? (CompactModel) published :
+			new CompactModel(staging()), mark, file);
+		
+		return mark;
+	}
+	
+	/**
+	 * Replaces the knowledge of the engine with the one dumped into the specified file by
+	 * {@link #saveSnapshot(File)}. The Markov-order of the engine is set to the one of the snapshot.
+	 * 
+	 * <p>
+	 * The staging model is rebuilt from the snapshot only when the engine learns something next time.
+	 * </p>
+	 * 
+	 * @return the time it took in msecs
+	 */
+	public long loadSnapshot(final File file) throws IOException {
+		long time = -System.currentTimeMillis();
+		
+		synchronized (writeLock) {
+			final Snapshot.Loaded snapshot = Snapshot.load(file);
+			restore(snapshot.model, snapshot.logMark);
+			
+			if (log != null) {
+				replayLog();
+			}
+		}
+		
+		time += System.currentTimeMillis();
+		info("Snapshot loaded from " + file + ", took " + time + " msecs.");
+		return time;
+	}
+	
+	/**
+	 * Replaces the knowledge of the engine with the snapshot in the specified file, used in place
+	 * through memory-mapping (see {@link MappedModel}). The Markov-order of the engine is set to the
+	 * one of the snapshot.
+	 * 
+	 * <p>
+	 * This is the way to use models larger than the heap: the model is never loaded. Therefore the
+	 * engine doesn't learn while the model is mapped: the messages of {@link #addString(String)} are
+	 * dropped (counted by <tt>engine.learn.ignored</tt>), and they are not replayed from the
+	 * {@link #setLog(LearningLog) log} either; they remain in the log until the engine is
+	 * reinitialized from a text or from a snapshot loaded into the heap.
+	 * </p>
+	 * 
+	 * @return the time it took in msecs
+	 */
+	public long mapSnapshot(final File file) throws IOException {
+		long time = -System.currentTimeMillis();
+		
+		synchronized (writeLock) {
+			final MappedModel model = new MappedModel(file);
+			restore(model, model.getLogMark());
+			
+			if (log != null) {
+				replayLog();
+			}
+		}
+		
+		time += System.currentTimeMillis();
+		info("Snapshot mapped from " + file + ", took " + time + " msecs.");
+		return time;
+	}
+	
+	/**
+	 * Makes the specified restored model serve the generation (the write lock must be held). The
+	 * messages of the log before the given mark are learned into the model already.
+	 */
+	private void restore(final Model model, final long logMark) {
+		markovOrder = model.order();
+		mapped = (model instanceof MappedModel);
+		publish(model, true);
+		staging = null;
+		orders = null;
+		base = (model instanceof CompactModel) ? (CompactModel) model : null;
+		stagingFootprint = 0;
+		dirty = false;
+		replayed = logMark;
+	}
+	
+	public LearningLog getLog() {
+		return log;
+	}
+	
+	/**
+	 * Sets the durable log of the messages given to {@link #addString(String)} (<code>null</code> to
+	 * turn it off). The messages of the log are learned at once on top of the current knowledge of
+	 * the engine, and again after each {@link #init(URL, Loader.InputType) reinitialization} or
+	 * restored snapshot, so nothing learned at runtime is lost by a restart. A snapshot is given only
+	 * the messages after the mark it was saved at. The log is compacted by {@link #compactLog(File)}.
+	 * 
+	 * <p>
+	 * The log is not closed by the engine; it may be handed over to the next engine of the bot.
+	 * </p>
+	 */
+	public void setLog(final LearningLog log) throws IOException {
+		synchronized (writeLock) {
+			this.log = log;
+			
+			if (log != null) {
+				replayLog();
+			}
+		}
+	}
+	
+	/**
+	 * Learns and publishes the messages of the log not learned into the engine yet (the write lock
+	 * must be held). The pending ones are dropped, they are in the log already.
+	 */
+	private void replayLog() throws IOException {
+		if (mapped) {
+			info("The log " + log.getFile() + " is not replayed into a mapped model.");
+			return;
+		}
+		
+		final long mark;
+		
+		synchronized (log) {
+			mark = log.mark();
+			pending.clear();
+		}
+		
+		bulkLearned = true;
+		replay(replayed, mark);
+	}
+	
+	/**
+	 * Learns the messages appended to the log after the ones replayed into this engine, up to the
+	 * specified {@link LearningLog#mark() mark}: the ones another engine sharing the log received
+	 * meanwhile (e.g. the previous engine of the bot, while this one was loaded). The messages given
+	 * to this engine must all be after the mark, such as the one of {@link #handOver(Engine)}.
+	 * Does nothing without a log, or for a mapped model.
+	 */
+	public void catchUpLog(final long mark) throws IOException {
+		synchronized (writeLock) {
+			if (null == log || mapped || mark <= replayed) return;
+			
+			replay(replayed, mark);
+		}
+	}
+	
+	/** Learns and publishes the messages of the log between the specified marks (the write lock must be held). */
+	private void replay(final long from, final long mark) throws IOException {
+		final long start = System.currentTimeMillis();
+		log.sync();
+		
+		final LearningLog.Cursor cursor = log.read(from, mark);
+		int count = 0;
+		
+		try {
+			for (String message = cursor.next(); message != null; message = cursor.next()) {
+				learn(message);
+				++count;
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		replayed = mark;
+		freeze();
+		
+		info("Replayed " + count + " messages of the log " + log.getFile() + ", took " +
+			(System.currentTimeMillis() - start) + " msecs.");
+	}
+	
+	private static File toFile(final URL url) throws IOException {
+		if (!"file".equals(url.getProtocol()))
+			throw new IOException("Snapshots must be local files: " + url);
+		
+		try {
+			return new File(url.toURI());
+		} catch (final URISyntaxException e) {
+			final IOException ioe = new IOException("Invalid file URL: " + url);
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+	
+	/**
+	 * Returns the staging model, rebuilding it from the published one if it's necessary (the write
+	 * lock must be held).
+	 */
+	private StagingModel staging() {
+		if (null == staging) {
+			staging = new StagingModel(published);
+		}
+		
+		return staging;
+	}
+	
+	/** Returns true if everything learned so far has been published. */
+	public boolean isFrozen() {
+		synchronized (writeLock) {
+			return !dirty && pending.isEmpty();
+		}
+	}
+
+	/**
+	 * Adds the specified string to the bot's knowledge.
+	 * 
+	 * <p>
+	 * The message is queued, and returns immediately: a background thread iterates through the words
+	 * of the message and creates the corresponding tuples, and sets the necessary properties also (if
+	 * the created tuple is a finisher/starter one). The result is visible to the generation after
+	 * the next publication (see {@link #flush()}).
+	 * </p>
+	 * 
+	 * <p>
+	 * If {@link #MAX_PENDING} messages are already waiting, the caller learns them itself.
+	 * </p>
+	 * 
+	 * <p>
+	 * Once the engine is {@link #handOver(Engine) replaced}, the message is given to its successor.
+	 * </p>
+	 * 
+	 * <p>
+	 * The message is dropped if the model is mapped (see {@link #mapSnapshot(File)}).
+	 * </p>
+	 * 
+	 * <p>
+	 * If the engine has a {@link #setLog(LearningLog) log}, the message is appended to it as well, in
+	 * the order of the queue (holding the monitor of the log, see {@link #catchUpLog(long)}); the
+	 * write is left to the log, so the caller doesn't wait for the disk.
+	 * </p>
+	 * 
+	 * @param message
+	 */
+	public void addString(final String message) {
+		assert (message != null) 
+		: "Message cannot be null!";
+		
+		final LearningLog log = this.log;
+		Engine successor;
+		boolean offered;
+		
+		do {
+			synchronized (pending) {
+				if (null == log) {
+					successor = this.successor;
+					offered = (null == successor) && pending.offer(message);
+				} else {
+					synchronized (log) {
+						successor = this.successor;
+						offered = (null == successor) && pending.offer(message);
+						if (offered) log.append(message);
+					}
+				}
+			}
+			
+			if (successor != null) {
+				successor.addString(message);
+				return;
+			}
+			
+			if (!offered) {
+				// The queue is full: learning the waiting messages makes room for this one
+				synchronized (writeLock) {
+					learnPending();
+				}
+			}
+		} while (!offered);
+		
+		queued.incrementAndGet();
+		queuedSignal.release();
+		
+		if (null == learner) {
+			startLearner();
+		}
+	}
+	
+	/**
+	 * Same as {@link #addString(String)} for a message given as the <code>text[start .. end)</code>
+	 * range of a buffer, but learned synchronously, without publishing it (used by the {@link Loader}).
+	 * 
+	 * @return true if the bot learned something new from the input;
+	 * 			false otherwise.
+	 */
+	boolean addString(final char[] text, final int start, final int end) {
+		synchronized (writeLock) {
+			if (mapped) {
+				ignored.incrementAndGet();
+				return false;
+			}
+			
+			final int tuples = (orders != null) ? orders.learn(text, start, end) : staging().learn(text, start, end);
+			
+			if (tuples > 0) {
+				dirty = true;
+				bulkLearned = true;
+				window = null;
+			}
+			
+			return (tuples > 0);
+		}
+	}
+	
+	/**
+	 * Merges a model learned separately (e.g. from a chunk of a larger input) into the knowledge of
+	 * the engine (see {@link StagingModel#merge(StagingModel)}).
+	 */
+	void merge(final StagingModel partial) {
+		synchronized (writeLock) {
+			if (mapped) return;
+			
+			staging().merge(partial);
+			dirty = true;
+			bulkLearned = true;
+			window = null;
+		}
+	}
+	
+	/**
+	 * Learns the messages queued so far into the staging model (the write lock must be held). The
+	 * ones queued in the meantime are left for the next batch, so the writers can't keep the lock
+	 * held forever.
+	 */
+	private void learnPending() {
+		pending.drainTo(batch);
+		learnBatch();
+	}
+	
+	/** Learns the messages of the {@link #batch} into the staging model (the write lock must be held). */
+	private void learnBatch() {
+		if (batch.isEmpty()) return;
+		
+		final long start = System.nanoTime();
+		
+		for (int i = 0; i < batch.size(); ++i) {
+			learn(batch.get(i));
+		}
+		
+		batchTimes.record((System.nanoTime() - start) / 1000);
+		batchedMessages.addAndGet(batch.size());
+		batch.clear();
+	}
+	
+	/**
+	 * Learns the specified message into the staging model (the write lock must be held); the message
+	 * is dropped if the model is mapped.
+	 */
+	private void learn(final String message) {
+		if (mapped) {
+			ignored.incrementAndGet();
+			return;
+		}
+		
+		// Created before the learning, so the new states of the message aren't pinned
+		final LearningWindow window = (null == orders && windowMessages > 0) ? window() : null;
+		
+		if (null == window) {
+			// Kept for good, as a window turned on again must not expire the messages before this one
+			this.window = null;
+		}
+		
+		final int tuples = (orders != null) ? orders.learn(message) : staging().learn(message);
+		learned.incrementAndGet();
+		learnedTuples.addAndGet(tuples);
+		
+		if (tuples > 0) {
+			dirty = true;
+			
+			// The new words must pass the filter before they're published
+			final BloomFilter filter = vocabulary;
+			
+			if (!bulkLearned && (replies != null || filter != null)) {
+				StagingModel.words(message, messageWords);
+				learnedWords.addAll(messageWords);
+				
+				if (filter != null) {
+					for (int i = 0; i < messageWords.size(); ++i) {
+						filter.add(messageWords.get(i));
+					}
+				}
+				
+				messageWords.clear();
+			}
+		}
+		
+		if (window != null) {
+			final long now = System.currentTimeMillis();
+			window.record(staging.states(), tuples, now);
+			expire(now);
+		}
+		
+		final Tracer tracer = this.tracer;
+		if (tracer != null) {
+			tracer.learned(message, tuples);
+		}
+	}
+	
+	/**
+	 * Returns the learning window of the staging model, creating a new one if there is none or the
+	 * settings were changed (the write lock must be held).
+	 */
+	private LearningWindow window() {
+		final LearningWindow ret = currentWindow();
+		return (ret != null) ? ret : (window = new LearningWindow(staging(), windowMessages, windowAge));
+	}
+	
+	/**
+	 * Returns the learning window if it belongs to the staging model and the current settings,
+	 * <code>null</code> otherwise (the write lock must be held).
+	 */
+	private LearningWindow currentWindow() {
+		final LearningWindow ret = window;
+		
+		if (null == ret || null == staging || ret.model() != staging || ret.getCapacity() != windowMessages ||
+				ret.getMaxAge() != windowAge) {
+			return null;
+		}
+		
+		return ret;
+	}
+	
+	/** Forgets the messages dropping out of the learning window (the write lock must be held). */
+	private void expire(final long now) {
+		final LearningWindow window = currentWindow();
+		if (null == window) return;
+		
+		final int expired = window.expire(now, (replies != null && !bulkLearned) ? learnedWords : null);
+		
+		if (expired > 0) {
+			dirty = true;
+			expiredMessages.addAndGet(expired);
+		}
+	}
+	
+	private void startLearner() {
+		synchronized (pending) {
+			if (null == learner && !closed) {
+				final Thread thread = new Thread(new Learner(), "Shapeshifter-learner");
+				thread.setDaemon(true);
+				thread.start();
+				learner = thread;
+			}
+		}
+	}
+	
+	/**
+	 * Learns the messages of {@link #addString(String)} in batches: waits for a message, then learns
+	 * it with all the others queued in the meantime. The messages are taken from the queue only under
+	 * the write lock, so {@link #saveSnapshot(File)} and {@link #replayLog()} never miss one held by
+	 * the learner. The batches are published when at least
+	 * {@link #getPublishInterval()} msecs passed since the last publication; otherwise the next batch
+	 * is waited for until the end of the interval. The learner also wakes up when the oldest message
+	 * of the learning window expires (see {@link #setLearningWindow(int, long)}).
+	 */
+	private class Learner implements Runnable {
+		@Override
+		public void run() {
+			long lastPublish = 0;
+			boolean unpublished = false;
+			long nextExpiry = Long.MAX_VALUE;
+			
+			try {
+				while (true) {
+					final long deadline = Math.min(unpublished ? lastPublish + publishInterval : Long.MAX_VALUE, nextExpiry);
+					
+					if (deadline < Long.MAX_VALUE) {
+						queuedSignal.tryAcquire(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+					} else {
+						queuedSignal.acquire();
+					}
+					
+					// The messages queued so far are all learned below
+					queuedSignal.drainPermits();
+					
+					synchronized (writeLock) {
+						expire(System.currentTimeMillis());
+						learnPending();
+						
+						if (dirty && System.currentTimeMillis() - lastPublish >= publishInterval) {
+							final long start = System.currentTimeMillis();
+							freeze();
+							lastPublish = System.currentTimeMillis();
+							publishTimes.record(lastPublish - start);
+						}
+						
+						unpublished = dirty;
+						
+						final LearningWindow window = currentWindow();
+						nextExpiry = (null == window) ? Long.MAX_VALUE : window.nextExpiry();
+					}
+				}
+			} catch (final InterruptedException e) {
+				// Shutting down, the pending messages are flushed by the caller
+			} finally {
+				learner = null;
+			}
+		}
+	}
+	
+	/**
+	 * Resolves the specified word of the successor (<tt>forward</tt>) or predecessor states of the
+	 * given state, with the weights of the transitions above 1 (for the verbose output).
+	 */
+	private static String toString(final Model model, final int state, final boolean forward) {
+		final int count = forward ? model.followingCount(state) : model.precedingCount(state);
+		final String[] ret = new String[count];
+		for (int i = 0; i < count; ++i) {
+			ret[i] = forward
+				? model.word(model.token(model.following(state, i), model.order() - 1))
+				: model.word(model.token(model.preceding(state, i), 0));
+
+			final int weight = forward ? model.followingWeight(state, i) : model.precedingWeight(state, i);
+			if (weight > 1) ret[i] += " x" + weight;
+		}
+		
+		return Arrays.toString(ret);
+	}
+	
+	/**
+	 * Returns a random state of the specified model, skipping the released ones (see
+	 * {@link LearningWindow}), or <code>-1</code> if there are only released states.
+	 */
+	private static int randomState(final Model model, final Random random) {
+		// The released states are isolated: neither finishers nor have any successors
+		for (int i = 0; i < RANDOM_TRIES; ++i) {
+			final int ret = random.nextInt(model.size());
+			if (model.isFinisher(ret) || model.followingCount(ret) > 0) return ret;
+		}
+		
+		final int first = random.nextInt(model.size());
+		for (int i = 0; i < model.size(); ++i) {
+			final int ret = (first + i) % model.size();
+			if (model.isFinisher(ret) || model.followingCount(ret) > 0) return ret;
+		}
+		
+		return -1;
+	}
+	
+	/** Returns the words of the specified state (for the verbose output). */
+	private static String toString(final Model model, final int state) {
+		final String[] ret = new String[model.order()];
+		for (int i = 0; i < ret.length; ++i) {
+			ret[i] = model.word(model.token(state, i));
+		}
+		
+		return Arrays.toString(ret);
+	}
+	
 	public Result generateSentence() {
 		return generateSentence(null);
 	}
 	
+	/**
+	 * Returns the id of the specified word in the given (published) model, or <tt>-1</tt> if it's
+	 * unknown; the words rejected by the vocabulary filter are not looked up.
+	 * 
+	 * <p>
+	 * An unknown word passing the filter is a false positive only if it's not learned yet: the
+	 * learned words are added to the filter before they are published. (A reader of the previous
+	 * model during a publication may still count a few of them.)
+	 * </p>
+	 */
+	private int lookup(final Model model, final String word) {
+		final BloomFilter filter = vocabulary;
+		
+		if (filter != null && !filter.mightContain(word)) {
+			filteredWords.incrementAndGet();
+			return -1;
+		}
+		
+		final int ret = model.lookup(word);
+		
+		if (-1 == ret && filter != null && !learnedWords.contains(word)) {
+			falsePositives.incrementAndGet();
+		}
+		
+		return ret;
+	}
+	
 	/**
 	 * If the parameter is <code>null</code> returns a sentence built from a random word in the database.
 	 * Otherwise it tries to reply to the specified <tt>startingWord</tt> parameter.
@@ -321,11 +1742,19 @@ public class Engine {
 	 * </p>
 	 */
 	public Result generateSentence(final String startingWord) {
-		if (0 == knownTuples.size())
+		final long start = System.nanoTime();
+		final Model model = published;
+		final Random random = randoms.get();
+		final Tracer tracer = this.tracer;
+		
+		if (0 == model.size())
 			return new Result("I ain't lern mysellf w00t. u teach me!", 0);
 		
-		final boolean knownWord = startingWord == null ||
-				containers.containsKey(startingWord);
+		final int startingId = (null == startingWord) ? -1 : lookup(model, startingWord);
+		
+		// A word may be known without any states containing it (see OrderSet)
+		final boolean contained = startingId >= 0 && model.containerCount(startingId) > 0;
+		final boolean knownWord = startingWord == null || contained;
 		
 		if (hegedusHeuristic && !knownWord) {
 			String ret = new String(startingWord);
@@ -335,85 +1764,180 @@ public class Engine {
 		
 		int entrophy = 0;
 		
-		System.out.println(">> Trying to reply to word: " + startingWord +
-				( !knownWord ? " [UNKNOWN]" : ""));
+		if (tracer != null) tracer.replyStarted(startingWord, knownWord);
 		
-		final Tuple[] tuples = (containers.containsKey(startingWord))
-				? containers.get(startingWord).toArray(new Tuple[0])
-				: knownTuples.toArray(new Tuple[knownTuples.size()]);
+		final int chosenTuple = contained
+				? model.container(startingId, random.nextInt(model.containerCount(startingId)))
+				: randomState(model, random);
 		
-		final Tuple chosenTuple = tuples[random.nextInt(tuples.length)];
-		Tuple tuple = chosenTuple;
+		if (chosenTuple < 0)
+			return new Result("I ain't lern mysellf w00t. u teach me!", 0);
 		
-		System.out.println(">> Selected tuple: " + tuple);
-		System.out.println();
+		int tuple = chosenTuple;
+		final int last = model.order() - 1;
 		
-		System.out.println("--------------------------------------------------------- Building postfix");
+		if (tracer != null) {
+			tracer.tupleSelected(toString(model, tuple));
+			tracer.buildStarted(true);
+		}
 		
-		final Sentence sentence = new Sentence(tuple);
+		final Sentence sentence = new Sentence(model, tuple);
 
-		while (! descriptors.get(tuple).isFinisher()) {
-			final String[] nextTokens = followings.get(tuple).toArray(new String[0]);
-			entrophy += nextTokens.length - 1 + strackEntropyCompensation;
-			System.out.println(">> Available next tokens: " + Arrays.toString(nextTokens));
-			final String next = nextTokens[random.nextInt(nextTokens.length)];
-			System.out.println(">> Chosen one is: " + next);
+		while (! model.isFinisher(tuple)) {
+			final int nextTokens = model.followingCount(tuple);
+			entrophy += nextTokens - 1 + strackEntropyCompensation;
+			final String candidates = (tracer != null) ? toString(model, tuple, true) : null;
+			tuple = model.nextFollowing(tuple, random);
+			final int next = model.token(tuple, last);
 			sentence.append(next);
 			
-			final Tuple candidate = tuple.shiftRight(next);
-			System.out.println(">> Shifted tuple is: " + candidate +
-					(descriptors.get(candidate).isFinisher() ? " (finisher)" : ""));
-			
-			for (final Tuple act : knownTuples) {
-				if (act.equals(candidate)) {
-					tuple = act;
-				}
+			if (tracer != null) {
+				tracer.stepped(true, candidates, model.word(next), toString(model, tuple), model.isFinisher(tuple));
 			}
-			
-			System.out.println();
 		}
 		
-		System.out.println(">> Finished!");
-		System.out.println();
-		System.out.println("--------------------------------------------------------- Building prefix");
+		if (tracer != null) {
+			tracer.buildFinished(true);
+			tracer.buildStarted(false);
+		}
+		
 		tuple = chosenTuple;
-		while (!descriptors.get(tuple).isStarter()) {
-			final String[] prevTokens = preceedings.get(tuple).toArray(new String[0]);
-			entrophy += prevTokens.length - 1 + strackEntropyCompensation;
-			System.out.println(">> Available prev tokens: " + Arrays.toString(prevTokens));
-			final String prev = prevTokens[random.nextInt(prevTokens.length)];
-			System.out.println(">> Chosen one is: " + prev);
+		while (!model.isStarter(tuple)) {
+			final int prevTokens = model.precedingCount(tuple);
+			entrophy += prevTokens - 1 + strackEntropyCompensation;
+			final String candidates = (tracer != null) ? toString(model, tuple, false) : null;
+			tuple = model.nextPreceding(tuple, random);
+			final int prev = model.token(tuple, 0);
 			sentence.prepend(prev);
 
-			final Tuple candidate = tuple.shiftLeft(prev);
-			System.out.println(">> Shifted tuple is: " + candidate +
-					(descriptors.get(candidate).isStarter() ? " (starter)" : ""));
-			
-			for (final Tuple act : knownTuples) {
-				if (act.equals(candidate)) {
-					tuple = act;
-				}
+			if (tracer != null) {
+				tracer.stepped(false, candidates, model.word(prev), toString(model, tuple), model.isStarter(tuple));
 			}
-			
-			System.out.println();
 		}
 		
-		System.out.println(">> Finished!");
-		System.out.println();
 		final Result result = new Result(sentence.toString(), entrophy);
-		System.out.println(result);
-		System.out.println("==========================================================================");
-		System.out.println();
-		System.out.println();
+		generateTimes.record((System.nanoTime() - start) / 1000);
+		replyLengths.record(sentence.prefix.size() + sentence.postfix.size());
+		
+		if (tracer != null) {
+			tracer.buildFinished(false);
+			tracer.generated(result);
+		}
 
 		return result;
 	}// +generateSentence(String):Result
 	
+	/**
+	 * Generates <tt>count</tt> candidate sentences for the specified word in parallel (see
+	 * {@link #generateSentence(String)}).
+	 * 
+	 * <p>
+	 * If a positive <tt>timeout</tt> (in msecs) is specified, returns the candidates finished until
+	 * the deadline, but waits for at least one of them in any case.
+	 * </p>
+	 * 
+	 * @return the finished candidates, in the order of their completion
+	 */
+	public List<Result> generateSentences(final String startingWord, final int count, final long timeout) {
+		final long deadline = System.currentTimeMillis() + timeout;
+		final CompletionService<Result> service = new ExecutorCompletionService<Result>(generators());
+		final ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>(count);
+		
+		for (int i = 0; i < count; ++i) {
+			futures.add(service.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return generateSentence(startingWord);
+				}
+			}));
+		}
+		
+		final ArrayList<Result> ret = new ArrayList<Result>(count);
+		
+		try {
+			while (ret.size() < count) {
+				final Future<Result> future;
+				
+				if (timeout <= 0 || ret.isEmpty()) {
+					future = service.take();
+				} else {
+					future = service.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+					if (null == future) break;
+				}
+				
+				ret.add(future.get());
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException e) {
+			throw new IllegalStateException("Failed to generate a sentence", e.getCause());
+		} finally {
+			// The late ones are not needed anymore
+			for (final Future<Result> future : futures) {
+				future.cancel(false);
+			}
+		}
+		
+		final Tracer tracer = this.tracer;
+		if (tracer != null) {
+			tracer.candidates(startingWord, ret);
+		}
+		
+		return ret;
+	}// +generateSentences(String,int,long):List<Result>
+	
+	/**
+	 * Returns the candidate with the highest Strack-entropy of the ones generated by
+	 * {@link #generateSentences(String, int, long)}, or <code>null</code> if the thread was interrupted.
+	 */
+	public Result generateBest(final String startingWord, final int count, final long timeout) {
+		Result ret = null;
+		
+		for (final Result result : generateSentences(startingWord, count, timeout)) {
+			if (null == ret || result.entropy > ret.entropy) {
+				ret = result;
+			}
+		}
+		
+		return ret;
+	}// +generateBest(String,int,long):Result
+	
+	/**
+	 * Returns a reply for the specified word (<code>null</code> for a random sentence): the same as
+	 * {@link #generateBest(String, int, long)}, but served from the reply cache if it's possible (see
+	 * {@link ReplyCache}). The cache is bypassed while the engine is traced or empty.
+	 */
+	public Result reply(final String startingWord, final int count, final long timeout) {
+		if (null == replies || tracer != null || 0 == published.size()) {
+			return generateBest(startingWord, count, timeout);
+		}
+		
+		return replies.reply(startingWord, count, timeout);
+	}// +reply(String,int,long):Result
+	
+	private static synchronized ExecutorService generators() {
+		if (null == generators) {
+			generators = Executors.newFixedThreadPool(GENERATOR_THREADS, new ThreadFactory() {
+				private int count = 0;
+				
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread ret = new Thread(runnable, "Shapeshifter-generator-" + ++count);
+					ret.setDaemon(true);
+					return ret;
+				}
+			});
+		}
+		
+		return generators;
+	}
+	
 	//===================================================================================================
 	
 	/** JFT - Just For Testing ;] */
 	public static void main(final String[] args) throws IOException {
 		final Engine engine = new Engine();
+		engine.setTracer(new ConsoleTracer());
 		long time = -System.currentTimeMillis();
 		Loader.loadIRCLog(new File("C:/tmp/test.txt").toURI().toURL(), engine);
 		time += System.currentTimeMillis();
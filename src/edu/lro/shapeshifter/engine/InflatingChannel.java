@@ -0,0 +1,221 @@
+package edu.lro.shapeshifter.engine;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A channel of the decompressed content of a <tt>gzip</tt> or <tt>zip</tt> stream, for the
+ * {@link SentenceReader}.
+ *
+ * <p>
+ * The input is inflated by a background thread into blocks of {@link SentenceReader#BLOCK_SIZE}
+ * bytes, which are handed over to the reader through a bounded queue, so the inflation and the
+ * splitting of the text overlap, and nothing is written to the disk. The blocks are recycled: there
+ * are {@link #BLOCKS} of them, so the inflater waits when it gets that far ahead of the reader.
+ * </p>
+ *
+ * <p>
+ * The files of a <tt>zip</tt> archive are read one after the other (the directories are skipped),
+ * as if they were a single text; a file not ending with a line break is followed by one, so its
+ * last line isn't joined to the first one of the next file.
+ * </p>
+ *
+ * @author legendi
+ */
+final class InflatingChannel implements ReadableByteChannel {
+
+	/** Number of the blocks shared by the inflater and the reader. */
+	static final int BLOCKS = 16;
+
+	/** Marks the end of the input in the queue of the filled blocks. */
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+	private final InputStream in;
+	private final boolean zip;
+
+	/** The blocks waiting for the reader, and the ones waiting for the inflater. */
+	private final ArrayBlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(BLOCKS + 1);
+	private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BLOCKS);
+
+	/** The block being read (accessed by the reader only). */
+	private ByteBuffer current = null;
+
+	private final Thread inflater;
+
+	/**
+	 * The failure of the inflater, rethrown by the reader at the end of the blocks: an I/O error, or
+	 * anything else the decompression threw (e.g. the <tt>IllegalArgumentException</tt> of a
+	 * malformed entry name of a <tt>zip</tt> archive).
+	 */
+	private volatile Throwable failure = null;
+
+	private volatile boolean open = true;
+
+	/** The last byte of the current file of the archive (accessed by the inflater only). */
+	private int last = '\n';
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Starts inflating the specified compressed stream, a <tt>zip</tt> archive if <tt>zip</tt> is
+	 * true, a <tt>gzip</tt> file otherwise. The stream is closed with the channel.
+	 */
+	InflatingChannel(final InputStream raw, final boolean zip) {
+		this.in = raw;
+		this.zip = zip;
+
+		for (int i = 0; i < BLOCKS; ++i) {
+			free.add(ByteBuffer.allocate(SentenceReader.BLOCK_SIZE));
+		}
+
+		inflater = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				inflate();
+			}
+		}, "Shapeshifter-inflater");
+
+		inflater.setDaemon(true);
+		inflater.start();
+	}
+
+	/** Returns true if the specified name is the one of a compressed input supported by the channel. */
+	static boolean isCompressed(final String name) {
+		final String lower = name.toLowerCase();
+		return lower.endsWith(".gz") || lower.endsWith(".zip");
+	}
+
+	/** Returns true if the specified name is the one of a <tt>zip</tt> archive. */
+	static boolean isZip(final String name) {
+		return name.toLowerCase().endsWith(".zip");
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	@Override
+	public int read(final ByteBuffer dst) throws IOException {
+		if (!open) throw new ClosedChannelException();
+
+		if (null == current || !current.hasRemaining()) {
+			if (current != null && current != EOF) {
+				current.clear();
+				free.add(current);
+			}
+
+			try {
+				current = (EOF == current) ? EOF : filled.take();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the inflater.");
+			}
+		}
+
+		if (EOF == current) {
+			if (failure != null)
+				throw new IOException("Cannot inflate the input.", failure);
+
+			return -1;
+		}
+
+		final int length = Math.min(current.remaining(), dst.remaining());
+		final int limit = current.limit();
+
+		current.limit(current.position() + length);
+		dst.put(current);
+		current.limit(limit);
+		return length;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/** Stops the inflater, which closes the compressed stream. */
+	@Override
+	public void close() throws IOException {
+		open = false;
+		inflater.interrupt();
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** The loop of the inflater thread. */
+	private void inflate() {
+		try {
+			if (zip) {
+				final ZipInputStream archive = new ZipInputStream(new BufferedInputStream(in, SentenceReader.BLOCK_SIZE));
+
+				for (ZipEntry entry = archive.getNextEntry(); entry != null; entry = archive.getNextEntry()) {
+					if (entry.isDirectory()) continue;
+
+					copy(archive);
+
+					if ('\n' != last && '\r' != last) {
+						final ByteBuffer block = free.take();
+						block.put((byte) '\n').flip();
+						filled.put(block);
+					}
+				}
+			} else {
+				copy(new GZIPInputStream(in, SentenceReader.BLOCK_SIZE));
+			}
+		} catch (final InterruptedException e) {
+			// Closed by the reader
+		} catch (final IOException e) {
+			failure = e;
+		} catch (final RuntimeException e) {
+			failure = e;
+		} catch (final Error e) {
+			failure = e;
+		} finally {
+			try {
+				in.close();
+			} catch (final IOException e) {
+				// Nothing to do, the input is read already
+			}
+
+			filled.offer(EOF);
+		}
+	}
+
+	/** Inflates the specified stream to its end into the free blocks, and queues them. */
+	private void copy(final InputStream stream) throws IOException, InterruptedException {
+		while (true) {
+			final ByteBuffer block = free.take();
+			final byte[] array = block.array();
+			int length = 0;
+
+			// Full blocks, so the reader is woken up as rarely as possible
+			while (length < array.length) {
+				final int read = stream.read(array, length, array.length - length);
+				if (read < 0) break;
+
+				length += read;
+			}
+
+			if (Thread.interrupted()) throw new InterruptedException();
+
+			if (0 == length) {
+				free.add(block);
+				return;
+			}
+
+			last = array[length - 1];
+			block.limit(length);
+			filled.put(block);
+
+			if (length < array.length) return;
+		}
+	}
+
+}
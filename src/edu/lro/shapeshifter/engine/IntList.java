@@ -0,0 +1,79 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive <tt>int</tt>s, to avoid boxing in the hot paths of the engine.
+ *
+ * @author legendi
+ */
+final class IntList {
+
+	private int[] elements;
+	private int size = 0;
+
+	IntList() {
+		this(4);
+	}
+
+	IntList(final int capacity) {
+		elements = new int[capacity];
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(final int index) {
+		if (index >= size)
+			throw new ArrayIndexOutOfBoundsException(index);
+
+		return elements[index];
+	}
+
+	void add(final int element) {
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, Math.max(4, size * 2));
+		}
+
+		elements[size++] = element;
+	}
+
+	/** Removes and returns the last element. */
+	int removeLast() {
+		if (0 == size)
+			throw new ArrayIndexOutOfBoundsException(-1);
+
+		return elements[--size];
+	}
+
+	/**
+	 * Removes the first occurrence of the specified element, moving the last element into its place.
+	 *
+	 * @return true if the element was found; false otherwise.
+	 */
+	boolean remove(final int element) {
+		for (int i = 0; i < size; ++i) {
+			if (elements[i] == element) {
+				elements[i] = elements[--size];
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/** Returns the estimated heap footprint of the list in bytes. */
+	long footprint() {
+		return 32 + 4L * elements.length;
+	}
+
+	int[] toArray() {
+		return Arrays.copyOf(elements, size);
+	}
+
+}
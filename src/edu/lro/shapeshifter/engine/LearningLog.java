@@ -0,0 +1,573 @@
+package edu.lro.shapeshifter.engine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import edu.lro.shapeshifter.metrics.Histogram;
+import edu.lro.shapeshifter.metrics.Metrics;
+
+/**
+ * A durable, append-only log of the messages the engines learn at runtime (see
+ * {@link Engine#setLog(LearningLog)}), to be learned again on top of their base knowledge after a
+ * restart.
+ *
+ * <p>
+ * The appended messages are only queued in memory: a background thread takes all of the queued
+ * ones at once, writes them by a single call, and forces them to the disk by a single
+ * <tt>fsync</tt> (group commit). So appending costs no I/O for the caller, and the cost of a sync
+ * is shared by all the messages arriving while the previous one is in progress. A message is
+ * durable once a {@link #sync()} started after it returned; a crash may lose the last batch.
+ * </p>
+ *
+ * <p>
+ * The file is a header ({@link #MAGIC}, {@link #VERSION}, the index of its first message) and a
+ * sequence of records: the length of the bytes of the message (encoded as the words of the
+ * snapshots, see {@link Snapshot#encode(String)}), the bytes, and their CRC-32. A torn record at the
+ * end of the file (a crash in the middle of a write) is cut off when the log is opened.
+ * </p>
+ *
+ * <p>
+ * The messages are identified by their index since the creation of the log (see {@link #mark()}),
+ * so the marks stored into the snapshots remain valid after a restart. The head of the log is moved
+ * into the archive file (<tt>&lt;log&gt;.archive</tt>, of the same layout) by {@link #truncate(long)}
+ * once its messages are learned into a snapshot: the live file only holds the messages to be
+ * replayed on top of that snapshot, while the archive keeps the ones to be learned again after a
+ * reinitialization from the corpus. The archive is only read then, it may be deleted if the older
+ * messages are not needed any more.
+ * </p>
+ *
+ * <p>
+ * The log is closed by a shutdown hook if the VM exits before {@link #close()}, so the queued
+ * messages are written even by <tt>System.exit()</tt>.
+ * </p>
+ *
+ * @author legendi
+ */
+public final class LearningLog {
+
+	/** "SSWL" */
+	public static final int MAGIC = 0x5353574C;
+
+	/** Increase it on every change of the file layout. */
+	public static final int VERSION = 1;
+
+	/** Maximal number of the messages waiting for the writer; the appenders wait above it. */
+	public static final int MAX_QUEUED = 10000;
+
+	/** Length of the header, in bytes. */
+	private static final int HEADER = 16;
+
+	/** Longest valid record, longer lengths are garbage of a torn write. */
+	private static final int MAX_LENGTH = 1 << 24;
+
+	private final File file;
+	private final File archive;
+
+	/** Serializes the writes and the rewrites of the files; guards {@link #out}, {@link #end} and {@link #first}. */
+	private final Object io = new Object();
+	private RandomAccessFile out;
+
+	/** Length of the valid part of the file, in bytes. */
+	private long end;
+
+	/** The index of the first message of the file: the ones before it are archived. */
+	private long first;
+
+	/** The encoded messages waiting for the writer; the fields below are guarded by the log itself. */
+	private final ArrayList<byte[]> queue = new ArrayList<byte[]>();
+
+	/** The number of the messages ever appended (the archived ones included), and written. */
+	private long appended;
+	private long durable;
+
+	private boolean closed = false;
+	private IOException failure = null;
+
+	private final Thread writer;
+	private final Thread hook;
+
+	private final AtomicLong records;
+	private final Histogram batchSizes;
+	private final Histogram syncTimes;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Opens the specified log file, creating it if it doesn't exist, and starts its writer thread.
+	 * The metrics of the log (<tt>log.*</tt>) are recorded into the given registry.
+	 */
+	public LearningLog(final File file, final Metrics metrics) throws IOException {
+		this.file = file;
+		this.archive = new File(file.getPath() + ".archive");
+		out = new RandomAccessFile(file, "rw");
+
+		try {
+			appended = durable = open();
+		} catch (final IOException e) {
+			out.close();
+			throw e;
+		}
+
+		records = metrics.counter("log.records");
+		batchSizes = metrics.histogram("log.batch", "");
+		syncTimes = metrics.histogram("log.sync", "us");
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "Shapeshifter-log");
+
+		writer.setDaemon(true);
+		writer.start();
+
+		hook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "Shapeshifter-log-hook");
+
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+
+	/**
+	 * Checks the header of the file (writes it if the file is empty), and counts its valid records.
+	 * A torn record at the end is cut off.
+	 *
+	 * @return the index of the message after the last one of the file
+	 */
+	private long open() throws IOException {
+		first = header(out, file, 0);
+
+		final Cursor cursor = new Cursor(file, Long.MAX_VALUE);
+		final long ret;
+
+		try {
+			while (cursor.next() != null);
+			end = cursor.position;
+			ret = cursor.index;
+		} finally {
+			cursor.close();
+		}
+
+		if (end < out.length()) {
+			out.setLength(end);
+			out.getChannel().force(true);
+		}
+
+		out.seek(end);
+		return ret;
+	}
+
+	/**
+	 * Checks the header of the specified log file, and returns the index of its first message. An
+	 * empty file is given a header first, with the specified index.
+	 */
+	private static long header(final RandomAccessFile raf, final File file, final long first) throws IOException {
+		if (0 == raf.length()) {
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeLong(first);
+			raf.getChannel().force(true);
+		}
+
+		raf.seek(0);
+		if (raf.length() < HEADER || raf.readInt() != MAGIC)
+			throw new IOException("Not a learning log: " + file);
+
+		final int version = raf.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported learning log version " + version + " (expected " + VERSION + ")");
+
+		return raf.readLong();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Returns the number of the messages in the log (the ones still queued included). */
+	public synchronized long size() {
+		return appended - first;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Queues the specified message to be written into the log. Returns at once, unless
+	 * {@link #MAX_QUEUED} messages are waiting already. The messages appended after a failure of the
+	 * writer or after closing the log are dropped.
+	 */
+	public void append(final String message) {
+		final byte[] bytes = Snapshot.encode(message);
+
+		synchronized (this) {
+			while (queue.size() >= MAX_QUEUED && !closed && null == failure) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+
+			if (closed || failure != null) return;
+
+			queue.add(bytes);
+			++appended;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns the index of the next message to be appended: the messages appended so far are the
+	 * ones before it (see {@link #truncate(long)}). The indices are kept across restarts.
+	 */
+	public synchronized long mark() {
+		return appended;
+	}
+
+	/**
+	 * Waits until the messages appended so far are written and forced to the disk.
+	 *
+	 * @throws IOException if the writer failed
+	 */
+	public void sync() throws IOException {
+		synchronized (this) {
+			final long target = appended;
+
+			while (durable < target && null == failure && writer.isAlive()) {
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while syncing " + file);
+				}
+			}
+
+			if (failure != null)
+				throw new IOException("Cannot write the learning log " + file, failure);
+		}
+	}
+
+	/**
+	 * Moves the messages before the specified {@link #mark()} from the head of the log into the
+	 * archive, e.g. the ones learned into a snapshot. The rest of the log is copied into a new file,
+	 * which replaces the log by a rename; meanwhile the messages are queued.
+	 */
+	public void truncate(final long mark) throws IOException {
+		sync();
+
+		synchronized (io) {
+			if (mark <= first) return;
+
+			final Cursor cursor = new Cursor(file, mark);
+			final long offset;
+			final long index;
+
+			try {
+				while (cursor.next() != null);
+				offset = cursor.position;
+				index = cursor.index;
+			} finally {
+				cursor.close();
+			}
+
+			archive(offset);
+
+			final File temp = new File(file.getPath() + ".tmp");
+			final RandomAccessFile copy = new RandomAccessFile(temp, "rw");
+
+			try {
+				copy.setLength(0);
+				header(copy, temp, index);
+				copy.seek(HEADER);
+
+				final FileChannel channel = copy.getChannel();
+				for (long position = offset; position < end; ) {
+					position += out.getChannel().transferTo(position, end - position, channel);
+				}
+
+				channel.force(true);
+			} finally {
+				copy.close();
+			}
+
+			out.close();
+			Snapshot.replace(temp, file);
+
+			out = new RandomAccessFile(file, "rw");
+			end = out.length();
+			out.seek(end);
+			first = index;
+		}
+	}
+
+	/**
+	 * Appends the records of the file before the specified offset to the archive (the monitor
+	 * {@link #io} must be held). The archive must end where the file starts: the records after that
+	 * are left by an interrupted {@link #truncate(long)}, they are still in the file, so they are cut
+	 * off first.
+	 */
+	private void archive(final long offset) throws IOException {
+		final RandomAccessFile copy = new RandomAccessFile(archive, "rw");
+
+		try {
+			header(copy, archive, first);
+
+			final Cursor cursor = new Cursor(archive, first);
+			final long position;
+
+			try {
+				while (cursor.next() != null);
+				position = cursor.position;
+
+				if (cursor.index != first)
+					throw new IOException("The archive " + archive + " ends at the message " + cursor.index +
+							", the log " + file + " starts at " + first);
+			} finally {
+				cursor.close();
+			}
+
+			copy.setLength(position);
+			copy.seek(position);
+
+			final FileChannel channel = copy.getChannel();
+			for (long from = HEADER; from < offset; ) {
+				from += out.getChannel().transferTo(from, offset - from, channel);
+			}
+
+			channel.force(true);
+		} finally {
+			copy.close();
+		}
+	}
+
+	/**
+	 * Writes the queued messages, and stops the writer thread. The messages appended later are
+	 * dropped.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			writer.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (io) {
+			out.close();
+		}
+
+		if (Thread.currentThread() != hook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(hook);
+			} catch (final IllegalStateException e) {
+				// Shutting down already, the hook is running or done
+			}
+		}
+
+		synchronized (this) {
+			if (failure != null)
+				throw new IOException("Cannot write the learning log " + file, failure);
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns a cursor of the messages between the specified {@link #mark() marks} (they must be
+	 * durable already, see {@link #sync()}). The ones before the start of the file are read from the
+	 * archive, as far as it has them.
+	 */
+	Cursor read(final long from, final long mark) throws IOException {
+		synchronized (io) {
+			final Cursor ret = new Cursor(file, mark);
+
+			if (from < first && archive.exists()) {
+				final Cursor head = new Cursor(archive, Math.min(first, mark));
+				head.tail = ret;
+				head.skip(from);
+				return head;
+			}
+
+			ret.skip(from);
+			return ret;
+		}
+	}
+
+	/** The loop of the writer thread: writes the queued messages in batches, one sync per batch. */
+	private void write() {
+		final ArrayList<byte[]> batch = new ArrayList<byte[]>();
+		final CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+		try {
+			while (true) {
+				synchronized (this) {
+					while (queue.isEmpty() && !closed) wait();
+					if (queue.isEmpty()) return;
+
+					batch.addAll(queue);
+					queue.clear();
+					notifyAll();
+				}
+
+				int length = 0;
+				for (int i = 0; i < batch.size(); ++i) {
+					length += 8 + batch.get(i).length;
+				}
+
+				if (buffer.capacity() < length) {
+					buffer = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+				}
+
+				buffer.clear();
+				for (int i = 0; i < batch.size(); ++i) {
+					final byte[] bytes = batch.get(i);
+					crc.reset();
+					crc.update(bytes);
+
+					buffer.putInt(bytes.length);
+					buffer.put(bytes);
+					buffer.putInt((int) crc.getValue());
+				}
+
+				buffer.flip();
+				final long start = System.nanoTime();
+
+				synchronized (io) {
+					final FileChannel channel = out.getChannel();
+
+					while (buffer.hasRemaining()) {
+						end += channel.write(buffer, end);
+					}
+
+					channel.force(false);
+				}
+
+				syncTimes.record((System.nanoTime() - start) / 1000);
+				batchSizes.record(batch.size());
+				records.addAndGet(batch.size());
+
+				synchronized (this) {
+					durable += batch.size();
+					notifyAll();
+				}
+
+				batch.clear();
+			}
+		} catch (final InterruptedException e) {
+			// Not interrupted by the log itself
+		} catch (final IOException e) {
+			e.printStackTrace();
+
+			synchronized (this) {
+				failure = e;
+				queue.clear();
+				notifyAll();
+			}
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Reads the records of a log file from its beginning, up to the message of a given index, and
+	 * the ones of its tail cursor afterwards.
+	 */
+	static final class Cursor {
+		private final DataInputStream in;
+		private final CRC32 crc = new CRC32();
+		private final long mark;
+
+		/** The cursor to continue with at the end of this one, if any. */
+		Cursor tail = null;
+
+		/** The position after the last valid record, and the index of the message after it. */
+		long position = HEADER;
+		long index;
+
+		Cursor(final File file, final long mark) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			this.mark = mark;
+
+			try {
+				in.readFully(new byte[HEADER - 8]);
+				index = in.readLong();
+			} catch (final IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/** Skips the messages of the file before the specified index. */
+		void skip(final long from) throws IOException {
+			while (index < Math.min(from, mark) && read() != null) ++index;
+		}
+
+		/** Returns the next message, or <code>null</code> at the end of the valid records. */
+		String next() throws IOException {
+			final String ret = (index < mark) ? read() : null;
+
+			if (null == ret) {
+				return (null == tail) ? null : tail.next();
+			}
+
+			++index;
+			return ret;
+		}
+
+		/** Reads the next record of the file, or returns <code>null</code> if it's not a valid one. */
+		private String read() throws IOException {
+			final byte[] bytes;
+
+			try {
+				final int length = in.readInt();
+				if (length < 0 || length > MAX_LENGTH) return null;
+
+				bytes = new byte[length];
+				in.readFully(bytes);
+
+				crc.reset();
+				crc.update(bytes);
+				if (in.readInt() != (int) crc.getValue()) return null;
+			} catch (final EOFException e) {
+				return null;
+			}
+
+			position += 8 + bytes.length;
+			return Snapshot.decode(bytes, 0, bytes.length);
+		}
+
+		void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				if (tail != null) tail.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * The last messages learned into a {@link StagingModel}, to be forgotten once they drop out of the
+ * window: when newer messages fill it up, or when they get older than its maximal age.
+ *
+ * <p>
+ * The states of each message are recorded in a ring buffer. Forgetting a message undoes its
+ * learning: the counts of its transitions are decremented (removing the ones reaching zero), and the
+ * states created by the messages of the window count how many of them contain them, start or finish
+ * with them. A state losing its last message is released (see {@link StagingModel#release(int)}),
+ * and its id is reused by a later new tuple, so the size of the model stays proportional to the
+ * size of the window. The cost of the expiry is linear in the length of the expired message; there
+ * is no periodic rebuild.
+ * </p>
+ *
+ * <p>
+ * The states already known when the window was created (e.g. the ones of the corpus loaded by
+ * {@link Engine#init(java.net.URL, Loader.InputType)}) are pinned: the expiring messages may take
+ * away their transitions of the window, but not the states themselves or their starter/finisher
+ * properties.
+ * </p>
+ *
+ * <p>
+ * The window is not thread-safe, it's used under the write lock of the {@link Engine}.
+ * </p>
+ *
+ * @author legendi
+ */
+final class LearningWindow {
+
+	private final StagingModel model;
+	private final int capacity;
+	private final long maxAge;
+
+	/**
+	 * The states of the messages, and the time they were learned at, in a ring buffer (with room for
+	 * a message over the capacity until the next expiry).
+	 */
+	private final int[][] messages;
+	private final long[] times;
+	private int head = 0;
+	private int size = 0;
+
+	/** The states known before the window. */
+	private final BitSet pinned = new BitSet();
+
+	/** The number of the messages of the window containing, starting and finishing with each state. */
+	private int[] references = new int[1024];
+	private int[] starts = new int[1024];
+	private int[] finishes = new int[1024];
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Creates a window of at most <tt>capacity</tt> messages learned into the specified model, each
+	 * of them kept for at most <tt>maxAge</tt> msecs (<tt>0</tt> for no limit).
+	 */
+	LearningWindow(final StagingModel model, final int capacity, final long maxAge) {
+		if (capacity < 1 || maxAge < 0) {
+			throw new IllegalArgumentException("Invalid capacity or age: " + capacity + ", " + maxAge);
+		}
+
+		this.model = model;
+		this.capacity = capacity;
+		this.maxAge = maxAge;
+
+		messages = new int[capacity + 1][];
+		times = new long[capacity + 1];
+
+		for (int state = 0; state < model.size(); ++state) {
+			if (!model.isReleased(state)) pinned.set(state);
+		}
+	}
+
+	StagingModel model() {
+		return model;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	long getMaxAge() {
+		return maxAge;
+	}
+
+	/** Returns the number of the messages in the window. */
+	int size() {
+		return size;
+	}
+
+	/** Returns the estimated heap footprint of the window in bytes. */
+	long footprint() {
+		long ret = 64 + 4L * messages.length + 8L * times.length + pinned.size() / 8 +
+			4L * (references.length + starts.length + finishes.length);
+
+		for (int i = 0; i < size; ++i) {
+			ret += 16 + 4L * messages[(head + i) % messages.length].length;
+		}
+
+		return ret;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Records the states of a message just learned into the model (see {@link StagingModel#states()}).
+	 * The window may hold a message over its capacity until the next {@link #expire(long, Collection)}.
+	 */
+	void record(final int[] states, final int length, final long time) {
+		if (0 == length) return;
+
+		if (size == messages.length) {
+			throw new IllegalStateException("The window must be expired before recording a new message.");
+		}
+
+		final int[] message = Arrays.copyOf(states, length);
+		messages[(head + size) % messages.length] = message;
+		times[(head + size) % messages.length] = time;
+		++size;
+
+		for (int i = 0; i < length; ++i) {
+			final int state = message[i];
+			if (pinned.get(state)) continue;
+
+			if (state >= references.length) {
+				final int grown = Math.max(2 * references.length, state + 1);
+				references = Arrays.copyOf(references, grown);
+				starts = Arrays.copyOf(starts, grown);
+				finishes = Arrays.copyOf(finishes, grown);
+			}
+
+			++references[state];
+			if (0 == i) ++starts[state];
+			if (length - 1 == i) ++finishes[state];
+		}
+	}
+
+	/**
+	 * Forgets the messages over the capacity of the window and the ones older than its maximal age,
+	 * and adds the words of their states to the specified collection (if it's not <code>null</code>).
+	 *
+	 * @return the number of the forgotten messages
+	 */
+	int expire(final long now, final Collection<String> words) {
+		int ret = 0;
+
+		while (size > capacity || (size > 0 && maxAge > 0 && now - times[head] > maxAge)) {
+			forget(words);
+			++ret;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Returns the time the oldest message of the window expires at, or {@link Long#MAX_VALUE} if the
+	 * window is empty or has no maximal age.
+	 */
+	long nextExpiry() {
+		return (size > 0 && maxAge > 0) ? times[head] + maxAge + 1 : Long.MAX_VALUE;
+	}
+
+	/** Undoes the learning of the oldest message of the window. */
+	private void forget(final Collection<String> words) {
+		final int[] message = messages[head];
+		messages[head] = null;
+		head = (head + 1) % messages.length;
+		--size;
+
+		if (words != null) {
+			for (int i = 0; i < message.length; ++i) {
+				for (int pos = 0; pos < model.order(); ++pos) {
+					words.add(model.word(model.token(message[i], pos)));
+				}
+			}
+		}
+
+		for (int i = 1; i < message.length; ++i) {
+			model.unlink(message[i - 1], message[i]);
+		}
+
+		for (int i = 0; i < message.length; ++i) {
+			final int state = message[i];
+			if (pinned.get(state)) continue;
+
+			if (0 == i && 0 == --starts[state]) model.clearStarter(state);
+			if (message.length - 1 == i && 0 == --finishes[state]) model.clearFinisher(state);
+			if (0 == --references[state]) model.release(state);
+		}
+	}
+
+}
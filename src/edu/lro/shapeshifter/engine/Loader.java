@@ -1,107 +1,111 @@
 package edu.lro.shapeshifter.engine;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URL;
 
 /**
  * A resource handler class, performs the loading of files into the {@link Engine}.
- * 
+ *
  * <p>
  * Currently there are 2 supported resource files through {@link InputType}:
  * <ol>
- * <li><b>Simple TXT files</b> Parsed on per-character basis.<br>
+ * <li><b>Simple TXT files</b> Parsed in blocks (see {@link SentenceReader}).<br>
  *  The text is splitted into sentences when a punctuation character (any of the "<tt>.?!</tt>"
  *  characters) is found.</li>
  * <li><b>Pure IRC logs</b> Parsed on per-line basis. <br>
  * 	<i>Please make sure you've removed all unnecessary
  * 	text from the file, such as system notifications, join/part events, timestamps, etc.</i>.</li>
  * </ol>
+ * Both of them may be compressed: the URLs ending with <tt>.gz</tt> and <tt>.zip</tt> are
+ * decompressed on the fly (see {@link InflatingChannel}).
  * </p>
- * 
+ *
+ * <p>
+ * The splitting of the input into sentences is separated from their processing (see
+ * {@link SentenceHandler}), so the same readers feed the {@link Engine} directly and the
+ * {@link ParallelLoader} as well.
+ * </p>
+ *
  * <p>
  * The classes methods must be called in a static way; instantiation is prohibited.
  * </p>
- * 
+ *
  * @author legendi
  */
 public class Loader {
-	
+
 	/** Guess what :P */
 	public static final String PUNCTUATIONS = ".!?";
-	
-	/** Defines the possible input values. */
-	public static enum InputType {TXT, IRC_LOG};
-	
-	public static void loadTXT(final URL url, final Engine engine)
-			throws IOException {
-		
-		BufferedReader br = null;
 
-		try {
-			br = new BufferedReader( new InputStreamReader(url.openStream()) );
-			StringBuilder sb = new StringBuilder(100);
-			int ch = 0, ctr = 0;
-			
-			while ( (ch = br.read() ) != -1 ) {
-				sb.append((char)ch);
-				
-				if ( PUNCTUATIONS.indexOf(ch) >=0 ) {
-					engine.addString(sb.toString().trim());
-					
-					if (++ctr % 10000 == 0) {
-						System.out.println("Parsed " + ctr + " lines so far.");
-					}
-					
-					sb.delete(0, sb.length());
-				}
-			}
-		} catch (final IOException ioe) {
-			ioe.printStackTrace();
+	/**
+	 * Defines the possible input values.
+	 *
+	 * <p>
+	 * Besides the texts, a local {@link Snapshot} file can be restored into the heap
+	 * (<tt>SNAPSHOT</tt>) or used in place through memory-mapping (<tt>MAPPED</tt>); these are
+	 * handled by {@link Engine#init(URL, InputType)} itself.
+	 * </p>
+	 */
+	public static enum InputType {TXT, IRC_LOG, SNAPSHOT, MAPPED};
+
+	/**
+	 * Receives the sentences found in the input, one by one, in the order of their occurrence.
+	 * 
+	 * <p>
+	 * A sentence is given as the <code>text[start .. end)</code> slice of a buffer owned by the reader,
+	 * which is overwritten after the call returns.
+	 * </p>
+	 */
+	static interface SentenceHandler {
+		void sentence(char[] text, int start, int end);
+	}
 
-			if (br != null) {
-				try {
-					br.close();
-				} catch (final Exception e) {
-					e.printStackTrace();
-				}
+	/** Feeds the sentences to the specified engine (without publishing them, see {@link Engine#freeze()}). */
+	static SentenceHandler learner(final Engine engine) {
+		return new SentenceHandler() {
+			@Override
+			public void sentence(final char[] text, final int start, final int end) {
+				engine.addString(text, start, end);
 			}
-			
-			throw ioe;
-		}
+		};
+	}
+
+	public static void loadTXT(final URL url, final Engine engine)
+			throws IOException {
+		readTXT(url, learner(engine), engine.getTracer());
+		engine.freeze();
 	}//S+loadTXT(URL,Engine)
-	
+
 	public static void loadIRCLog(final URL url, final Engine engine) throws IOException {
-		BufferedReader br = null;
+		readIRCLog(url, learner(engine), engine.getTracer());
+		engine.freeze();
+	}//S+loadIRCLog(URL,Engine)
 
-		try {
-			br = new BufferedReader( new InputStreamReader(url.openStream()) );
-			int ctr = 0;
-			
-			while ( br.ready() ) {
-				engine.addString(br.readLine());
-				
-				if (++ctr % 10000 == 0) {
-					System.out.println("Parsed " + ctr + " lines so far.");
-				}
-			}
-			
-		} catch (final IOException ioe) {
-			ioe.printStackTrace();
+	/**
+	 * Splits the specified input into sentences according to its type.
+	 * 
+	 * @param tracer receives the progress; may be <code>null</code>
+	 */
+	static void read(final URL url, final InputType inputType, final SentenceHandler handler,
+			final Tracer tracer) throws IOException {
 
-			if (br != null) {
-				try {
-					br.close();
-				} catch (final Exception e) {
-					e.printStackTrace();
-				}
-			}
-			
-			throw ioe;
+		if (InputType.IRC_LOG == inputType) {
+			readIRCLog(url, handler, tracer);
+		} else {
+			readTXT(url, handler, tracer);
 		}
-	}//S+loadIRCLog(URL,Engine) 
-	
+	}
+
+	static void readTXT(final URL url, final SentenceHandler handler, final Tracer tracer)
+			throws IOException {
+		SentenceReader.read(url, false, handler, tracer);
+	}//S~readTXT(URL,SentenceHandler,Tracer)
+
+	static void readIRCLog(final URL url, final SentenceHandler handler, final Tracer tracer)
+			throws IOException {
+		SentenceReader.read(url, true, handler, tracer);
+	}//S~readIRCLog(URL,SentenceHandler,Tracer)
+
 	/** Hiding the constructor, to prohibit instantiation. */
 	private Loader() {};
 }
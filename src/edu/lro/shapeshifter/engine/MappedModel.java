@@ -0,0 +1,257 @@
+package edu.lro.shapeshifter.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import edu.lro.shapeshifter.engine.Snapshot.Layout;
+
+/**
+ * A {@link Model} served directly from a memory-mapped {@link Snapshot} file.
+ *
+ * <p>
+ * Nothing is loaded into the heap: the dictionary, the transitions and the word to state index are
+ * all read through mapped buffers, so the operating system's page cache holds the hot parts of the
+ * model and the garbage collector never has to scan it. This makes it possible to use models
+ * larger than the heap.
+ * </p>
+ *
+ * <p>
+ * Each section of the file is mapped separately (a single mapping cannot exceed 2GB). Only the
+ * absolute <tt>get</tt> methods of the buffers are used, so the model can be read from several
+ * threads concurrently.
+ * </p>
+ *
+ * @author legendi
+ */
+final class MappedModel implements Model {
+
+	private final File file;
+	private final Layout layout;
+	private final int order;
+
+	private final IntBuffer tokens;
+	private final LongBuffer starters;
+	private final LongBuffer finishers;
+	private final IntBuffer followOffsets;
+	private final IntBuffer followTargets;
+	private final IntBuffer followWeights;
+	private final IntBuffer followThresholds;
+	private final IntBuffer followAliases;
+	private final IntBuffer precedeOffsets;
+	private final IntBuffer precedeTargets;
+	private final IntBuffer precedeWeights;
+	private final IntBuffer precedeThresholds;
+	private final IntBuffer precedeAliases;
+	private final IntBuffer containerOffsets;
+	private final IntBuffer containerTargets;
+	private final IntBuffer wordEnds;
+	private final IntBuffer wordTable;
+	private final ByteBuffer words;
+
+	//---------------------------------------------------------------------------------------------------
+
+	MappedModel(final File file) throws IOException {
+		this.file = file;
+		final FileInputStream in = new FileInputStream(file);
+
+		try {
+			final FileChannel channel = in.getChannel();
+			layout = Layout.read(new Snapshot.Reader(channel));
+			order = layout.order;
+
+			tokens = map(channel, Layout.TOKENS).asIntBuffer();
+			starters = map(channel, Layout.STARTERS).asLongBuffer();
+			finishers = map(channel, Layout.FINISHERS).asLongBuffer();
+			followOffsets = map(channel, Layout.FOLLOW_OFFSETS).asIntBuffer();
+			followTargets = map(channel, Layout.FOLLOW_TARGETS).asIntBuffer();
+			followWeights = map(channel, Layout.FOLLOW_WEIGHTS).asIntBuffer();
+			followThresholds = map(channel, Layout.FOLLOW_THRESHOLDS).asIntBuffer();
+			followAliases = map(channel, Layout.FOLLOW_ALIASES).asIntBuffer();
+			precedeOffsets = map(channel, Layout.PRECEDE_OFFSETS).asIntBuffer();
+			precedeTargets = map(channel, Layout.PRECEDE_TARGETS).asIntBuffer();
+			precedeWeights = map(channel, Layout.PRECEDE_WEIGHTS).asIntBuffer();
+			precedeThresholds = map(channel, Layout.PRECEDE_THRESHOLDS).asIntBuffer();
+			precedeAliases = map(channel, Layout.PRECEDE_ALIASES).asIntBuffer();
+			containerOffsets = map(channel, Layout.CONTAINER_OFFSETS).asIntBuffer();
+			containerTargets = map(channel, Layout.CONTAINER_TARGETS).asIntBuffer();
+			wordEnds = map(channel, Layout.WORD_ENDS).asIntBuffer();
+			wordTable = map(channel, Layout.WORD_TABLE).asIntBuffer();
+			words = map(channel, Layout.WORDS);
+		} finally {
+			// The mappings remain valid after closing the channel
+			in.close();
+		}
+	}
+
+	private ByteBuffer map(final FileChannel channel, final int section) throws IOException {
+		final long length = layout.length(section);
+
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Section " + section + " of " + file + " is too large to be mapped: " + length);
+
+		if (layout.offset(section) + length > channel.size())
+			throw new IOException("Truncated snapshot: " + file);
+
+		return channel.map(FileChannel.MapMode.READ_ONLY, layout.offset(section), length);
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/** Returns the {@link LearningLog#mark() mark} of the log learned into the snapshot. */
+	long getLogMark() {
+		return layout.logMark;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	//--- Model -----------------------------------------------------------------------------------------
+
+	@Override
+	public int order() {
+		return order;
+	}
+
+	@Override
+	public int size() {
+		return layout.size;
+	}
+
+	@Override
+	public int wordCount() {
+		return layout.wordCount;
+	}
+
+	@Override
+	public int edgeCount() {
+		return followTargets.limit();
+	}
+
+	/** Only the buffer objects: the mapped sections are in the page cache, not on the heap. */
+	@Override
+	public long footprint() {
+		return 1024;
+	}
+
+	@Override
+	public int token(final int state, final int pos) {
+		return tokens.get(state * order + pos);
+	}
+
+	/** Probes the mapped hash table, comparing the encoded bytes of the word with the stored ones. */
+	@Override
+	public int lookup(final String word) {
+		final byte[] bytes = Snapshot.encode(word);
+		final int mask = layout.tableLength - 1;
+
+		for (int slot = Dictionary.mix(word.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+			final int id = wordTable.get(slot);
+
+			if (-1 == id) return -1;
+			if (matches(id, bytes)) return id;
+		}
+	}
+
+	private boolean matches(final int id, final byte[] bytes) {
+		final int start = (0 == id) ? 0 : wordEnds.get(id - 1);
+		if (wordEnds.get(id) - start != bytes.length) return false;
+
+		for (int i = 0; i < bytes.length; ++i) {
+			if (words.get(start + i) != bytes[i]) return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public String word(final int id) {
+		final int start = (0 == id) ? 0 : wordEnds.get(id - 1);
+		final byte[] bytes = new byte[wordEnds.get(id) - start];
+
+		for (int i = 0; i < bytes.length; ++i) {
+			bytes[i] = words.get(start + i);
+		}
+
+		return Snapshot.decode(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public boolean isStarter(final int state) {
+		return 0 != (starters.get(state >>> 6) & (1L << state));
+	}
+
+	@Override
+	public boolean isFinisher(final int state) {
+		return 0 != (finishers.get(state >>> 6) & (1L << state));
+	}
+
+	@Override
+	public int followingCount(final int state) {
+		return followOffsets.get(state + 1) - followOffsets.get(state);
+	}
+
+	@Override
+	public int following(final int state, final int index) {
+		return followTargets.get(followOffsets.get(state) + index);
+	}
+
+	@Override
+	public int followingWeight(final int state, final int index) {
+		return followWeights.get(followOffsets.get(state) + index);
+	}
+
+	@Override
+	public int nextFollowing(final int state, final Random random) {
+		final int offset = followOffsets.get(state);
+		return followTargets.get(offset + sample(offset, followOffsets.get(state + 1) - offset,
+				followThresholds, followAliases, random));
+	}
+
+	@Override
+	public int precedingCount(final int state) {
+		return precedeOffsets.get(state + 1) - precedeOffsets.get(state);
+	}
+
+	@Override
+	public int preceding(final int state, final int index) {
+		return precedeTargets.get(precedeOffsets.get(state) + index);
+	}
+
+	@Override
+	public int precedingWeight(final int state, final int index) {
+		return precedeWeights.get(precedeOffsets.get(state) + index);
+	}
+
+	@Override
+	public int nextPreceding(final int state, final Random random) {
+		final int offset = precedeOffsets.get(state);
+		return precedeTargets.get(offset + sample(offset, precedeOffsets.get(state + 1) - offset,
+				precedeThresholds, precedeAliases, random));
+	}
+
+	/** Same as {@link AliasTable#sample(int, int, int[], int[], Random)}, on the mapped tables. */
+	private static int sample(final int offset, final int degree, final IntBuffer thresholds,
+			final IntBuffer aliases, final Random random) {
+		if (1 == degree) return 0;
+
+		final int cell = random.nextInt(degree);
+		return (random.nextInt(AliasTable.ONE) < thresholds.get(offset + cell)) ? cell : aliases.get(offset + cell);
+	}
+
+	@Override
+	public int containerCount(final int word) {
+		return (word < layout.wordCount) ? containerOffsets.get(word + 1) - containerOffsets.get(word) : 0;
+	}
+
+	@Override
+	public int container(final int word, final int index) {
+		return containerTargets.get(containerOffsets.get(word) + index);
+	}
+
+}
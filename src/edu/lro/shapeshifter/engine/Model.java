@@ -0,0 +1,84 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Random;
+
+/**
+ * Read-only view of a Markov model: everything {@link Engine#generateSentence(String)} needs.
+ *
+ * <p>
+ * Words are represented by their ids, tuples by their states (<code>0 &lt;= state &lt; size()</code>).
+ * The transitions are given as the successor/predecessor states of a state, the emitted word being
+ * the last/first token of the target state. Each transition is weighted by the number of its
+ * occurrences in the learned text, and the random walk follows these weights.
+ * </p>
+ *
+ * @author legendi
+ */
+interface Model {
+
+	/** Returns the order of the Markov chain, i.e. the number of tokens in each state. */
+	int order();
+
+	/** Returns the number of the known states (tuples). */
+	int size();
+
+	/** Returns the number of the known words; their ids are <code>0 .. wordCount() - 1</code>. */
+	int wordCount();
+
+	/** Returns the number of the transitions in one direction (the successor relations). */
+	int edgeCount();
+
+	/**
+	 * Returns the estimated heap footprint of the model in bytes (counting <tt>16</tt> bytes for the
+	 * header of each array, and compressed references).
+	 */
+	long footprint();
+
+	/** Returns the <tt>pos</tt>th word id of the specified state. */
+	int token(int state, int pos);
+
+	/** Returns the id of the specified word, or <code>-1</code> if the model doesn't contain it. */
+	int lookup(String word);
+
+	/** Returns the word of the specified id. */
+	String word(int id);
+
+	boolean isStarter(int state);
+
+	boolean isFinisher(int state);
+
+	int followingCount(int state);
+
+	/** Returns the <tt>index</tt>th successor state of the specified state. */
+	int following(int state, int index);
+
+	/** Returns the number of occurrences of the transition to the <tt>index</tt>th successor. */
+	int followingWeight(int state, int index);
+
+	/**
+	 * Returns a successor state of the specified state, chosen at random with a probability
+	 * proportional to the weight of the transition.
+	 */
+	int nextFollowing(int state, Random random);
+
+	int precedingCount(int state);
+
+	/** Returns the <tt>index</tt>th predecessor state of the specified state. */
+	int preceding(int state, int index);
+
+	/** Returns the number of occurrences of the transition from the <tt>index</tt>th predecessor. */
+	int precedingWeight(int state, int index);
+
+	/**
+	 * Returns a predecessor state of the specified state, chosen at random with a probability
+	 * proportional to the weight of the transition.
+	 */
+	int nextPreceding(int state, Random random);
+
+	/** Returns the number of states containing the specified word. */
+	int containerCount(int word);
+
+	/** Returns the <tt>index</tt>th state containing the specified word. */
+	int container(int word, int index);
+
+}
@@ -0,0 +1,127 @@
+package edu.lro.shapeshifter.engine;
+
+/**
+ * The models of the Markov orders <tt>1 .. N</tt> of the same input, learned in a single pass.
+ *
+ * <p>
+ * The staging models share one {@link Dictionary}, and each message is tokenized only once (by the
+ * model of order <tt>1</tt>, which registers every word); the word ids are then learned by each
+ * model. The compiled models share a single copy of the dictionary as well. This way switching the
+ * active order of the {@link Engine} is just a matter of choosing another compiled model (see
+ * {@link Engine#setResidentOrders(int)}).
+ * </p>
+ *
+ * <p>
+ * As the dictionary is shared, a model of a higher order knows the words of the messages too short
+ * to form its tuples; such words have no containing states.
+ * </p>
+ *
+ * @author legendi
+ */
+final class OrderSet {
+
+	private final Dictionary dictionary = new Dictionary();
+
+	/** The staging models, indexed by <tt>order - 1</tt>. */
+	private final StagingModel[] stagings;
+
+	/** The compiled models as of the last {@link #freeze()}, indexed by <tt>order - 1</tt>. */
+	private final CompactModel[] compiled;
+
+	/** The estimated heap footprints of the orders and of the dictionaries, as of the last {@link #freeze()}. */
+	private final long[] footprints;
+	private long dictionaryFootprint;
+
+	/** Reused buffer of the characters of the current message. */
+	private char[] text = new char[256];
+
+	//---------------------------------------------------------------------------------------------------
+
+	OrderSet(final int maxOrder) {
+		stagings = new StagingModel[maxOrder];
+		compiled = new CompactModel[maxOrder];
+		footprints = new long[maxOrder];
+
+		for (int i = 0; i < maxOrder; ++i) {
+			stagings[i] = new StagingModel(i + 1, dictionary);
+		}
+
+		freeze();
+	}
+
+	int maxOrder() {
+		return stagings.length;
+	}
+
+	StagingModel staging(final int order) {
+		return stagings[order - 1];
+	}
+
+	CompactModel compiled(final int order) {
+		return compiled[order - 1];
+	}
+
+	/**
+	 * Learns the specified message in each order.
+	 * 
+	 * @return the number of the tuples in the message, summed over the orders
+	 */
+	int learn(final String message) {
+		if (text.length < message.length()) {
+			text = new char[Math.max(message.length(), 2 * text.length)];
+		}
+
+		message.getChars(0, message.length(), text, 0);
+		return learn(text, 0, message.length());
+	}
+
+	/** Same as {@link #learn(String)}, for the message in the <code>text[start .. end)</code> range. */
+	int learn(final char[] text, final int start, final int end) {
+		final int length = stagings[0].tokenize(text, start, end);
+		final int[] tokens = stagings[0].tokens();
+		int ret = 0;
+
+		for (final StagingModel staging : stagings) {
+			ret += staging.learn(tokens, length);
+		}
+
+		return ret;
+	}
+
+	/** Compiles each of the staging models, and estimates their footprints. */
+	void freeze() {
+		final Dictionary copy = dictionary.copy();
+		dictionaryFootprint = dictionary.footprint() + copy.footprint();
+
+		for (int i = 0; i < stagings.length; ++i) {
+			compiled[i] = new CompactModel(stagings[i], copy);
+			footprints[i] = stagings[i].footprint() + compiled[i].footprint() - dictionaryFootprint;
+		}
+	}
+
+	/**
+	 * Returns the estimated heap footprint of the specified order in bytes (as of the last
+	 * {@link #freeze()}): its staging and compiled models, without the shared dictionaries (see
+	 * {@link #dictionaryFootprint()}).
+	 */
+	long footprint(final int order) {
+		return footprints[order - 1];
+	}
+
+	/** Returns the estimated heap footprint of the shared dictionary and of its compiled copy. */
+	long dictionaryFootprint() {
+		return dictionaryFootprint;
+	}
+
+	/** Returns the estimated heap footprint of all the models in bytes. */
+	long footprint() {
+		long ret = dictionaryFootprint();
+
+		for (int order = 1; order <= stagings.length; ++order) {
+			ret += footprint(order);
+		}
+
+		return ret;
+	}
+
+}
@@ -0,0 +1,209 @@
+package edu.lro.shapeshifter.engine;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.lro.shapeshifter.engine.Loader.InputType;
+import edu.lro.shapeshifter.engine.Loader.SentenceHandler;
+
+/**
+ * Loads the input into the {@link Engine} on several threads.
+ *
+ * <p>
+ * The input is split into sentences by the usual {@link Loader} readers on the calling thread, and
+ * the sentences are grouped into chunks of {@link #CHUNK_SIZE}. Each chunk is learned into its own
+ * partial {@link StagingModel} by a worker of a thread pool, and the partial models are merged into
+ * the engine in the order of the chunks (see {@link StagingModel#merge(StagingModel)}), so the
+ * result is exactly the same as the one of the sequential load.
+ * </p>
+ *
+ * <p>
+ * At most twice as many chunks as workers are in the air at once, the reader waits for (and merges)
+ * the oldest one before submitting more.
+ * </p>
+ *
+ * <p>
+ * The classes methods must be called in a static way; instantiation is prohibited.
+ * </p>
+ *
+ * @author legendi
+ */
+public class ParallelLoader {
+
+	/** Number of sentences per chunk. */
+	public static final int CHUNK_SIZE = 10000;
+
+	/** The timings of the phases of a parallel load, in msecs. */
+	public static class LoadReport {
+		/** Sentences read. */
+		public final int sentences;
+		public final int chunks;
+		public final int threads;
+
+		/**
+		 * Time spent in splitting the input into sentences on the reader thread, including the waits
+		 * for the workers.
+		 */
+		public final long read;
+
+		/** Sum of the time spent by the workers in learning the chunks. */
+		public final long learn;
+
+		/** Time spent in merging the partial models (on the reader thread). */
+		public final long merge;
+
+		/** Wall-clock time of the whole load. */
+		public final long total;
+
+		LoadReport(final int sentences, final int chunks, final int threads,
+				final long read, final long learn, final long merge, final long total) {
+			this.sentences = sentences;
+			this.chunks = chunks;
+			this.threads = threads;
+			this.read = read;
+			this.learn = learn;
+			this.merge = merge;
+			this.total = total;
+		}
+
+		@Override
+		public String toString() {
+			return "Loaded " + sentences + " sentences in " + chunks + " chunks on " + threads + " threads, " +
+				"took " + total + " msecs (read: " + read + ", learn: " + learn + " [sum of workers], merge: " +
+				merge + ").";
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	public static LoadReport load(final URL url, final InputType inputType, final Engine engine,
+			final int threads) throws IOException {
+
+		final long start = System.currentTimeMillis();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final Chunker chunker = new Chunker(engine, executor, engine.getOrder(), 2 * threads);
+
+		try {
+			long read = -System.currentTimeMillis();
+			Loader.read(url, inputType, chunker, engine.getTracer());
+			chunker.submit();
+			read += System.currentTimeMillis() - chunker.merge;
+
+			chunker.drain(0);
+
+			return new LoadReport(chunker.sentences, chunker.chunks, threads, read, chunker.learn.get(),
+					chunker.merge, System.currentTimeMillis() - start);
+		} finally {
+			executor.shutdownNow();
+		}
+	}//S+load(URL,InputType,Engine,int)
+
+	/** The sentences of a chunk, copied one after the other into a single buffer. */
+	private static class Chunk {
+		char[] text = new char[1 << 16];
+		final IntList ends = new IntList(CHUNK_SIZE);
+
+		int size() {
+			return ends.size();
+		}
+
+		void add(final char[] sentence, final int start, final int end) {
+			final int length = ends.size() > 0 ? ends.get(ends.size() - 1) : 0;
+
+			if (length + end - start > text.length) {
+				text = Arrays.copyOf(text, Math.max(length + end - start, 2 * text.length));
+			}
+
+			System.arraycopy(sentence, start, text, length, end - start);
+			ends.add(length + end - start);
+		}
+	}
+
+	/** Collects the sentences into chunks, and merges the learned chunks in order. */
+	private static class Chunker implements SentenceHandler {
+		private final Engine engine;
+		private final ExecutorService executor;
+		private final int order;
+		private final int maxPending;
+
+		private final LinkedList<Future<StagingModel>> pending = new LinkedList<Future<StagingModel>>();
+		private Chunk chunk = new Chunk();
+
+		int sentences = 0;
+		int chunks = 0;
+		final AtomicLong learn = new AtomicLong();
+		long merge = 0;
+
+		Chunker(final Engine engine, final ExecutorService executor, final int order, final int maxPending) {
+			this.engine = engine;
+			this.executor = executor;
+			this.order = order;
+			this.maxPending = maxPending;
+		}
+
+		@Override
+		public void sentence(final char[] text, final int start, final int end) {
+			++sentences;
+			chunk.add(text, start, end);
+
+			if (chunk.size() == CHUNK_SIZE) {
+				submit();
+				drain(maxPending);
+			}
+		}
+
+		void submit() {
+			if (0 == chunk.size()) return;
+
+			final Chunk sentences = chunk;
+			chunk = new Chunk();
+			++chunks;
+
+			pending.add(executor.submit(new Callable<StagingModel>() {
+				@Override
+				public StagingModel call() {
+					final long start = System.currentTimeMillis();
+					final StagingModel partial = new StagingModel(order);
+
+					for (int i = 0, from = 0; i < sentences.size(); from = sentences.ends.get(i++)) {
+						partial.learn(sentences.text, from, sentences.ends.get(i));
+					}
+
+					learn.addAndGet(System.currentTimeMillis() - start);
+					return partial;
+				}
+			}));
+		}
+
+		/** Merges the oldest chunks until at most <tt>limit</tt> are pending. */
+		void drain(final int limit) {
+			while (pending.size() > limit) {
+				final StagingModel partial;
+
+				try {
+					partial = pending.removeFirst().get();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while loading", e);
+				} catch (final ExecutionException e) {
+					throw new IllegalStateException("Failed to learn a chunk", e.getCause());
+				}
+
+				final long start = System.currentTimeMillis();
+				engine.merge(partial);
+				merge += System.currentTimeMillis() - start;
+			}
+		}
+	}
+
+	/** Hiding the constructor, to prohibit instantiation. */
+	private ParallelLoader() {};
+}
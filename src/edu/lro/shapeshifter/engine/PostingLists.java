@@ -0,0 +1,149 @@
+package edu.lro.shapeshifter.engine;
+
+/**
+ * An immutable set of bit-packed <tt>int</tt> lists, e.g. the word to state relation of the
+ * compiled models, with constant time random access.
+ *
+ * <p>
+ * The lists are concatenated, as the targets of a compressed-sparse-row relation, and the sequence
+ * is cut into blocks of {@link #BLOCK_SIZE} elements. Each block is stored in frame-of-reference
+ * form: its smallest value, and the differences of the elements from it on as few bits as the
+ * largest one needs. The lists of the states are sorted (the ids of the states are given in the
+ * order of their creation), so the elements of a block of a frequent word are close to each
+ * other, and need far fewer bits than a whole <tt>int</tt>; an element is read by a single shift
+ * and mask, without decoding its neighbours, so a random one can still be picked in constant time.
+ * </p>
+ *
+ * @author legendi
+ */
+final class PostingLists {
+
+	/** Number of the elements of a block (a power of two). */
+	static final int BLOCK_SIZE = 64;
+	private static final int BLOCK_SHIFT = 6;
+
+	/** The first element of each list in the concatenated sequence, and the number of all elements. */
+	private final int[] offsets;
+
+	/** The smallest value, the bit width and the first bit of the elements of each block. */
+	private final int[] bases;
+	private final byte[] widths;
+	private final long[] positions;
+
+	private final long[] bits;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Packs the lists given in compressed-sparse-row form: the elements of the list <tt>i</tt> are
+	 * <code>values[offsets[i] .. offsets[i + 1])</code>. The arrays are not modified (nor kept).
+	 */
+	PostingLists(final int[] offsets, final int[] values) {
+		this.offsets = offsets.clone();
+
+		final int length = offsets[offsets.length - 1];
+		final int blocks = (length + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+
+		bases = new int[blocks];
+		widths = new byte[blocks];
+		positions = new long[blocks];
+
+		long position = 0;
+		for (int block = 0; block < blocks; ++block) {
+			final int from = block << BLOCK_SHIFT, to = Math.min(length, from + BLOCK_SIZE);
+			int min = values[from], max = values[from];
+
+			for (int i = from + 1; i < to; ++i) {
+				min = Math.min(min, values[i]);
+				max = Math.max(max, values[i]);
+			}
+
+			bases[block] = min;
+			widths[block] = (byte) (32 - Integer.numberOfLeadingZeros(max - min));
+			positions[block] = position;
+			position += (long) (to - from) * widths[block];
+		}
+
+		bits = new long[(int) ((position + 63) >>> 6)];
+
+		for (int block = 0; block < blocks; ++block) {
+			final int from = block << BLOCK_SHIFT, to = Math.min(length, from + BLOCK_SIZE);
+			final int width = widths[block];
+
+			for (int i = from; i < to; ++i) {
+				write(positions[block] + (long) (i - from) * width, width, values[i] - bases[block]);
+			}
+		}
+	}
+
+	private void write(final long position, final int width, final int value) {
+		if (0 == width) return;
+
+		final int word = (int) (position >>> 6), shift = (int) (position & 63);
+		final long unsigned = value & 0xFFFFFFFFL;
+
+		bits[word] |= unsigned << shift;
+		if (shift + width > 64) {
+			bits[word + 1] |= unsigned >>> (64 - shift);
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns the number of the lists. */
+	int count() {
+		return offsets.length - 1;
+	}
+
+	/** Returns the number of the elements of all lists. */
+	int length() {
+		return offsets[offsets.length - 1];
+	}
+
+	int size(final int list) {
+		return offsets[list + 1] - offsets[list];
+	}
+
+	/** Returns the <tt>index</tt>th element of the specified list. */
+	int get(final int list, final int index) {
+		return get(offsets[list] + index);
+	}
+
+	/** Returns the <tt>i</tt>th element of the concatenated sequence. */
+	private int get(final int i) {
+		final int block = i >>> BLOCK_SHIFT;
+		final int width = widths[block];
+		if (0 == width) return bases[block];
+
+		final long position = positions[block] + (long) (i & (BLOCK_SIZE - 1)) * width;
+		final int word = (int) (position >>> 6), shift = (int) (position & 63);
+
+		long value = bits[word] >>> shift;
+		if (shift + width > 64) {
+			value |= bits[word + 1] << (64 - shift);
+		}
+
+		return bases[block] + (int) (value & ((1L << width) - 1));
+	}
+
+	/** Returns the offsets of the lists in the concatenated sequence (see {@link Snapshot}). */
+	int[] offsets() {
+		return offsets.clone();
+	}
+
+	/** Returns the unpacked concatenated sequence of the elements (see {@link Snapshot}). */
+	int[] toArray() {
+		final int[] ret = new int[length()];
+		for (int i = 0; i < ret.length; ++i) {
+			ret[i] = get(i);
+		}
+
+		return ret;
+	}
+
+	/** Returns the estimated heap footprint of the lists in bytes. */
+	long footprint() {
+		return 96 + 4L * offsets.length + 13L * bases.length + 8L * bits.length;
+	}
+
+}
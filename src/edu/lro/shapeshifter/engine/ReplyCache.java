@@ -0,0 +1,267 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.lro.shapeshifter.engine.Engine.Result;
+import edu.lro.shapeshifter.metrics.Metrics;
+
+/**
+ * A bounded cache of pre-generated replies of an {@link Engine}, keyed by the starting word.
+ *
+ * <p>
+ * Each cached word has a pool of at most {@link #POOL_SIZE} candidates, each of them the best of a
+ * sample of generated sentences (see {@link Engine#generateBest(String, int, long)}). A reply takes
+ * a candidate out of the pool of its word, so the same question gets different answers; once the
+ * pool is down to its half, it's refilled in the background. The replies of the empty pools are
+ * generated by the caller, just as without the cache. At most {@link #getCapacity()} words are
+ * cached, the least recently used one is evicted first.
+ * </p>
+ *
+ * <p>
+ * The pool of a word is filled only from its second reply on, so a word asked only once costs no
+ * background generation.
+ * </p>
+ *
+ * <p>
+ * The engine invalidates the pools of the words of the learned messages when they are published,
+ * and the whole cache when its knowledge is replaced. Only the starting words of the replies are
+ * tracked: a cached reply of another word may miss the latest transitions, but it's still a valid
+ * sentence of the previous model. A refill running during an invalidation is dropped.
+ * </p>
+ *
+ * <p>
+ * A change of the static settings of the generation drops the pools of every cache (see
+ * {@link #invalidateAllCaches()}).
+ * </p>
+ *
+ * <p>
+ * The refills of all caches share a single background thread with a short queue; the requests
+ * over its length are dropped, and made again by the next reply of the word.
+ * </p>
+ *
+ * @author legendi
+ */
+final class ReplyCache {
+
+	/** Maximal number of the candidates pre-generated for a word. */
+	public static final int POOL_SIZE = 4;
+
+	/** Maximal number of the refills waiting for the background thread. */
+	private static final int MAX_REFILLS = 64;
+
+	/** The thread of the refills, shared by all caches; created on demand. */
+	private static ThreadPoolExecutor refiller = null;
+
+	/** Increased by {@link #invalidateAllCaches()}. */
+	private static final AtomicInteger generation = new AtomicInteger();
+
+	private final Engine engine;
+	private final int capacity;
+
+	/** The pools of the words in access order (the key of the random replies is <code>null</code>). */
+	private final LinkedHashMap<String, Pool> pools;
+
+	/** The {@link #generation} the pools were generated in (guarded by the cache). */
+	private int poolGeneration = generation.get();
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong refills;
+	private final AtomicLong invalidations;
+
+	/** The candidates of a word; the fields are guarded by the lock of the cache. */
+	private static class Pool {
+		final LinkedList<Result> candidates = new LinkedList<Result>();
+
+		/** If a refill is scheduled or running. */
+		boolean refilling = false;
+
+		/** False once the pool was evicted or invalidated. */
+		boolean valid = true;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Creates a cache of at most <tt>capacity</tt> words, recording into the specified registry. */
+	ReplyCache(final Engine engine, final int capacity, final Metrics metrics) {
+		this.engine = engine;
+		this.capacity = capacity;
+
+		pools = new LinkedHashMap<String, Pool>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Pool> eldest) {
+				if (size() <= ReplyCache.this.capacity) return false;
+
+				eldest.getValue().valid = false;
+				return true;
+			}
+		};
+
+		hits = metrics.counter("engine.replies.hits");
+		misses = metrics.counter("engine.replies.misses");
+		refills = metrics.counter("engine.replies.refills");
+		invalidations = metrics.counter("engine.replies.invalidations");
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Returns the number of the cached words. */
+	public synchronized int size() {
+		return pools.size();
+	}
+
+	/** Returns the percentage of the replies served from the cache so far. */
+	public long getHitRate() {
+		final long hit = hits.get(), all = hit + misses.get();
+		return (0 == all) ? 0 : 100 * hit / all;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns a reply for the specified word (<code>null</code> for a random one): a cached candidate
+	 * if there is one, the best of <tt>count</tt> freshly generated ones otherwise. Schedules the
+	 * refill of the pool of the word if it's necessary (not on the first reply of the word).
+	 */
+	Result reply(final String word, final int count, final long timeout) {
+		Pool pool;
+		Result cached = null;
+		boolean refill = false;
+
+		synchronized (this) {
+			if (poolGeneration != generation.get()) {
+				poolGeneration = generation.get();
+				invalidateAll();
+			}
+
+			pool = pools.get(word);
+
+			if (null == pool) {
+				pool = new Pool();
+				pools.put(word, pool);
+			} else {
+				cached = pool.candidates.poll();
+
+				if (!pool.refilling && pool.candidates.size() <= POOL_SIZE / 2) {
+					pool.refilling = true;
+					refill = true;
+				}
+			}
+		}
+
+		if (refill) {
+			schedule(word, pool, count, timeout);
+		}
+
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached;
+		}
+
+		misses.incrementAndGet();
+		return engine.generateBest(word, count, timeout);
+	}
+
+	/** Drops the pools of the specified words. */
+	synchronized void invalidate(final Collection<String> words) {
+		for (final String word : words) {
+			final Pool pool = pools.remove(word);
+
+			if (pool != null) {
+				pool.valid = false;
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	/** Drops all pools. */
+	synchronized void invalidateAll() {
+		for (final Pool pool : pools.values()) {
+			pool.valid = false;
+		}
+
+		invalidations.addAndGet(pools.size());
+		pools.clear();
+	}
+
+	/**
+	 * Drops the pools of all caches, e.g. when a static setting of the generation is changed. The
+	 * caches drop them at their next reply.
+	 */
+	static void invalidateAllCaches() {
+		generation.incrementAndGet();
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private void schedule(final String word, final Pool pool, final int count, final long timeout) {
+		try {
+			refiller().execute(new Runnable() {
+				@Override
+				public void run() {
+					refill(word, pool, count, timeout);
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			synchronized (this) {
+				pool.refilling = false;
+			}
+		}
+	}
+
+	/** Generates candidates into the specified pool until it's full or invalidated. */
+	private void refill(final String word, final Pool pool, final int count, final long timeout) {
+		try {
+			while (true) {
+				synchronized (this) {
+					if (!pool.valid || pool.candidates.size() >= POOL_SIZE) return;
+				}
+
+				final Result result = engine.generateBest(word, count, timeout);
+				if (null == result) return;
+
+				synchronized (this) {
+					if (!pool.valid) return;
+					pool.candidates.add(result);
+				}
+
+				refills.incrementAndGet();
+			}
+		} finally {
+			synchronized (this) {
+				pool.refilling = false;
+			}
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor refiller() {
+		if (null == refiller) {
+			refiller = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(MAX_REFILLS), new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable runnable) {
+							final Thread ret = new Thread(runnable, "Shapeshifter-refiller");
+							ret.setDaemon(true);
+							return ret;
+						}
+					});
+		}
+
+		return refiller;
+	}
+
+}
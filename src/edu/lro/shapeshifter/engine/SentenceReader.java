@@ -0,0 +1,205 @@
+package edu.lro.shapeshifter.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import edu.lro.shapeshifter.engine.Loader.SentenceHandler;
+
+/**
+ * Block-oriented splitting of an input into sentences, for the {@link Loader}.
+ *
+ * <p>
+ * The input is read through a channel in blocks of {@link #BLOCK_SIZE} bytes, decoded in bulk into
+ * a reused character buffer, and the sentence boundaries are searched for directly in its backing
+ * array. The sentences are handed out as slices of that array, without any copies; a sentence
+ * spanning two blocks is moved to the front of the buffer (which grows if a sentence doesn't fit
+ * into it).
+ * </p>
+ *
+ * <p>
+ * <tt>file:</tt> URLs are read through their {@link java.nio.channels.FileChannel}, everything else
+ * through a channel wrapping the stream of the URL. The text is decoded with the default charset of
+ * the platform, as the old <tt>InputStreamReader</tt> based loader did.
+ * </p>
+ *
+ * <p>
+ * The inputs named <tt>*.gz</tt> and <tt>*.zip</tt> are decompressed on the fly by an
+ * {@link InflatingChannel}, on a thread of their own.
+ * </p>
+ *
+ * @author legendi
+ */
+final class SentenceReader {
+
+	/** Size of the blocks read from the channel. */
+	static final int BLOCK_SIZE = 1 << 16;
+
+	private final ReadableByteChannel channel;
+
+	/** If the input is split into lines (<tt>true</tt>) or at the {@link Loader#PUNCTUATIONS}. */
+	private final boolean lines;
+
+	private final SentenceHandler handler;
+
+	/** Receives the progress, may be <code>null</code>. */
+	private final Tracer tracer;
+
+	private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private final ByteBuffer bytes = ByteBuffer.allocateDirect(BLOCK_SIZE);
+	private CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE);
+
+	/** If the previous block ended with a <tt>'\r'</tt> (in line mode). */
+	private boolean skipLF = false;
+
+	private int sentences = 0;
+
+	//---------------------------------------------------------------------------------------------------
+
+	private SentenceReader(final ReadableByteChannel channel, final boolean lines,
+			final SentenceHandler handler, final Tracer tracer) {
+		this.channel = channel;
+		this.lines = lines;
+		this.handler = handler;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Splits the content of the specified URL into sentences.
+	 *
+	 * @param lines true if each line is a sentence (IRC logs); false if the sentences are closed by
+	 * 			punctuation characters (simple TXT files)
+	 * @param tracer receives the progress; may be <code>null</code>
+	 */
+	static void read(final URL url, final boolean lines, final SentenceHandler handler,
+			final Tracer tracer) throws IOException {
+		final ReadableByteChannel channel = open(url);
+
+		try {
+			new SentenceReader(channel, lines, handler, tracer).run();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static ReadableByteChannel open(final URL url) throws IOException {
+		final InputStream in = openStream(url);
+
+		if (InflatingChannel.isCompressed(url.getPath())) {
+			return new InflatingChannel(in, InflatingChannel.isZip(url.getPath()));
+		}
+
+		return (in instanceof FileInputStream) ? ((FileInputStream) in).getChannel() : Channels.newChannel(in);
+	}
+
+	private static InputStream openStream(final URL url) throws IOException {
+		if ("file".equals(url.getProtocol())) {
+			try {
+				return new FileInputStream(new File(url.toURI()));
+			} catch (final URISyntaxException e) {
+				// Falling back to the stream of the URL
+			} catch (final IllegalArgumentException e) {
+				// e.g. a file URL with an authority component
+			}
+		}
+
+		return url.openStream();
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	private void run() throws IOException {
+		while (true) {
+			final boolean eof = (channel.read(bytes) < 0);
+
+			bytes.flip();
+			final CoderResult result = decoder.decode(bytes, chars, eof);
+			bytes.compact();
+
+			if (eof && !result.isOverflow()) break;
+
+			scan(false);
+		}
+
+		while (decoder.flush(chars).isOverflow()) {
+			scan(false);
+		}
+
+		scan(true);
+	}
+
+	/**
+	 * Hands out the complete sentences of the decoded characters, and keeps the incomplete one at
+	 * the front of the buffer.
+	 */
+	private void scan(final boolean eof) {
+		chars.flip();
+
+		final char[] text = chars.array();
+		final int limit = chars.limit();
+		int start = 0;
+
+		for (int i = 0; i < limit; ++i) {
+			final char ch = text[i];
+
+			if (lines) {
+				if ('\n' == ch && skipLF) {
+					start = i + 1;
+				} else if ('\n' == ch || '\r' == ch) {
+					emit(text, start, i);
+					start = i + 1;
+				}
+
+				skipLF = ('\r' == ch);
+			} else if (Loader.PUNCTUATIONS.indexOf(ch) >= 0) {
+				// The punctuation belongs to the sentence, the surrounding whitespaces don't
+				int from = start, to = i + 1;
+				while (text[from] <= ' ') ++from;
+				while (text[to - 1] <= ' ') --to;
+
+				emit(text, from, to);
+				start = i + 1;
+			}
+		}
+
+		if (eof && lines && start < limit) {
+			// The last line may be unterminated
+			emit(text, start, limit);
+			start = limit;
+		}
+
+		chars.position(start);
+		chars.compact();
+
+		if (!chars.hasRemaining()) {
+			// A sentence longer than the buffer
+			final CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+			chars.flip();
+			larger.put(chars);
+			chars = larger;
+		}
+	}
+
+	private void emit(final char[] text, final int start, final int end) {
+		handler.sentence(text, start, end);
+
+		if (++sentences % 10000 == 0 && tracer != null) {
+			tracer.parsed(sentences);
+		}
+	}
+
+}
@@ -0,0 +1,528 @@
+package edu.lro.shapeshifter.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Binary dump of a {@link CompactModel}, to make the bot start up without re-parsing its corpus.
+ *
+ * <p>
+ * The file is a sequence of big-endian sections, each of them read back with a single bulk
+ * transfer:
+ * <ol>
+ * <li><b>Header</b> The {@link #MAGIC} number, the format {@link #VERSION}, the Markov order, the
+ * lengths of the following sections, and the {@link LearningLog#mark() mark} of the log learned into
+ * the model.</li>
+ * <li><b>States</b> The tokens of the states, the starter and finisher bitsets.</li>
+ * <li><b>Transitions</b> The offsets, targets, weights and alias tables (see {@link AliasTable}) of
+ * the successor and predecessor relations.</li>
+ * <li><b>Containers</b> The offsets and targets of the word to state relation.</li>
+ * <li><b>Dictionary</b> The end offsets of the words, an open-addressing hash table of the word ids
+ * (see {@link Dictionary}) and the bytes of all words (see {@link #encode(String)}).</li>
+ * </ol>
+ * </p>
+ *
+ * <p>
+ * The layout is simple enough to use the file in place, without loading it: see {@link MappedModel}.
+ * A snapshot is written into a temporary file first, and renamed to its name once it's complete
+ * and forced to the disk, so a crash never leaves a truncated one behind (and a mapped snapshot
+ * can be overwritten safely).
+ * </p>
+ *
+ * <p>
+ * The classes methods must be called in a static way; instantiation is prohibited.
+ * </p>
+ *
+ * @author legendi
+ */
+public class Snapshot {
+
+	/** "SSHF" */
+	public static final int MAGIC = 0x53534846;
+
+	/** Increase it on every change of the file layout. */
+	public static final int VERSION = 4;
+
+	/** Size of the transfer buffer. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** The sections of the file, and their positions computed from the header. */
+	static final class Layout {
+		static final int TOKENS = 0, STARTERS = 1, FINISHERS = 2,
+			FOLLOW_OFFSETS = 3, FOLLOW_TARGETS = 4, FOLLOW_WEIGHTS = 5, FOLLOW_THRESHOLDS = 6, FOLLOW_ALIASES = 7,
+			PRECEDE_OFFSETS = 8, PRECEDE_TARGETS = 9, PRECEDE_WEIGHTS = 10, PRECEDE_THRESHOLDS = 11,
+			PRECEDE_ALIASES = 12, CONTAINER_OFFSETS = 13, CONTAINER_TARGETS = 14,
+			WORD_ENDS = 15, WORD_TABLE = 16, WORDS = 17, SECTIONS = 18;
+
+		/** magic, version, the 8 int fields and the log mark below */
+		static final int HEADER_SIZE = 10 * 4 + 8;
+
+		final int order;
+		final int size;
+		final int wordCount;
+		final int followCount;
+		final int precedeCount;
+		final int containerCount;
+		final int tableLength;
+		final int bytes;
+
+		/** The messages of the log before this mark are learned into the model (see {@link Engine#setLog(LearningLog)}). */
+		final long logMark;
+
+		/** The start of each section in the file, plus the end of the last one. */
+		private final long[] offsets = new long[SECTIONS + 1];
+
+		Layout(final int order, final int size, final int wordCount, final int followCount,
+				final int precedeCount, final int containerCount, final int tableLength, final int bytes,
+				final long logMark) {
+			this.order = order;
+			this.size = size;
+			this.wordCount = wordCount;
+			this.followCount = followCount;
+			this.precedeCount = precedeCount;
+			this.containerCount = containerCount;
+			this.tableLength = tableLength;
+			this.bytes = bytes;
+			this.logMark = logMark;
+
+			final long[] lengths = new long[SECTIONS];
+			lengths[TOKENS] = 4L * size * order;
+			lengths[STARTERS] = lengths[FINISHERS] = 8L * bitsetLength();
+			lengths[FOLLOW_OFFSETS] = lengths[PRECEDE_OFFSETS] = 4L * (size + 1);
+			lengths[FOLLOW_TARGETS] = lengths[FOLLOW_WEIGHTS] = lengths[FOLLOW_THRESHOLDS] =
+				lengths[FOLLOW_ALIASES] = 4L * followCount;
+			lengths[PRECEDE_TARGETS] = lengths[PRECEDE_WEIGHTS] = lengths[PRECEDE_THRESHOLDS] =
+				lengths[PRECEDE_ALIASES] = 4L * precedeCount;
+			lengths[CONTAINER_OFFSETS] = 4L * (wordCount + 1);
+			lengths[CONTAINER_TARGETS] = 4L * containerCount;
+			lengths[WORD_ENDS] = 4L * wordCount;
+			lengths[WORD_TABLE] = 4L * tableLength;
+			lengths[WORDS] = bytes;
+
+			offsets[0] = HEADER_SIZE;
+			for (int i = 0; i < SECTIONS; ++i) {
+				offsets[i + 1] = offsets[i] + lengths[i];
+			}
+		}
+
+		/** Reads and validates the header of a snapshot. */
+		static Layout read(final Reader reader) throws IOException {
+			if (reader.getInt() != MAGIC)
+				throw new IOException("Not a model snapshot");
+
+			final int version = reader.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version + " (expected " + VERSION + ")");
+
+			return new Layout(reader.getInt(), reader.getInt(), reader.getInt(), reader.getInt(),
+					reader.getInt(), reader.getInt(), reader.getInt(), reader.getInt(), reader.getLong());
+		}
+
+		void write(final Writer writer) throws IOException {
+			writer.putInt(MAGIC);
+			writer.putInt(VERSION);
+			writer.putInt(order);
+			writer.putInt(size);
+			writer.putInt(wordCount);
+			writer.putInt(followCount);
+			writer.putInt(precedeCount);
+			writer.putInt(containerCount);
+			writer.putInt(tableLength);
+			writer.putInt(bytes);
+			writer.putLong(logMark);
+		}
+
+		int bitsetLength() {
+			return (size + 63) >>> 6;
+		}
+
+		long offset(final int section) {
+			return offsets[section];
+		}
+
+		long length(final int section) {
+			return offsets[section + 1] - offsets[section];
+		}
+	}
+
+	/**
+	 * Builds the open-addressing hash table of the word ids (linear probing on
+	 * {@link Dictionary#mix(int)} of the hash codes, <code>-1</code> for the empty slots).
+	 */
+	private static int[] wordTable(final Model model) {
+		int capacity = 2;
+		while (capacity < 2 * model.wordCount()) capacity *= 2;
+
+		final int[] ret = new int[capacity];
+		Arrays.fill(ret, -1);
+
+		for (int id = 0; id < model.wordCount(); ++id) {
+			int slot = Dictionary.mix(model.word(id).hashCode()) & (capacity - 1);
+			while (-1 != ret[slot]) slot = (slot + 1) & (capacity - 1);
+			ret[slot] = id;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Writes the specified model into the given file, along with the {@link LearningLog#mark() mark}
+	 * of the log learned into it.
+	 */
+	static void save(final CompactModel model, final long logMark, final File file) throws IOException {
+		final byte[][] words = new byte[model.wordCount][];
+		final int[] wordEnds = new int[model.wordCount];
+		int bytes = 0;
+
+		for (int i = 0; i < words.length; ++i) {
+			words[i] = encode(model.word(i));
+			wordEnds[i] = (bytes += words[i].length);
+		}
+
+		final int[] table = wordTable(model);
+		final File temp = new File(file.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(temp);
+
+		try {
+			final Writer writer = new Writer(out.getChannel());
+
+			new Layout(model.order, model.size, model.wordCount, model.followTargets.length,
+					model.precedeTargets.length, model.containers.length(), table.length, bytes, logMark).write(writer);
+
+			writer.putInts(model.tokens);
+			writer.putLongs(model.starters);
+			writer.putLongs(model.finishers);
+			writer.putInts(model.followOffsets);
+			writer.putInts(model.followTargets);
+			writer.putInts(model.followWeights);
+			writer.putInts(model.followThresholds);
+			writer.putInts(model.followAliases);
+			writer.putInts(model.precedeOffsets);
+			writer.putInts(model.precedeTargets);
+			writer.putInts(model.precedeWeights);
+			writer.putInts(model.precedeThresholds);
+			writer.putInts(model.precedeAliases);
+			writer.putInts(model.containers.offsets());
+			writer.putInts(model.containers.toArray());
+			writer.putInts(wordEnds);
+			writer.putInts(table);
+
+			for (final byte[] word : words) {
+				writer.putBytes(word);
+			}
+
+			writer.flush();
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+
+		replace(temp, file);
+	}
+
+	/**
+	 * Renames the specified file to the given name, replacing the file of that name if there is
+	 * one. The replacement is atomic where the platform supports it (not on Windows, where the
+	 * target is deleted first).
+	 */
+	static void replace(final File source, final File target) throws IOException {
+		if (!source.renameTo(target) && !(target.delete() && source.renameTo(target)))
+			throw new IOException("Cannot rename " + source + " to " + target);
+	}
+
+	/**
+	 * Encodes the specified string into the bytes stored for the words: as UTF-8, except that every
+	 * <tt>char</tt> is encoded on its own, the surrogates included (as in CESU-8). So every string
+	 * survives the round trip: a standard encoder would replace the unpaired surrogates, and distinct
+	 * words could collapse into one (shifting the ids of the following ones). A supplementary
+	 * character takes 6 bytes instead of 4.
+	 */
+	static byte[] encode(final String string) {
+		final int length = string.length();
+		int size = 0;
+
+		for (int i = 0; i < length; ++i) {
+			final char ch = string.charAt(i);
+			size += (ch < 0x80) ? 1 : (ch < 0x800) ? 2 : 3;
+		}
+
+		final byte[] ret = new byte[size];
+
+		for (int i = 0, pos = 0; i < length; ++i) {
+			final char ch = string.charAt(i);
+
+			if (ch < 0x80) {
+				ret[pos++] = (byte) ch;
+			} else if (ch < 0x800) {
+				ret[pos++] = (byte) (0xC0 | (ch >> 6));
+				ret[pos++] = (byte) (0x80 | (ch & 0x3F));
+			} else {
+				ret[pos++] = (byte) (0xE0 | (ch >> 12));
+				ret[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				ret[pos++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+
+		return ret;
+	}
+
+	/** Decodes the <code>bytes[start .. start + length)</code> range written by {@link #encode(String)}. */
+	static String decode(final byte[] bytes, final int start, final int length) {
+		final char[] chars = new char[length];
+		int count = 0;
+
+		for (int i = start, end = start + length; i < end; ) {
+			final int first = bytes[i++] & 0xFF;
+
+			if (first < 0x80) {
+				chars[count++] = (char) first;
+			} else if (first < 0xE0) {
+				chars[count++] = (char) (((first & 0x1F) << 6) | (bytes[i++] & 0x3F));
+			} else {
+				chars[count++] = (char) (((first & 0x0F) << 12) | ((bytes[i++] & 0x3F) << 6) | (bytes[i++] & 0x3F));
+			}
+		}
+
+		return new String(chars, 0, count);
+	}
+
+	/**
+	 * Copies the specified snapshot file to the given one (e.g. the one of a {@link MappedModel},
+	 * without loading it), replacing it atomically just as {@link #save(CompactModel, long, File)} does.
+	 */
+	static void copy(final File source, final File target) throws IOException {
+		if (source.getCanonicalFile().equals(target.getCanonicalFile())) return;
+
+		final File temp = new File(target.getPath() + ".tmp");
+		final FileInputStream in = new FileInputStream(source);
+
+		try {
+			final FileOutputStream out = new FileOutputStream(temp);
+
+			try {
+				final FileChannel from = in.getChannel(), to = out.getChannel();
+				for (long position = 0, size = from.size(); position < size; ) {
+					position += from.transferTo(position, size - position, to);
+				}
+
+				to.force(true);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		replace(temp, target);
+	}
+
+	/** A snapshot read back by {@link Snapshot#load(File)}. */
+	static final class Loaded {
+		final CompactModel model;
+
+		/** The {@link LearningLog#mark() mark} of the log learned into the model. */
+		final long logMark;
+
+		Loaded(final CompactModel model, final long logMark) {
+			this.model = model;
+			this.logMark = logMark;
+		}
+	}
+
+	static Loaded load(final File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+
+		try {
+			final Reader reader = new Reader(in.getChannel());
+			final Layout layout = Layout.read(reader);
+			final int size = layout.size;
+
+			final int[] tokens = reader.getInts(size * layout.order);
+			final long[] starters = reader.getLongs(layout.bitsetLength());
+			final long[] finishers = reader.getLongs(layout.bitsetLength());
+			final int[] followOffsets = reader.getInts(size + 1);
+			final int[] followTargets = reader.getInts(layout.followCount);
+			final int[] followWeights = reader.getInts(layout.followCount);
+			final int[] followThresholds = reader.getInts(layout.followCount);
+			final int[] followAliases = reader.getInts(layout.followCount);
+			final int[] precedeOffsets = reader.getInts(size + 1);
+			final int[] precedeTargets = reader.getInts(layout.precedeCount);
+			final int[] precedeWeights = reader.getInts(layout.precedeCount);
+			final int[] precedeThresholds = reader.getInts(layout.precedeCount);
+			final int[] precedeAliases = reader.getInts(layout.precedeCount);
+			final int[] containerOffsets = reader.getInts(layout.wordCount + 1);
+			final int[] containerTargets = reader.getInts(layout.containerCount);
+			final int[] wordEnds = reader.getInts(layout.wordCount);
+			reader.skip(layout.length(Layout.WORD_TABLE));	// the heap dictionary has its own table
+			final byte[] blob = reader.getBytes(layout.bytes);
+
+			final Dictionary dictionary = new Dictionary();
+			for (int i = 0, start = 0; i < layout.wordCount; start = wordEnds[i++]) {
+				dictionary.add(decode(blob, start, wordEnds[i] - start));
+			}
+
+			return new Loaded(new CompactModel(layout.order, dictionary, tokens,
+					followOffsets, followTargets, followWeights, followThresholds, followAliases,
+					precedeOffsets, precedeTargets, precedeWeights, precedeThresholds, precedeAliases,
+					containerOffsets, containerTargets, starters, finishers), layout.logMark);
+		} finally {
+			in.close();
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Buffered bulk writes of primitive arrays to a channel. */
+	static class Writer {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Writer(final FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void putInt(final int value) throws IOException {
+			if (buffer.remaining() < 4) flush();
+			buffer.putInt(value);
+		}
+
+		void putLong(final long value) throws IOException {
+			if (buffer.remaining() < 8) flush();
+			buffer.putLong(value);
+		}
+
+		void putInts(final int[] values) throws IOException {
+			for (int off = 0; off < values.length; ) {
+				if (buffer.remaining() < 4) flush();
+
+				final int n = Math.min(values.length - off, buffer.remaining() / 4);
+				buffer.asIntBuffer().put(values, off, n);
+				buffer.position(buffer.position() + n * 4);
+				off += n;
+			}
+		}
+
+		void putLongs(final long[] values) throws IOException {
+			for (int off = 0; off < values.length; ) {
+				if (buffer.remaining() < 8) flush();
+
+				final int n = Math.min(values.length - off, buffer.remaining() / 8);
+				buffer.asLongBuffer().put(values, off, n);
+				buffer.position(buffer.position() + n * 8);
+				off += n;
+			}
+		}
+
+		void putBytes(final byte[] values) throws IOException {
+			for (int off = 0; off < values.length; ) {
+				if (!buffer.hasRemaining()) flush();
+
+				final int n = Math.min(values.length - off, buffer.remaining());
+				buffer.put(values, off, n);
+				off += n;
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+		}
+	}
+
+	/** Buffered bulk reads of primitive arrays from a channel. */
+	static class Reader {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		Reader(final FileChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		/** Makes sure at least <tt>bytes</tt> bytes are available in the buffer. */
+		private void fill(final int bytes) throws IOException {
+			if (buffer.remaining() >= bytes) return;
+
+			buffer.compact();
+			while (buffer.position() < bytes) {
+				if (channel.read(buffer) < 0) throw new IOException("Unexpected end of snapshot");
+			}
+			buffer.flip();
+		}
+
+		int getInt() throws IOException {
+			fill(4);
+			return buffer.getInt();
+		}
+
+		long getLong() throws IOException {
+			fill(8);
+			return buffer.getLong();
+		}
+
+		void skip(long bytes) throws IOException {
+			while (bytes > 0) {
+				fill(1);
+
+				final int n = (int) Math.min(bytes, buffer.remaining());
+				buffer.position(buffer.position() + n);
+				bytes -= n;
+			}
+		}
+
+		int[] getInts(final int length) throws IOException {
+			final int[] ret = new int[length];
+
+			for (int off = 0; off < length; ) {
+				fill(4);
+
+				final int n = Math.min(length - off, buffer.remaining() / 4);
+				buffer.asIntBuffer().get(ret, off, n);
+				buffer.position(buffer.position() + n * 4);
+				off += n;
+			}
+
+			return ret;
+		}
+
+		long[] getLongs(final int length) throws IOException {
+			final long[] ret = new long[length];
+
+			for (int off = 0; off < length; ) {
+				fill(8);
+
+				final int n = Math.min(length - off, buffer.remaining() / 8);
+				buffer.asLongBuffer().get(ret, off, n);
+				buffer.position(buffer.position() + n * 8);
+				off += n;
+			}
+
+			return ret;
+		}
+
+		byte[] getBytes(final int length) throws IOException {
+			final byte[] ret = new byte[length];
+
+			for (int off = 0; off < length; ) {
+				fill(1);
+
+				final int n = Math.min(length - off, buffer.remaining());
+				buffer.get(ret, off, n);
+				off += n;
+			}
+
+			return ret;
+		}
+	}
+
+	/** Hiding the constructor, to prohibit instantiation. */
+	private Snapshot() {};
+}
@@ -0,0 +1,706 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * The mutable model the {@link Engine} learns into.
+ *
+ * <p>
+ * It's optimized for insertion: the structures grow dynamically and filter duplicates through hash
+ * tables. Once the learning is over, it can be compiled into a {@link CompactModel} that answers
+ * the same queries from a fraction of the memory.
+ * </p>
+ *
+ * @author legendi
+ */
+final class StagingModel implements Model {
+
+	/** The highest number of occurrences the pruning distinguishes. */
+	private static final int MAX_OCCURRENCES = 1024;
+
+	private final int order;
+
+	private final Dictionary dictionary;
+
+	/** State ids of the tuples. */
+	private final TupleIndex knownTuples;
+
+	/**
+	 * state x successor states (the tuple shifted right with a next word)
+	 *
+	 * <p>
+	 * The next word is the last word of the successor, so the transition graph doesn't need to
+	 * store the words: the generation is a walk on the state ids.
+	 * </p>
+	 */
+	private final EdgeTable followings = new EdgeTable();
+
+	/** state x predecessor states (the tuple shifted left with a previous word) */
+	private final EdgeTable preceedings = new EdgeTable();
+
+	/** word id x states containing the word */
+	private final ArrayList<IntList> containers = new ArrayList<IntList>();
+
+	/** Estimated footprint of the lists of {@link #containers}, kept up to date by {@link #addToContainer(int, int)}. */
+	private long containerFootprint = 0;
+
+	/** The descriptors of the states: if they can be used to start/close a generated sentence. */
+	private final BitSet starters = new BitSet();
+	private final BitSet finishers = new BitSet();
+
+	/**
+	 * The changes since the last {@link #clearChanges()}, for {@link DeltaModel}: the states whose
+	 * tokens, properties or transitions changed, the words whose containers were only appended to,
+	 * and the ones which lost some (their lists were reordered).
+	 */
+	private final BitSet changedStates = new BitSet();
+	private final BitSet grownWords = new BitSet();
+	private final BitSet shrunkWords = new BitSet();
+
+	/** Reused buffers of the tokenizer: the characters and the word ids of the current message. */
+	private char[] text = new char[256];
+	private int[] tokens = new int[64];
+
+	/** Reused buffer of the states of the last learned message. */
+	private int[] states = new int[64];
+
+	//---------------------------------------------------------------------------------------------------
+
+	StagingModel(final int order) {
+		this(order, new Dictionary());
+	}
+
+	/** Creates a model registering its words in the specified dictionary (see {@link OrderSet}). */
+	StagingModel(final int order, final Dictionary dictionary) {
+		this.order = order;
+		this.dictionary = dictionary;
+		this.knownTuples = new TupleIndex(order);
+	}
+
+	/**
+	 * Creates a staging model with the same content as the specified (e.g. restored) one, to be able
+	 * to continue the learning on it. Word ids and states are preserved, and the changes are counted
+	 * from <tt>model</tt>.
+	 */
+	StagingModel(final Model model) {
+		this(model.order());
+
+		for (int word = 0; word < model.wordCount(); ++word) {
+			dictionary.add(model.word(word));
+
+			for (int i = 0; i < model.containerCount(word); ++i) {
+				addToContainer(word, model.container(word, i));
+			}
+		}
+
+		final int[] words = new int[order];
+		for (int state = 0; state < model.size(); ++state) {
+			for (int pos = 0; pos < order; ++pos) {
+				words[pos] = model.token(state, pos);
+			}
+
+			knownTuples.add(words, 0);
+			if (model.isStarter(state)) starters.set(state);
+			if (model.isFinisher(state)) finishers.set(state);
+		}
+
+		for (int state = 0; state < model.size(); ++state) {
+			for (int i = 0; i < model.followingCount(state); ++i) {
+				followings.add(state, model.following(state, i), model.followingWeight(state, i));
+			}
+
+			for (int i = 0; i < model.precedingCount(state); ++i) {
+				preceedings.add(state, model.preceding(state, i), model.precedingWeight(state, i));
+			}
+		}
+
+		// The released states (see LearningWindow) are isolated, their ids can be reused again
+		for (int state = 0; state < model.size(); ++state) {
+			if (0 == model.followingCount(state) && 0 == model.precedingCount(state) && !model.isStarter(state) &&
+					!model.isFinisher(state)) {
+				knownTuples.release(state);
+			}
+		}
+
+		clearChanges();
+	}
+
+	Dictionary dictionary() {
+		return dictionary;
+	}
+
+	Tuple getTuple(final int state) {
+		return knownTuples.getTuple(state);
+	}
+
+	/** Returns the states changed since the last {@link #clearChanges()} (not to be modified). */
+	BitSet changedStates() {
+		return changedStates;
+	}
+
+	/** Returns the words whose containers were only appended to since the last {@link #clearChanges()}. */
+	BitSet grownWords() {
+		return grownWords;
+	}
+
+	/** Returns the words which lost containers since the last {@link #clearChanges()}. */
+	BitSet shrunkWords() {
+		return shrunkWords;
+	}
+
+	/** Forgets the changes, e.g. once the model is compiled. */
+	void clearChanges() {
+		changedStates.clear();
+		grownWords.clear();
+		shrunkWords.clear();
+	}
+
+	/**
+	 * Splits the <code>text[start .. end)</code> range into words, and puts their ids into the
+	 * {@link #tokens} buffer.
+	 * 
+	 * <p>
+	 * The <tt>Engine</tt> considers everything a word that is bordered by whitespace characters
+	 * (<tt>[ \t\n\x0B\f\r]</tt>), after trimming the message (as {@link String#trim()} does).
+	 * Words are registered in the dictionary only if the message is long enough to form a tuple.
+	 * </p>
+	 * 
+	 * @return the number of the words, or <code>0</code> if they don't form a tuple
+	 */
+	int tokenize(final char[] text, int start, int end) {
+		while (start < end && text[start] <= ' ') ++start;
+		while (start < end && text[end - 1] <= ' ') --end;
+
+		int count = 0;
+		for (int i = start; i < end; ++i) {
+			if (!isWhitespace(text[i]) && (i == start || isWhitespace(text[i - 1]))) ++count;
+		}
+
+		// An empty message is a single empty word, as it has always been
+		if (start == end) count = 1;
+
+		if (count < order) {
+			return 0;
+		}
+
+		if (tokens.length < count) {
+			tokens = new int[Math.max(count, 2 * tokens.length)];
+		}
+
+		if (start == end) {
+			tokens[0] = dictionary.add(text, start, end);
+			return 1;
+		}
+
+		for (int i = start, n = 0; i < end; ++n) {
+			int j = i;
+			while (j < end && !isWhitespace(text[j])) ++j;
+
+			tokens[n] = dictionary.add(text, i, j);
+
+			i = j;
+			while (i < end && isWhitespace(text[i])) ++i;
+		}
+
+		return count;
+	}
+
+	/** Returns the buffer of the word ids of the last {@link #tokenize(char[], int, int) tokenized} message. */
+	int[] tokens() {
+		return tokens;
+	}
+
+	/** Returns the buffer of the states of the last {@link #learn(int[], int) learned} message, in order. */
+	int[] states() {
+		return states;
+	}
+
+	/**
+	 * Adds the words of the specified message to the given collection, split the same way as the
+	 * messages are learned.
+	 */
+	static void words(final String message, final Collection<String> words) {
+		final int length = message.length();
+
+		for (int i = 0; i < length; ) {
+			while (i < length && isWhitespace(message.charAt(i))) ++i;
+
+			final int start = i;
+			while (i < length && !isWhitespace(message.charAt(i))) ++i;
+
+			if (i > start) {
+				words.add(message.substring(start, i));
+			}
+		}
+	}
+
+	/** The characters of the <tt>\s</tt> regular expression class. */
+	static boolean isWhitespace(final char ch) {
+		return ' ' == ch || ('\t' <= ch && ch <= '\r');
+	}
+
+	/**
+	 * Learns the words of the specified message (see {@link #learn(char[], int, int)}).
+	 * 
+	 * @return the number of the tuples in the message
+	 */
+	int learn(final String message) {
+		if (text.length < message.length()) {
+			text = new char[Math.max(message.length(), 2 * text.length)];
+		}
+
+		message.getChars(0, message.length(), text, 0);
+		return learn(text, 0, message.length());
+	}
+
+	/**
+	 * Learns the words of the message in the <code>text[start .. end)</code> range (see
+	 * {@link #learn(int[], int)}).
+	 * 
+	 * @return the number of the tuples in the message
+	 */
+	int learn(final char[] text, final int start, final int end) {
+		final int length = tokenize(text, start, end);
+		return learn(tokens, length);
+	}
+
+	/**
+	 * Learns the specified sequence of word ids: creates the corresponding tuples, links them in
+	 * both directions, and sets the starter/finisher properties of the first/last one. The states
+	 * of the tuples are put into the {@link #states()} buffer.
+	 *
+	 * @return the number of the tuples in the sequence
+	 */
+	int learn(final int[] words, final int length) {
+		final int tuples = Math.max(0, length - order + 1);
+		int previous = -1;
+
+		if (states.length < tuples) {
+			states = new int[Math.max(tuples, 2 * states.length)];
+		}
+
+		for (int i = 0; i < tuples; ++i) {
+			final int known = knownTuples.count();
+			final int tuple = states[i] = knownTuples.add(words, i);
+			changedStates.set(tuple);
+
+			if (knownTuples.count() > known) {
+				// A new tuple: registering it for each of its (distinct) words
+				for (int j = i; j < i + order; ++j) {
+					boolean first = true;
+					for (int k = i; k < j && first; ++k) first = (words[k] != words[j]);
+
+					if (first) addToContainer(words[j], tuple);
+				}
+			}
+
+			if (i>0) {
+				// Linking the tuple with the previous one in both directions
+				followings.add(previous, tuple);
+				preceedings.add(tuple, previous);
+			} else {
+				starters.set(tuple);
+			}
+
+			previous = tuple;
+		}
+
+		if (tuples > 0) {
+			// The last tuple is simply marked as a finisher
+			finishers.set(previous);
+		}
+
+		return tuples;
+	}
+
+	/**
+	 * Merges the content of the specified model into this one.
+	 * 
+	 * <p>
+	 * The words and states of <tt>other</tt> are remapped, new ones are registered in their original
+	 * order, and the relations are appended in their original order, so the result is exactly the
+	 * same as if the messages learned by <tt>other</tt> had been learned by this model (after its
+	 * own ones).
+	 * </p>
+	 */
+	void merge(final StagingModel other) {
+		assert (other.order == order)
+		: "Cannot merge models of different orders!";
+		
+		final int[] wordMap = new int[other.wordCount()];
+		for (int word = 0; word < wordMap.length; ++word) {
+			wordMap[word] = dictionary.add(other.word(word));
+		}
+		
+		final int[] stateMap = new int[other.size()];
+		final int[] words = new int[order];
+		for (int state = 0; state < stateMap.length; ++state) {
+			for (int pos = 0; pos < order; ++pos) {
+				words[pos] = wordMap[other.token(state, pos)];
+			}
+			
+			final int known = knownTuples.count();
+			final int tuple = stateMap[state] = knownTuples.add(words, 0);
+			changedStates.set(tuple);
+			
+			if (knownTuples.count() > known) {
+				for (int j = 0; j < order; ++j) {
+					boolean first = true;
+					for (int k = 0; k < j && first; ++k) first = (words[k] != words[j]);
+					
+					if (first) addToContainer(words[j], tuple);
+				}
+			}
+			
+			if (other.isStarter(state)) starters.set(tuple);
+			if (other.isFinisher(state)) finishers.set(tuple);
+		}
+		
+		for (int state = 0; state < stateMap.length; ++state) {
+			for (int i = 0; i < other.followingCount(state); ++i) {
+				followings.add(stateMap[state], stateMap[other.following(state, i)],
+						other.followingWeight(state, i));
+			}
+			
+			for (int i = 0; i < other.precedingCount(state); ++i) {
+				preceedings.add(stateMap[state], stateMap[other.preceding(state, i)],
+						other.precedingWeight(state, i));
+			}
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Removes an occurrence of the transition between the specified states, in both directions (the
+	 * inverse of linking two consecutive tuples of a learned message).
+	 */
+	void unlink(final int state, final int next) {
+		followings.remove(state, next);
+		preceedings.remove(next, state);
+		changedStates.set(state);
+		changedStates.set(next);
+	}
+
+	void clearStarter(final int state) {
+		starters.clear(state);
+		changedStates.set(state);
+	}
+
+	void clearFinisher(final int state) {
+		finishers.clear(state);
+		changedStates.set(state);
+	}
+
+	/**
+	 * Forgets the specified state, which must not have any transitions left: removes it from the
+	 * containers of its words, and lets a later new tuple reuse its id. Until then it remains an
+	 * isolated state of the model.
+	 */
+	void release(final int state) {
+		for (int pos = 0; pos < order; ++pos) {
+			final int word = token(state, pos);
+			if (word < containers.size() && containers.get(word).remove(state)) shrunkWords.set(word);
+		}
+
+		starters.clear(state);
+		finishers.clear(state);
+		knownTuples.release(state);
+		changedStates.set(state);
+	}
+
+	boolean isReleased(final int state) {
+		return knownTuples.isReleased(state);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the number of the occurrences of the specified state in the learned messages: the sum
+	 * of the weights of its incoming or its outgoing transitions, whichever is larger (at least 1).
+	 */
+	int occurrences(final int state) {
+		return Math.max(1, Math.max(weight(followings, state), weight(preceedings, state)));
+	}
+
+	private static int weight(final EdgeTable edges, final int state) {
+		int ret = 0;
+		for (int i = 0; i < edges.degree(state); ++i) {
+			ret += edges.count(state, i);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Returns a copy of the model keeping about the specified fraction of its states and transitions:
+	 * the ones seen the most times (see {@link #occurrences(int)}), and among the equally frequent
+	 * states the most recently learned ones. The words not contained by any remaining state are
+	 * dropped too. The ids of the words and states are reassigned, in their original order.
+	 *
+	 * <p>
+	 * The copy stays consistent: the relations of the removed states are removed in both directions,
+	 * and the states left without any successors (or without a path to a finisher) become finishers,
+	 * the ones without any predecessors (or without a path from a starter) become starters, so a
+	 * generated sentence always ends.
+	 * </p>
+	 */
+	StagingModel pruned(final double fraction) {
+		// The number of the states and transitions seen exactly (in the last slot: at least) n times
+		final long[] seen = new long[MAX_OCCURRENCES + 1];
+		long all = 0;
+
+		for (int state = 0; state < size(); ++state) {
+			if (isReleased(state)) continue;
+
+			++seen[Math.min(MAX_OCCURRENCES, occurrences(state))];
+
+			for (int i = 0; i < followings.degree(state); ++i) {
+				++seen[Math.min(MAX_OCCURRENCES, followings.count(state, i))];
+			}
+
+			all += 1 + followings.degree(state);
+		}
+
+		// The highest threshold still keeping enough of them, the excess is cut from its own slot
+		final long target = (long) (fraction * all);
+		int threshold = 1;
+		long kept = all;
+
+		while (threshold < MAX_OCCURRENCES && kept - seen[threshold] >= target) {
+			kept -= seen[threshold++];
+		}
+
+		// The oldest states of the threshold slot go first, with their transitions
+		int oldest = 0;
+		for (long excess = kept - target; oldest < size() && excess > 0; ++oldest) {
+			if (!isReleased(oldest) && Math.min(MAX_OCCURRENCES, occurrences(oldest)) == threshold) {
+				excess -= 1 + followings.degree(oldest);
+			}
+		}
+
+		return pruned(threshold, oldest);
+	}
+
+	/**
+	 * Returns a copy of the model without the states seen fewer than <tt>threshold</tt> times (or
+	 * exactly that many times, if their id is below <tt>oldest</tt>) and without the transitions seen
+	 * fewer times. See {@link #pruned(double)}.
+	 */
+	private StagingModel pruned(final int threshold, final int oldest) {
+		final StagingModel ret = new StagingModel(order);
+
+		final int[] stateMap = new int[size()];
+		final boolean[] used = new boolean[wordCount()];
+
+		for (int state = 0; state < size(); ++state) {
+			final int occurrences = Math.min(MAX_OCCURRENCES, occurrences(state));
+			final boolean kept = occurrences > threshold || (occurrences == threshold && state >= oldest);
+			stateMap[state] = (kept && !isReleased(state)) ? 0 : -1;
+
+			for (int pos = 0; pos < order && stateMap[state] >= 0; ++pos) {
+				used[token(state, pos)] = true;
+			}
+		}
+
+		final int[] wordMap = new int[wordCount()];
+		for (int word = 0; word < wordMap.length; ++word) {
+			wordMap[word] = used[word] ? ret.dictionary.add(word(word)) : -1;
+		}
+
+		final int[] words = new int[order];
+		for (int state = 0; state < size(); ++state) {
+			if (stateMap[state] < 0) continue;
+
+			for (int pos = 0; pos < order; ++pos) {
+				words[pos] = wordMap[token(state, pos)];
+			}
+
+			final int tuple = stateMap[state] = ret.knownTuples.add(words, 0);
+
+			for (int j = 0; j < order; ++j) {
+				boolean first = true;
+				for (int k = 0; k < j && first; ++k) first = (words[k] != words[j]);
+
+				if (first) ret.addToContainer(words[j], tuple);
+			}
+
+			if (isStarter(state)) ret.starters.set(tuple);
+			if (isFinisher(state)) ret.finishers.set(tuple);
+		}
+
+		for (int state = 0; state < size(); ++state) {
+			if (stateMap[state] < 0) continue;
+
+			for (int i = 0; i < followings.degree(state); ++i) {
+				final int target = stateMap[followings.target(state, i)];
+				final int count = followings.count(state, i);
+
+				if (target >= 0 && count >= threshold) {
+					ret.followings.add(stateMap[state], target, count);
+					ret.preceedings.add(target, stateMap[state], count);
+				}
+			}
+		}
+
+		ret.close(ret.followings, ret.preceedings, ret.finishers);
+		ret.close(ret.preceedings, ret.followings, ret.starters);
+		return ret;
+	}
+
+	/**
+	 * Marks every state as an end (a finisher if <tt>forward</tt> holds the successors, a starter
+	 * if it holds the predecessors) that cannot reach an end through the <tt>forward</tt> relation.
+	 */
+	private void close(final EdgeTable forward, final EdgeTable backward, final BitSet ends) {
+		final boolean[] reaching = new boolean[size()];
+		final IntList queue = new IntList(Math.max(4, ends.cardinality()));
+
+		for (int state = ends.nextSetBit(0); state >= 0; state = ends.nextSetBit(state + 1)) {
+			reaching[state] = true;
+			queue.add(state);
+		}
+
+		// Walking backwards from the ends
+		for (int head = 0; head < queue.size(); ++head) {
+			final int state = queue.get(head);
+
+			for (int i = 0; i < backward.degree(state); ++i) {
+				final int other = backward.target(state, i);
+
+				if (!reaching[other]) {
+					reaching[other] = true;
+					queue.add(other);
+				}
+			}
+		}
+
+		for (int state = 0; state < size(); ++state) {
+			if (!reaching[state] || 0 == forward.degree(state)) ends.set(state);
+		}
+	}
+
+	private void addToContainer(final int component, final int container) {
+		while (containers.size() <= component) {
+			final IntList list = new IntList();
+			containers.add(list);
+			containerFootprint += list.footprint();
+		}
+
+		final IntList list = containers.get(component);
+		final long footprint = list.footprint();
+
+		list.add(container);
+		containerFootprint += list.footprint() - footprint;
+		grownWords.set(component);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	//--- Model -----------------------------------------------------------------------------------------
+
+	@Override
+	public int order() {
+		return order;
+	}
+
+	@Override
+	public int size() {
+		return knownTuples.size();
+	}
+
+	@Override
+	public int wordCount() {
+		return dictionary.size();
+	}
+
+	@Override
+	public int edgeCount() {
+		return followings.size();
+	}
+
+	@Override
+	public long footprint() {
+		return 128 + dictionary.footprint() + knownTuples.footprint() + followings.footprint() +
+			preceedings.footprint() + 2L * text.length + 4L * tokens.length + 4L * containers.size() +
+			(starters.size() + finishers.size()) / 8 + containerFootprint;
+	}
+
+	@Override
+	public int token(final int state, final int pos) {
+		return knownTuples.word(state, pos);
+	}
+
+	@Override
+	public int lookup(final String word) {
+		return dictionary.lookup(word);
+	}
+
+	@Override
+	public String word(final int id) {
+		return dictionary.word(id);
+	}
+
+	@Override
+	public boolean isStarter(final int state) {
+		return starters.get(state);
+	}
+
+	@Override
+	public boolean isFinisher(final int state) {
+		return finishers.get(state);
+	}
+
+	@Override
+	public int followingCount(final int state) {
+		return followings.degree(state);
+	}
+
+	@Override
+	public int following(final int state, final int index) {
+		return followings.target(state, index);
+	}
+
+	@Override
+	public int followingWeight(final int state, final int index) {
+		return followings.count(state, index);
+	}
+
+	@Override
+	public int nextFollowing(final int state, final Random random) {
+		return followings.sample(state, random);
+	}
+
+	@Override
+	public int precedingCount(final int state) {
+		return preceedings.degree(state);
+	}
+
+	@Override
+	public int preceding(final int state, final int index) {
+		return preceedings.target(state, index);
+	}
+
+	@Override
+	public int precedingWeight(final int state, final int index) {
+		return preceedings.count(state, index);
+	}
+
+	@Override
+	public int nextPreceding(final int state, final Random random) {
+		return preceedings.sample(state, random);
+	}
+
+	@Override
+	public int containerCount(final int word) {
+		return (word < containers.size()) ? containers.get(word).size() : 0;
+	}
+
+	@Override
+	public int container(final int word, final int index) {
+		return containers.get(word).get(index);
+	}
+
+}
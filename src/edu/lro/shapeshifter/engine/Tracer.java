@@ -0,0 +1,62 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.List;
+
+import edu.lro.shapeshifter.engine.Engine.Result;
+
+/**
+ * Receives the events of the {@link Engine}: the progress of the loading, the learned messages and
+ * the steps of the sentence generation.
+ *
+ * <p>
+ * Tracing is turned off by default (see {@link Engine#setTracer(Tracer)}): in that case none of the
+ * arguments are computed, so a disabled tracer costs a single check per event. The descriptions of
+ * the tuples are given as their printed form (e.g. <tt>[what, u, did]</tt>).
+ * </p>
+ *
+ * <p>
+ * The verbose console output of the engine is implemented by {@link ConsoleTracer}.
+ * </p>
+ *
+ * @author legendi
+ */
+public interface Tracer {
+
+	/** Called by the loaders after every 10000th sentence read. */
+	void parsed(int sentences);
+
+	/** Reports the end of a longer operation, e.g. the reinitialization or saving a snapshot. */
+	void info(String message);
+
+	/** Called when a message given to {@link Engine#addString(String)} is actually learned. */
+	void learned(String message, int tuples);
+
+	/** The generation of a sentence started. */
+	void replyStarted(String startingWord, boolean known);
+
+	/** The tuple the sentence is built around was chosen. */
+	void tupleSelected(String tuple);
+
+	/** Building the postfix (<tt>forward</tt>) or the prefix of the sentence started. */
+	void buildStarted(boolean forward);
+
+	/**
+	 * A word was appended (<tt>forward</tt>) or prepended to the sentence.
+	 *
+	 * @param candidates the available words
+	 * @param chosen the chosen one
+	 * @param shifted the tuple after the step
+	 * @param closing if the shifted tuple is a finisher (<tt>forward</tt>) or a starter one
+	 */
+	void stepped(boolean forward, String candidates, String chosen, String shifted, boolean closing);
+
+	/** Building the postfix (<tt>forward</tt>) or the prefix of the sentence is finished. */
+	void buildFinished(boolean forward);
+
+	/** A sentence was generated. */
+	void generated(Result result);
+
+	/** The candidates of {@link Engine#generateSentences(String, int, long)} were generated. */
+	void candidates(String startingWord, List<Result> results);
+
+}
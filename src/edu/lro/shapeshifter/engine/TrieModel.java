@@ -0,0 +1,545 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A {@link Model} stored in an n-gram trie, trading some speed for memory.
+ *
+ * <p>
+ * The neighbouring tuples of a Markov chain of order <tt>k</tt> overlap in <tt>k-1</tt> words, so
+ * the trie stores the states by their common prefixes: the nodes of depth <tt>d</tt> are the
+ * distinct <tt>d</tt> long prefixes of the states, the nodes of depth <tt>k</tt> are the states
+ * themselves (in lexicographic order, which gives their ids), and the children of a state (depth
+ * <tt>k+1</tt>) are the words that followed it, with the weights of the transitions. The
+ * predecessors of a state are kept in a plain list of each state.
+ * </p>
+ *
+ * <p>
+ * Each level is a pair of primitive arrays: the word ids of the nodes, sorted within their
+ * parents, and the offsets of their children in the next level (see {@link Trie}). A transition
+ * costs two <tt>int</tt>s in each direction (the word or the predecessor, and the cumulated
+ * weight), instead of the target state, weight and alias table of the {@link CompactModel}. The
+ * tokens of a state are recovered by walking up the trie, and its successors through its suffix
+ * link (see {@link #suffixes}), with binary searches.
+ * </p>
+ *
+ * <p>
+ * The sharing pays off most at the lower orders, where the states have many common prefixes; at the
+ * higher ones most prefixes are unique, and the savings come from the lists of the transitions (see
+ * the <tt>generate.trie.*</tt> benchmarks).
+ * </p>
+ *
+ * <p>
+ * The ids of the states differ from the ones of the model the trie was compiled from.
+ * </p>
+ *
+ * @author legendi
+ */
+final class TrieModel implements Model {
+
+	private final int order;
+	private final int size;
+	private final Dictionary dictionary;
+	private final int wordCount;
+
+	private final Trie forward;
+
+	/**
+	 * The suffix links of the states: the node of the last <tt>k-1</tt> words of each state at the
+	 * depth <tt>k-1</tt>, the parent of all its successors (<tt>-1</tt> if it has none). A step forward
+	 * is a single search among the children of that node, instead of walking up and down the trie.
+	 */
+	private final int[] suffixes;
+
+	/**
+	 * The predecessors of each state, and the cumulated weights of the transitions, in the
+	 * <code>[precedeOffsets[state] .. precedeOffsets[state + 1])</code> ranges.
+	 */
+	private final int[] precedeOffsets;
+	private final int[] precedeTargets;
+	private final int[] precedeWeights;
+
+	/**
+	 * The first state below each node of depth <tt>1</tt>, and the number of the states at the end:
+	 * the first word of a state is found by a search in this short array, instead of walking up.
+	 */
+	private final int[] firstStates;
+
+	private final long[] starters;
+	private final long[] finishers;
+
+	/** The states containing each word, sorted (see {@link PostingLists}). */
+	private final PostingLists containers;
+
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * The levels of an n-gram trie of depth <tt>order + 1</tt>.
+	 *
+	 * <p>
+	 * <code>labels[d]</code> holds the word ids of the nodes of depth <tt>d</tt> (the root is the
+	 * single node of depth <tt>0</tt>), <code>children[d]</code> the offsets of their children in
+	 * level <tt>d+1</tt>: the children of the <tt>i</tt>th node are in the
+	 * <code>[children[d][i] .. children[d][i+1])</code> range, sorted by their words. The leaves
+	 * (depth <tt>order + 1</tt>) carry the weights, cumulated within their parents.
+	 * </p>
+	 */
+	static final class Trie {
+		final int[][] labels;
+		final int[][] children;
+		final int[] weights;
+
+		/**
+		 * Builds the trie of the specified sorted, distinct sequences and of their leaves.
+		 *
+		 * @param keys the sequences, <tt>order</tt> word ids each
+		 * @param leafOffsets the leaves of the <tt>i</tt>th sequence are in the
+		 * 			<code>[leafOffsets[i] .. leafOffsets[i+1])</code> range of the next two arrays
+		 * @param leafWords the words of the leaves, sorted within each sequence
+		 * @param leafWeights the weights of the leaves (cumulated in place)
+		 */
+		Trie(final int order, final int[] keys, final int[] leafOffsets, final int[] leafWords,
+				final int[] leafWeights) {
+			final int count = leafOffsets.length - 1;
+			labels = new int[order + 2][];
+			children = new int[order + 1][];
+
+			// The number of nodes of each depth: a sequence opens new nodes below its common prefix with the previous one
+			final int[] nodes = new int[order + 1];
+			nodes[0] = 1;
+
+			for (int i = 0; i < count; ++i) {
+				final int common = (0 == i) ? 0 : commonPrefix(keys, i - 1, i, order);
+				for (int d = common + 1; d <= order; ++d) ++nodes[d];
+			}
+
+			for (int d = 0; d <= order; ++d) {
+				if (d > 0) labels[d] = new int[nodes[d]];
+				children[d] = new int[nodes[d] + 1];
+			}
+
+			final int[] current = new int[order + 1];
+			final int[] created = new int[order + 1];
+			created[0] = 1;
+
+			for (int i = 0; i < count; ++i) {
+				final int common = (0 == i) ? 0 : commonPrefix(keys, i - 1, i, order);
+
+				for (int d = common + 1; d <= order; ++d) {
+					final int node = current[d] = created[d]++;
+					labels[d][node] = keys[i * order + d - 1];
+
+					// The first child of a node opens its range: the parent was opened by the same sequence
+					if (d - 1 > common || 0 == i) {
+						children[d - 1][current[d - 1]] = node;
+					}
+				}
+			}
+
+			for (int d = 0; d < order; ++d) {
+				children[d][nodes[d]] = nodes[d + 1];
+			}
+
+			children[order] = leafOffsets;
+			labels[order + 1] = leafWords;
+			weights = leafWeights;
+
+			for (int i = 0; i < count; ++i) {
+				cumulate(weights, leafOffsets[i], leafOffsets[i + 1]);
+			}
+		}
+
+		private static int commonPrefix(final int[] keys, final int a, final int b, final int order) {
+			int ret = 0;
+			while (ret < order && keys[a * order + ret] == keys[b * order + ret]) ++ret;
+			return ret;
+		}
+
+		/** Returns the node of depth <tt>d - 1</tt> the specified node of depth <tt>d</tt> is a child of. */
+		int parent(final int d, final int node) {
+			final int[] offsets = children[d - 1];
+			int lo = 0, hi = offsets.length - 2;
+
+			// The last node whose range starts at or before the child
+			while (lo < hi) {
+				final int mid = (lo + hi + 1) >>> 1;
+				if (offsets[mid] <= node) lo = mid; else hi = mid - 1;
+			}
+
+			return lo;
+		}
+
+		/** Returns the child of the specified node of depth <tt>d</tt> labeled with the given word, or <tt>-1</tt>. */
+		int child(final int d, final int node, final int word) {
+			final int[] words = labels[d + 1];
+			int lo = children[d][node], hi = children[d][node + 1] - 1;
+
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (words[mid] < word) lo = mid + 1;
+				else if (words[mid] > word) hi = mid - 1;
+				else return mid;
+			}
+
+			return -1;
+		}
+
+		/** Returns the weight of the <tt>index</tt>th leaf of the specified node of the last inner level. */
+		int weight(final int node, final int index) {
+			return TrieModel.weight(children[children.length - 1], weights, node, index);
+		}
+
+		/** Returns the index of a leaf of the specified node, chosen proportionally to the weights. */
+		int sample(final int node, final Random random) {
+			return TrieModel.sample(children[children.length - 1], weights, node, random);
+		}
+
+		long footprint() {
+			long ret = 64 + 4L * weights.length;
+
+			for (final int[] level : labels) {
+				if (level != null) ret += 16 + 4L * level.length;
+			}
+
+			for (final int[] level : children) {
+				ret += 16 + 4L * level.length;
+			}
+
+			return ret;
+		}
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Compiles the current content of the specified model. */
+	TrieModel(final Model source) {
+		order = source.order();
+		size = source.size();
+		dictionary = dictionary(source);
+		wordCount = dictionary.size();
+
+		final int[] tokens = new int[size * order];
+		for (int state = 0; state < size; ++state) {
+			for (int pos = 0; pos < order; ++pos) {
+				tokens[state * order + pos] = source.token(state, pos);
+			}
+		}
+
+		// The states of the source in the order of the trie
+		final int[] sorted = sort(tokens);
+
+		final int[] rank = new int[size];
+		for (int i = 0; i < size; ++i) {
+			rank[sorted[i]] = i;
+		}
+
+		final int[] keys = new int[size * order];
+		for (int i = 0; i < size; ++i) {
+			System.arraycopy(tokens, sorted[i] * order, keys, i * order, order);
+		}
+
+		final int[] followOffsets = new int[size + 1];
+		precedeOffsets = new int[size + 1];
+
+		for (int i = 0; i < size; ++i) {
+			followOffsets[i + 1] = followOffsets[i] + source.followingCount(sorted[i]);
+			precedeOffsets[i + 1] = precedeOffsets[i] + source.precedingCount(sorted[i]);
+		}
+
+		final int[] followWords = new int[followOffsets[size]];
+		final int[] followWeights = new int[followOffsets[size]];
+		precedeTargets = new int[precedeOffsets[size]];
+		precedeWeights = new int[precedeOffsets[size]];
+
+		for (int i = 0; i < size; ++i) {
+			final int state = sorted[i];
+
+			for (int index = 0; index < source.followingCount(state); ++index) {
+				add(followOffsets[i], followOffsets[i] + index, followWords, followWeights,
+						tokens[source.following(state, index) * order + order - 1], source.followingWeight(state, index));
+			}
+
+			for (int j = precedeOffsets[i], index = 0; j < precedeOffsets[i + 1]; ++j, ++index) {
+				precedeTargets[j] = rank[source.preceding(state, index)];
+				precedeWeights[j] = source.precedingWeight(state, index);
+			}
+
+			cumulate(precedeWeights, precedeOffsets[i], precedeOffsets[i + 1]);
+		}
+
+		forward = new Trie(order, keys, followOffsets, followWords, followWeights);
+
+		final int roots = forward.labels[1].length;
+		firstStates = new int[roots + 1];
+		for (int i = 0; i < roots; ++i) {
+			int node = i;
+
+			for (int d = 1; d < order; ++d) {
+				node = forward.children[d][node];
+			}
+
+			firstStates[i] = node;
+		}
+
+		firstStates[roots] = size;
+
+		suffixes = new int[size];
+		for (int i = 0; i < size; ++i) {
+			int node = 0;
+
+			for (int d = 0; d < order - 1 && node >= 0; ++d) {
+				node = forward.child(d, node, keys[i * order + 1 + d]);
+			}
+
+			suffixes[i] = node;
+		}
+
+		starters = new long[(size + 63) >>> 6];
+		finishers = new long[(size + 63) >>> 6];
+
+		for (int state = 0; state < size; ++state) {
+			if (source.isStarter(state)) starters[rank[state] >>> 6] |= 1L << rank[state];
+			if (source.isFinisher(state)) finishers[rank[state] >>> 6] |= 1L << rank[state];
+		}
+
+		final int[] containerOffsets = new int[wordCount + 1];
+		for (int word = 0; word < wordCount; ++word) {
+			containerOffsets[word + 1] = containerOffsets[word] + source.containerCount(word);
+		}
+
+		final int[] containerTargets = new int[containerOffsets[wordCount]];
+		for (int word = 0; word < wordCount; ++word) {
+			for (int i = 0; i < source.containerCount(word); ++i) {
+				containerTargets[containerOffsets[word] + i] = rank[source.container(word, i)];
+			}
+
+			Arrays.sort(containerTargets, containerOffsets[word], containerOffsets[word + 1]);
+		}
+
+		containers = new PostingLists(containerOffsets, containerTargets);
+	}
+
+	/** Returns the dictionary of the specified model, or an immutable copy of it. */
+	private static Dictionary dictionary(final Model source) {
+		if (source instanceof CompactModel) return ((CompactModel) source).dictionary;
+		if (source instanceof StagingModel) return ((StagingModel) source).dictionary().copy();
+
+		final Dictionary ret = new Dictionary();
+		for (int word = 0; word < source.wordCount(); ++word) {
+			ret.add(source.word(word));
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Appends the specified word and weight to the list starting at <tt>from</tt> (ending at
+	 * <tt>to</tt>), keeping it sorted by the words: insertion sort, the lists are short.
+	 */
+	private static void add(final int from, final int to, final int[] words, final int[] weights,
+			final int word, final int weight) {
+		words[to] = word;
+		weights[to] = weight;
+
+		for (int k = to; k > from && words[k - 1] > words[k]; --k) {
+			swap(words, k - 1, k);
+			swap(weights, k - 1, k);
+		}
+	}
+
+	/** Cumulates the weights of the <code>[from .. to)</code> range in place. */
+	private static void cumulate(final int[] weights, final int from, final int to) {
+		for (int j = from + 1; j < to; ++j) {
+			weights[j] += weights[j - 1];
+		}
+	}
+
+	/** Returns the weight of the <tt>index</tt>th element of a list of cumulated weights. */
+	private static int weight(final int[] offsets, final int[] weights, final int list, final int index) {
+		final int offset = offsets[list];
+		return weights[offset + index] - ((index > 0) ? weights[offset + index - 1] : 0);
+	}
+
+	/** Returns the index of an element of a list, chosen proportionally to its cumulated weights. */
+	private static int sample(final int[] offsets, final int[] weights, final int list, final Random random) {
+		int lo = offsets[list], hi = offsets[list + 1] - 1;
+		final int value = random.nextInt(weights[hi]);
+
+		// The first element whose cumulated weight is above the value
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (weights[mid] > value) hi = mid; else lo = mid + 1;
+		}
+
+		return lo - offsets[list];
+	}
+
+	private static void swap(final int[] array, final int i, final int j) {
+		final int tmp = array[i];
+		array[i] = array[j];
+		array[j] = tmp;
+	}
+
+	/** Returns the states ordered by their tokens. */
+	private int[] sort(final int[] tokens) {
+		final int[] ret = new int[size];
+		for (int i = 0; i < size; ++i) {
+			ret[i] = i;
+		}
+
+		mergeSort(ret, new int[size], 0, size, tokens);
+		return ret;
+	}
+
+	private void mergeSort(final int[] states, final int[] buffer, final int from, final int to, final int[] tokens) {
+		if (to - from < 2) return;
+
+		final int middle = (from + to) >>> 1;
+		mergeSort(states, buffer, from, middle, tokens);
+		mergeSort(states, buffer, middle, to, tokens);
+
+		System.arraycopy(states, from, buffer, from, to - from);
+
+		for (int i = from, a = from, b = middle; i < to; ++i) {
+			states[i] = (b >= to || (a < middle && compare(tokens, buffer[a], buffer[b]) <= 0))
+				? buffer[a++]
+				: buffer[b++];
+		}
+	}
+
+	private int compare(final int[] tokens, final int a, final int b) {
+		for (int pos = 0; pos < order; ++pos) {
+			final int x = tokens[a * order + pos], y = tokens[b * order + pos];
+			if (x != y) return (x < y) ? -1 : 1;
+		}
+
+		return 0;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	//--- Model -----------------------------------------------------------------------------------------
+
+	@Override
+	public int order() {
+		return order;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int wordCount() {
+		return wordCount;
+	}
+
+	@Override
+	public int edgeCount() {
+		return forward.weights.length;
+	}
+
+	@Override
+	public long footprint() {
+		return 128 + dictionary.footprint() + forward.footprint() + 4L * suffixes.length +
+			4L * (precedeOffsets.length + precedeTargets.length + precedeWeights.length + firstStates.length) +
+			8L * (starters.length + finishers.length) + containers.footprint();
+	}
+
+	@Override
+	public int token(final int state, final int pos) {
+		if (0 == pos) {
+			// The last depth 1 node whose first state is not above the state
+			int lo = 0, hi = firstStates.length - 2;
+
+			while (lo < hi) {
+				final int mid = (lo + hi + 1) >>> 1;
+				if (firstStates[mid] <= state) lo = mid; else hi = mid - 1;
+			}
+
+			return forward.labels[1][lo];
+		}
+
+		int node = state;
+
+		for (int d = order; d > pos + 1; --d) {
+			node = forward.parent(d, node);
+		}
+
+		return forward.labels[pos + 1][node];
+	}
+
+	@Override
+	public int lookup(final String word) {
+		final int id = dictionary.lookup(word);
+		return (id < wordCount) ? id : -1;
+	}
+
+	@Override
+	public String word(final int id) {
+		return dictionary.word(id);
+	}
+
+	@Override
+	public boolean isStarter(final int state) {
+		return 0 != (starters[state >>> 6] & (1L << state));
+	}
+
+	@Override
+	public boolean isFinisher(final int state) {
+		return 0 != (finishers[state >>> 6] & (1L << state));
+	}
+
+	@Override
+	public int followingCount(final int state) {
+		return forward.children[order][state + 1] - forward.children[order][state];
+	}
+
+	/** The successor is the state shifted left, closed by the word of the leaf. */
+	@Override
+	public int following(final int state, final int index) {
+		return forward.child(order - 1, suffixes[state], forward.labels[order + 1][forward.children[order][state] + index]);
+	}
+
+	@Override
+	public int followingWeight(final int state, final int index) {
+		return forward.weight(state, index);
+	}
+
+	@Override
+	public int nextFollowing(final int state, final Random random) {
+		return following(state, forward.sample(state, random));
+	}
+
+	@Override
+	public int precedingCount(final int state) {
+		return precedeOffsets[state + 1] - precedeOffsets[state];
+	}
+
+	@Override
+	public int preceding(final int state, final int index) {
+		return precedeTargets[precedeOffsets[state] + index];
+	}
+
+	@Override
+	public int precedingWeight(final int state, final int index) {
+		return weight(precedeOffsets, precedeWeights, state, index);
+	}
+
+	@Override
+	public int nextPreceding(final int state, final Random random) {
+		return preceding(state, sample(precedeOffsets, precedeWeights, state, random));
+	}
+
+	@Override
+	public int containerCount(final int word) {
+		return (word < wordCount) ? containers.size(word) : 0;
+	}
+
+	@Override
+	public int container(final int word, final int index) {
+		return containers.get(word, index);
+	}
+
+}
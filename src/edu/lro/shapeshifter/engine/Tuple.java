@@ -1,64 +1,35 @@
 package edu.lro.shapeshifter.engine;
 
-import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Iterator;
 
 /**
  * A tuple consisting of <tt>N</tt> words.
- * 
+ *
  * <p>
- * Declared a <tt>Serializable</tt> to make it easy to dump. Maybe it will be
- * used in the future ;-)
+ * The words are represented by their ids in the {@link Dictionary} of the engine. Use
+ * {@link Engine#getWord(int)} (or {@link #toString(Dictionary)} with a dictionary at hand) to get
+ * them back as strings.
  * </p>
- * 
+ *
+ * <p>
+ * For low orders a tuple fits into a single <tt>long</tt> key (see {@link #pack(int[], int, int)}),
+ * which is used by the {@link TupleIndex} as long as the vocabulary is small enough.
+ * </p>
+ *
+ * <p>
+ * Tuples are not serialized one by one: the whole model is dumped at once by {@link Snapshot}.
+ * </p>
+ *
  * @author legendi
  */
-public class Tuple implements Serializable, Iterable<String> {
-	
-	/* (non-Javadoc) */
-	private static final long serialVersionUID = 4244679687729206506L;
-	
-	/** The array of words. */
-	private final String[] tokens;
-	
-	/**
-	 * Descriptor for Tuples.
-	 * 
-	 * <p>
-	 * Currently only 2 properties are taken care of:
-	 * <ol>
-	 * <li><tt>finisher</tt> true if the current tuple can be used to close a generated sentence.</li>
-	 * <li><tt>starter</tt> true if the current tuple can be used to start a generated sentence.</li>
-	 * </ol>
-	 * </p>
-	 */
-	public static class Descriptor {
-		/** If the current tuple can be used to close a generated sentence. */
-		private boolean finisher;
-		/** If the current tuple can be used to start a generated sentence. */
-		private boolean starter;
-		
-		public boolean isFinisher() {
-			return finisher;
-		}
-	
-		public void setFinisher(final boolean finisher) {
-			this.finisher = finisher;
-		}
-	
-		public boolean isStarter() {
-			return starter;
-		}
-	
-		public void setStarter(final boolean starter) {
-			this.starter = starter;
-		}
-	}
-	
+public class Tuple {
+
+	/** The array of word ids. */
+	private final int[] tokens;
+
 	//---------------------------------------------------------------------------------------------------
 
-	public Tuple(final String[] tokens) {
+	public Tuple(final int[] tokens) {
 		this.tokens = tokens;
 	}
 
@@ -66,24 +37,24 @@ public class Tuple implements Serializable, Iterable<String> {
 		return tokens.length;
 	}
 
-	public String getToken(final int index) {
+	public int getToken(final int index) {
 		if (index >= tokens.length)
 			throw new ArrayIndexOutOfBoundsException(index);
 
 		return tokens[index];
 	}
-	
+
 	/**
 	 * Returns a new tuple that has the components of this tuple expanded to right with the specified
 	 * word.
-	 * 
+	 *
 	 * <p>
-	 * i.e.: <code>System.out.printLn(new Tuple(new String[] {"a", "b", "c"}).shiftRight("d"));</code><br>
-	 * result:	<code>{"b", "c", "d"}</code>
+	 * i.e.: <code>System.out.printLn(new Tuple(new int[] {1, 2, 3}).shiftRight(4));</code><br>
+	 * result:	<code>{2, 3, 4}</code>
 	 * </p>
 	 */
-	public Tuple shiftRight(final String next) {
-		final String[] tokens = new String[this.tokens.length];
+	public Tuple shiftRight(final int next) {
+		final int[] tokens = new int[this.tokens.length];
 		System.arraycopy(this.tokens, 1, tokens, 0, this.tokens.length - 1);
 		tokens[this.tokens.length - 1] = next;
 		return new Tuple(tokens);
@@ -92,27 +63,67 @@ public class Tuple implements Serializable, Iterable<String> {
 	/**
 	 * Returns a new tuple that has the components of this tuple expanded to left with the specified
 	 * word.
-	 * 
+	 *
 	 * <p>
-	 * i.e.: <code>System.out.printLn(new Tuple(new String[] {"a", "b", "c"}).shiftLeft("d"));</code><br>
-	 * result:	<code>{"d", "a", "b"}</code>
+	 * i.e.: <code>System.out.printLn(new Tuple(new int[] {1, 2, 3}).shiftLeft(4));</code><br>
+	 * result:	<code>{4, 1, 2}</code>
 	 * </p>
 	 */
-	public Tuple shiftLeft(final String prev) {
-		final String[] tokens = new String[this.tokens.length];
+	public Tuple shiftLeft(final int prev) {
+		final int[] tokens = new int[this.tokens.length];
 		System.arraycopy(this.tokens, 0, tokens, 1, this.tokens.length - 1);
 		tokens[0] = prev;
 		return new Tuple(tokens);
 	}
 
-	public String firstToken() {
+	public int firstToken() {
 		return tokens[0];
 	}
-	
-	public String lastToken() {
+
+	public int lastToken() {
 		return tokens[tokens.length - 1];
 	}
 
+	/** Returns the packed key of this tuple (see {@link #pack(int[], int, int)}). */
+	public long pack() {
+		return pack(tokens, 0, tokens.length);
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns the number of bits a word id may occupy in the packed key of an <tt>order</tt> long tuple. */
+	public static int bitsPerWord(final int order) {
+		return Math.min(32, 64 / order);
+	}
+
+	/**
+	 * Returns if a tuple with the specified word id can be packed into a <tt>long</tt> key, i.e. the
+	 * vocabulary is still small enough for the given order.
+	 */
+	public static boolean fits(final int id, final int order) {
+		final int bits = bitsPerWord(order);
+		return bits >= 32 || id < (1 << bits);
+	}
+
+	/**
+	 * Packs the <tt>length</tt> word ids starting at <tt>from</tt> into a single <tt>long</tt> value,
+	 * using {@link #bitsPerWord(int)} bits for each of them.
+	 *
+	 * <p>
+	 * The result is unique only if each of the ids {@link #fits(int, int)}.
+	 * </p>
+	 */
+	public static long pack(final int[] ids, final int from, final int length) {
+		final int bits = bitsPerWord(length);
+		long ret = 0;
+
+		for (int i = from; i < from + length; ++i) {
+			ret = (ret << bits) | (ids[i] & 0xffffffffL);
+		}
+
+		return ret;
+	}
+
 	//---------------------------------------------------------------------------------------------------
 
 	/* (non-Javadoc)
@@ -143,14 +154,6 @@ public class Tuple implements Serializable, Iterable<String> {
 		return true;
 	}
 
-	/* (non-Javadoc)
-	 * @see java.lang.Iterable#iterator()
-	 */
-	@Override
-	public Iterator<String> iterator() {
-		return Arrays.asList(tokens).iterator();
-	}
-
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -159,4 +162,16 @@ public class Tuple implements Serializable, Iterable<String> {
 		return Arrays.toString(tokens);
 	}
 
+	/** Returns the words of the tuple, resolved through the specified dictionary. */
+	public String toString(final Dictionary dictionary) {
+		final StringBuilder sb = new StringBuilder("[");
+
+		for (int i = 0; i < tokens.length; ++i) {
+			if (i > 0) sb.append(", ");
+			sb.append(dictionary.word(tokens[i]));
+		}
+
+		return sb.append(']').toString();
+	}
+
 }
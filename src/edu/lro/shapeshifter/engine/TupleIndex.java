@@ -0,0 +1,290 @@
+package edu.lro.shapeshifter.engine;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Assigns a unique <tt>int</tt> id (the <i>state</i> of the Markov chain) to each known tuple.
+ *
+ * <p>
+ * The words of the tuples are stored in one flat array (<tt>order</tt> word ids per state), no
+ * {@link Tuple} objects are created. The index itself is an open-addressing hash table with linear
+ * probing, keyed by <tt>long</tt> values:
+ * <ul>
+ * <li>while every word id fits into {@link Tuple#bitsPerWord(int)} bits, the key is the packed tuple
+ * itself (see {@link Tuple#pack(int[], int, int)}), and comparing the keys is enough;</li>
+ * <li>after the vocabulary outgrows the packed representation, the index is rebuilt once with a
+ * 64-bit hash of the word ids as key, and the words are compared on hash matches.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>
+ * A state can be released (see {@link LearningWindow}): its id is reused by a later new tuple. Until
+ * then it stays in the index, so it's revived if its tuple is learned again, and the words of the
+ * states remain unique.
+ * </p>
+ *
+ * @author legendi
+ */
+final class TupleIndex {
+
+	/** Marks an empty slot in the hash table. */
+	private static final int EMPTY = -1;
+
+	private final int order;
+
+	/** The word ids of the states, <tt>order</tt> consecutive ids per state. */
+	private int[] words;
+
+	/** Number of the state ids, and of the ones not released. */
+	private int size = 0;
+	private int count = 0;
+
+	/** The released states, and the stack of their ids to reuse (may hold revived ones). */
+	private final BitSet released = new BitSet();
+	private final IntList free = new IntList();
+
+	/** If the keys are the packed tuples (true) or hashes of them (false). */
+	private boolean packed = true;
+
+	private long[] keys;
+	private int[] states;
+
+	//---------------------------------------------------------------------------------------------------
+
+	TupleIndex(final int order) {
+		this.order = order;
+		words = new int[1024 * order];
+		allocate(2048);
+	}
+
+	int order() {
+		return order;
+	}
+
+	/** Returns the number of the state ids (including the released ones). */
+	int size() {
+		return size;
+	}
+
+	/** Returns the number of the known tuples (the states not released). */
+	int count() {
+		return count;
+	}
+
+	boolean isReleased(final int state) {
+		return released.get(state);
+	}
+
+	/** Marks the specified state to be reused by the next new tuple. */
+	void release(final int state) {
+		if (!released.get(state)) {
+			released.set(state);
+			free.add(state);
+			--count;
+		}
+
+		// The revived states are left on the stack, it's rebuilt if they pile up
+		if (free.size() > 2 * (size - count) + 64) {
+			free.clear();
+			for (int id = released.nextSetBit(0); id >= 0; id = released.nextSetBit(id + 1)) {
+				free.add(id);
+			}
+		}
+	}
+
+	/** Returns the estimated heap footprint of the index in bytes. */
+	long footprint() {
+		return 64 + 4L * words.length + 8L * keys.length + 4L * states.length + released.size() / 8 +
+			free.footprint();
+	}
+
+	/** Returns the <tt>pos</tt>th word id of the specified state. */
+	int word(final int state, final int pos) {
+		return words[state * order + pos];
+	}
+
+	/** Copies the word ids of the specified state to <tt>dest</tt>, starting at <tt>destPos</tt>. */
+	void copyWords(final int state, final int[] dest, final int destPos) {
+		System.arraycopy(words, state * order, dest, destPos, order);
+	}
+
+	Tuple getTuple(final int state) {
+		final int[] tokens = new int[order];
+		copyWords(state, tokens, 0);
+		return new Tuple(tokens);
+	}
+
+	/**
+	 * Returns the state of the <tt>order</tt> word ids starting at <tt>from</tt>.
+	 *
+	 * @return the id of the state, or <code>-1</code> if the tuple is unknown
+	 */
+	int find(final int[] ids, final int from) {
+		if (packed && !fits(ids, from)) return -1;
+
+		final long key = key(ids, from);
+		final int mask = states.length - 1;
+
+		for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+			final int state = states[slot];
+
+			if (EMPTY == state) return -1;
+			if (keys[slot] == key && matches(state, ids, from)) return state;
+		}
+	}
+
+	/**
+	 * Returns the state of the <tt>order</tt> word ids starting at <tt>from</tt>, registering it first
+	 * if it's a new one. New states get the id of a released one, or the next sequential id;
+	 * {@link #count()} tells if the tuple was known before.
+	 */
+	int add(final int[] ids, final int from) {
+		if (packed && !fits(ids, from)) {
+			packed = false;
+			rehash(states.length);
+		}
+
+		final long key = key(ids, from);
+		final int mask = states.length - 1;
+		int slot = slot(key, mask);
+
+		for (; EMPTY != states[slot]; slot = (slot + 1) & mask) {
+			if (keys[slot] == key && matches(states[slot], ids, from)) {
+				final int state = states[slot];
+
+				if (released.get(state)) {
+					released.clear(state);
+					++count;
+				}
+
+				return state;
+			}
+		}
+
+		int state = reuse();
+
+		if (state >= 0) {
+			// Dropping the old tuple of the id, which may shift the probe sequence of the new one
+			delete(find(state));
+			slot = slot(key, mask);
+			while (EMPTY != states[slot]) slot = (slot + 1) & mask;
+		} else {
+			if ((size + 1) * order > words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+			}
+
+			state = size++;
+		}
+
+		System.arraycopy(ids, from, words, state * order, order);
+		keys[slot] = key;
+		states[slot] = state;
+		++count;
+
+		// Keeping the load factor under 0.5
+		if (2 * size > states.length) {
+			rehash(states.length * 2);
+		}
+
+		return state;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Takes a released state off the stack of the free ids, or returns <code>-1</code> if none. */
+	private int reuse() {
+		while (free.size() > 0) {
+			final int state = free.removeLast();
+
+			if (released.get(state)) {
+				released.clear(state);
+				return state;
+			}
+		}
+
+		return -1;
+	}
+
+	/** Returns the slot of the specified state. */
+	private int find(final int state) {
+		final int mask = states.length - 1;
+		int slot = slot(key(words, state * order), mask);
+
+		while (states[slot] != state) slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/** Empties the specified slot, shifting back the following states of its probe sequence. */
+	private void delete(int slot) {
+		final int mask = states.length - 1;
+
+		for (int next = (slot + 1) & mask; EMPTY != states[next]; next = (next + 1) & mask) {
+			// A state can fill the gap unless its home slot is (cyclically) after the gap
+			if (((next - slot(keys[next], mask)) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = keys[next];
+				states[slot] = states[next];
+				slot = next;
+			}
+		}
+
+		states[slot] = EMPTY;
+	}
+
+	private boolean fits(final int[] ids, final int from) {
+		for (int i = from; i < from + order; ++i) {
+			if (!Tuple.fits(ids[i], order)) return false;
+		}
+
+		return true;
+	}
+
+	private long key(final int[] ids, final int from) {
+		if (packed) return Tuple.pack(ids, from, order);
+
+		long h = 1;
+		for (int i = from; i < from + order; ++i) {
+			h = h * 0x9e3779b97f4a7c15L + ids[i];
+		}
+
+		return h;
+	}
+
+	private boolean matches(final int state, final int[] ids, final int from) {
+		if (packed) return true;
+
+		final int base = state * order;
+		for (int i = 0; i < order; ++i) {
+			if (words[base + i] != ids[from + i]) return false;
+		}
+
+		return true;
+	}
+
+	private static int slot(long key, final int mask) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+
+	private void allocate(final int capacity) {
+		keys = new long[capacity];
+		states = new int[capacity];
+		Arrays.fill(states, EMPTY);
+	}
+
+	private void rehash(final int capacity) {
+		allocate(capacity);
+		final int mask = capacity - 1;
+
+		for (int state = 0; state < size; ++state) {
+			final long key = key(words, state * order);
+			int slot = slot(key, mask);
+			while (EMPTY != states[slot]) slot = (slot + 1) & mask;
+			keys[slot] = key;
+			states[slot] = state;
+		}
+	}
+
+}
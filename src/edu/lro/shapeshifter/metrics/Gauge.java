@@ -0,0 +1,12 @@
+package edu.lro.shapeshifter.metrics;
+
+/**
+ * A value computed at the time it's read (e.g. the size of a queue).
+ *
+ * @author legendi
+ */
+public interface Gauge {
+
+	long getValue();
+
+}
@@ -0,0 +1,100 @@
+package edu.lro.shapeshifter.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative <tt>long</tt> values (e.g. latencies).
+ *
+ * <p>
+ * The values are counted in buckets of powers of two: bucket <tt>0</tt> holds the zeros, bucket
+ * <tt>i</tt> the values in <code>[2^(i-1), 2^i)</code>. Recording a value costs a few atomic
+ * increments, so it can be done on the hot paths from any number of threads; the percentiles are
+ * estimated by the upper bounds of the buckets (within a factor of two).
+ * </p>
+ *
+ * @author legendi
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 64;
+
+	/** The unit of the values, for the reports (e.g. <tt>"ms"</tt>). */
+	private final String unit;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	//---------------------------------------------------------------------------------------------------
+
+	public Histogram(final String unit) {
+		this.unit = unit;
+	}
+
+	/** Records the specified value; negative values are recorded as zeros. */
+	public void record(long value) {
+		if (value < 0) value = 0;
+
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		for (long current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get()) {
+			;
+		}
+	}
+
+	public String getUnit() {
+		return unit;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		final long n = count.get();
+		return (0 == n) ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * Returns an upper estimate of the specified percentile of the recorded values.
+	 *
+	 * @param percent in the interval <tt>[0,100]</tt>
+	 */
+	public long getPercentile(final double percent) {
+		final long n = count.get();
+		if (0 == n) return 0;
+
+		final long rank = Math.max(1, (long) Math.ceil(n * percent / 100));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += buckets.get(i);
+
+			if (seen >= rank) {
+				final long upper = (0 == i) ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+				return Math.min(upper, max.get());
+			}
+		}
+
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "n=" + getCount() + " mean=" + getMean() + unit + " p50<=" + getPercentile(50) + unit +
+			" p99<=" + getPercentile(99) + unit + " max=" + getMax() + unit;
+	}
+
+}
@@ -0,0 +1,119 @@
+package edu.lro.shapeshifter.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of named counters, histograms and gauges.
+ *
+ * <p>
+ * The names are dot-separated paths, e.g. <tt>engine.generate.time</tt>. The metrics are created on
+ * their first use and are never removed, so the components look them up once and record into them
+ * directly; the registry itself is only used for the reports (see {@link MetricsMBean}).
+ * </p>
+ *
+ * @author legendi
+ */
+public class Metrics {
+
+	private final long started = System.currentTimeMillis();
+
+	private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	//---------------------------------------------------------------------------------------------------
+
+	/** Returns the counter of the specified name, creating it if it's necessary. */
+	public AtomicLong counter(final String name) {
+		AtomicLong ret = counters.get(name);
+
+		if (null == ret) {
+			final AtomicLong created = new AtomicLong();
+			ret = counters.putIfAbsent(name, created);
+			if (null == ret) ret = created;
+		}
+
+		return ret;
+	}
+
+	/** Returns the histogram of the specified name, creating it with the given unit if it's necessary. */
+	public Histogram histogram(final String name, final String unit) {
+		Histogram ret = histograms.get(name);
+
+		if (null == ret) {
+			final Histogram created = new Histogram(unit);
+			ret = histograms.putIfAbsent(name, created);
+			if (null == ret) ret = created;
+		}
+
+		return ret;
+	}
+
+	/** Registers an existing histogram under the specified name. */
+	public void register(final String name, final Histogram histogram) {
+		histograms.put(name, histogram);
+	}
+
+	public void gauge(final String name, final Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/** Returns the value of the specified counter or gauge, or <tt>0</tt> if it doesn't exist. */
+	public long get(final String name) {
+		final AtomicLong counter = counters.get(name);
+		if (counter != null) return counter.get();
+
+		final Gauge gauge = gauges.get(name);
+		return (null == gauge) ? 0 : gauge.getValue();
+	}
+
+	/** Returns the histogram of the specified name, or <code>null</code> if it doesn't exist. */
+	public Histogram getHistogram(final String name) {
+		return histograms.get(name);
+	}
+
+	/** Returns the time passed since the creation of the registry, in msecs. */
+	public long getUptime() {
+		return System.currentTimeMillis() - started;
+	}
+
+	/** Returns the current values of the counters and gauges, ordered by their names. */
+	public SortedMap<String, Long> getValues() {
+		final TreeMap<String, Long> ret = new TreeMap<String, Long>();
+
+		for (final Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().get());
+		}
+
+		for (final Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			ret.put(entry.getKey(), entry.getValue().getValue());
+		}
+
+		return ret;
+	}
+
+	/** Returns the histograms, ordered by their names. */
+	public SortedMap<String, Histogram> getHistograms() {
+		return new TreeMap<String, Histogram>(histograms);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+
+		for (final Map.Entry<String, Long> entry : getValues().entrySet()) {
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+		}
+
+		for (final Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+			sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+
+		return sb.toString();
+	}
+
+}
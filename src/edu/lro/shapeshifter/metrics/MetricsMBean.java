@@ -0,0 +1,115 @@
+package edu.lro.shapeshifter.metrics;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a {@link Metrics} registry through JMX (e.g. to <tt>jconsole</tt>).
+ *
+ * <p>
+ * The metrics are created on demand, so the MBean is a dynamic one: each counter and gauge is a
+ * read-only <tt>long</tt> attribute of its own name, each histogram is exposed as the
+ * <tt>.count</tt>, <tt>.mean</tt>, <tt>.p50</tt>, <tt>.p99</tt> and <tt>.max</tt> attributes. The
+ * values are read at the time of the request.
+ * </p>
+ *
+ * @author legendi
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	private static final String[] HISTOGRAM_FIELDS = { "count", "mean", "p50", "p99", "max" };
+
+	private final Metrics metrics;
+
+	//---------------------------------------------------------------------------------------------------
+
+	public MetricsMBean(final Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public Object getAttribute(final String name) throws AttributeNotFoundException {
+		final Map<String, Long> values = metrics.getValues();
+
+		if (values.containsKey(name)) {
+			return values.get(name);
+		}
+
+		final int dot = name.lastIndexOf('.');
+		final Histogram histogram = (dot < 0) ? null : metrics.getHistogram(name.substring(0, dot));
+
+		if (histogram != null) {
+			final String field = name.substring(dot + 1);
+
+			if ("count".equals(field)) return histogram.getCount();
+			if ("mean".equals(field)) return histogram.getMean();
+			if ("p50".equals(field)) return histogram.getPercentile(50);
+			if ("p99".equals(field)) return histogram.getPercentile(99);
+			if ("max".equals(field)) return histogram.getMax();
+		}
+
+		throw new AttributeNotFoundException("No such metric: " + name);
+	}
+
+	@Override
+	public AttributeList getAttributes(final String[] names) {
+		final AttributeList ret = new AttributeList();
+
+		for (final String name : names) {
+			try {
+				ret.add(new Attribute(name, getAttribute(name)));
+			} catch (final AttributeNotFoundException e) {
+				// Skipped, as the contract of the method requires
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(final String actionName, final Object[] params, final String[] signature)
+			throws MBeanException, ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+		for (final String name : metrics.getValues().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		}
+
+		for (final Map.Entry<String, Histogram> entry : metrics.getHistograms().entrySet()) {
+			for (final String field : HISTOGRAM_FIELDS) {
+				attributes.add(new MBeanAttributeInfo(entry.getKey() + "." + field, "long",
+						field + " of " + entry.getKey() + " (" + entry.getValue().getUnit() + ")", true, false, false));
+			}
+		}
+
+		return new MBeanInfo(getClass().getName(), "Runtime metrics of the Shapeshifter bot",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[0], null);
+	}
+
+}